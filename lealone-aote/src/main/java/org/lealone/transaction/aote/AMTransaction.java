@@ -19,13 +19,17 @@ package org.lealone.transaction.aote;
 
 import java.nio.ByteBuffer;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
+import org.lealone.db.Constants;
 import org.lealone.db.RunMode;
 import org.lealone.db.api.ErrorCode;
 import org.lealone.db.session.Session;
@@ -35,9 +39,12 @@ import org.lealone.storage.StorageMap;
 import org.lealone.storage.type.ObjectDataType;
 import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.Transaction;
+import org.lealone.transaction.aote.log.IncrementUndoLogRecord;
 import org.lealone.transaction.aote.log.LogSyncService;
+import org.lealone.transaction.aote.log.OptimisticUndoLogRecord;
 import org.lealone.transaction.aote.log.RedoLogRecord;
 import org.lealone.transaction.aote.log.UndoLog;
+import org.lealone.transaction.aote.log.UndoLogRecord;
 
 public class AMTransaction implements Transaction {
 
@@ -46,8 +53,10 @@ public class AMTransaction implements Transaction {
     // 以下几个public或包级别的字段是在其他地方频繁使用的，
     // 为了使用方便或节省一点点性能开销就不通过getter方法访问了
     final AMTransactionEngine transactionEngine;
-    final long transactionId;
-    final String transactionName;
+    long transactionId;
+    String transactionName;
+    // 可重复读事务只能看到版本号不大于它的数据，只读事务升级后transactionId会变，但是快照不变
+    final long snapshot;
     final LogSyncService logSyncService;
 
     UndoLog undoLog = new UndoLog();
@@ -60,10 +69,24 @@ public class AMTransaction implements Transaction {
     private int isolationLevel = Connection.TRANSACTION_READ_COMMITTED; // 默认是读已提交级别
     private boolean autoCommit;
     private Runnable asyncTask;
-
-    // 被哪个事务锁住记录了
+    // 只读事务没有分配真正的事务id，也没有注册到事务引擎中，transactionId只是一个快照标记
+    private boolean readOnly;
+    private boolean earlyLockReleased;
+    // 乐观模式下update、delete和select for update不加行锁也不等待，写操作先放到写集中，提交时再校验
+    private boolean optimistic;
+    // 写集中每条记录最近的一次写操作，用于读到自己还没有写入map的数据，
+    // 悲观模式下只有可交换的增量修改才会放到写集中
+    private HashMap<String, HashMap<Object, OptimisticUndoLogRecord>> writeSet;
+    // 已经开始提交了，提交时合并增量修改遇到这样的事务锁住了记录，会等它结束
+    private volatile boolean committing;
+    private boolean hasIncrements;
+
+    // 被哪个事务锁住记录了，所有事务的lockedBy字段组成了一个等待图(wait-for graph)
     private volatile AMTransaction lockedBy;
-    private long lockStartTime;
+    private long lockStartTime; // 纳秒
+    private long lockWaitTime; // 纳秒
+    // 开始等待时如果发现了死锁并且当前事务被选为牺牲者，那么不必等到锁超时就可以回滚了
+    private volatile String deadlockMsg;
     // 有哪些事务在等待我释放锁
     private final AtomicReference<LinkedList<WaitingTransaction>> waitingTransactionsRef = new AtomicReference<>(
             EMPTY_LINKED_LIST);
@@ -75,6 +98,7 @@ public class AMTransaction implements Transaction {
     public AMTransaction(AMTransactionEngine engine, long tid, String hostAndPort) {
         transactionEngine = engine;
         transactionId = tid;
+        snapshot = tid;
         transactionName = getTransactionName(hostAndPort, tid);
         logSyncService = engine.getLogSyncService();
         status = Transaction.STATUS_OPEN;
@@ -126,13 +150,21 @@ public class AMTransaction implements Transaction {
         this.status = status;
         if (lockedBy != null && status == STATUS_OPEN) {
             lockedBy = null;
-            lockStartTime = 0;
+            endLockWait();
+            deadlockMsg = null;
         }
     }
 
     @Override
     public void setIsolationLevel(int level) {
+        // 注册快照后，提交的事务才会为它保留旧值，只读事务也不需要升级
+        boolean oldRepeatableRead = isolationLevel >= Transaction.IL_REPEATABLE_READ;
+        boolean newRepeatableRead = level >= Transaction.IL_REPEATABLE_READ;
         isolationLevel = level;
+        if (newRepeatableRead && !oldRepeatableRead)
+            transactionEngine.addSnapshot(snapshot);
+        else if (oldRepeatableRead && !newRepeatableRead)
+            transactionEngine.removeSnapshot(snapshot);
     }
 
     @Override
@@ -145,6 +177,207 @@ public class AMTransaction implements Transaction {
         return transactionId;
     }
 
+    void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void upgradeToReadWrite() {
+        if (readOnly) {
+            readOnly = false;
+            transactionId = transactionEngine.registerTransaction(this);
+            transactionName = getTransactionName(null, transactionId);
+        }
+    }
+
+    @Override
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    @Override
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    OptimisticUndoLogRecord getPendingWrite(String mapName, Object key) {
+        if (writeSet == null)
+            return null;
+        HashMap<Object, OptimisticUndoLogRecord> writes = writeSet.get(mapName);
+        return writes == null ? null : writes.get(key);
+    }
+
+    void addPendingWrite(OptimisticUndoLogRecord r) {
+        undoLog.add(r);
+        addToWriteSet(r);
+    }
+
+    // 回滚到保存点后写集中可能还有被撤销的写操作，按undo log中剩下的记录重建
+    private void rebuildWriteSet() {
+        writeSet = null;
+        for (int i = 0, size = undoLog.size(); i < size; i++) {
+            UndoLogRecord r = undoLog.get(i);
+            if (r instanceof OptimisticUndoLogRecord) {
+                OptimisticUndoLogRecord or = (OptimisticUndoLogRecord) r;
+                // 已经提前写入map的增量修改不再是待写入的了
+                if (or instanceof IncrementUndoLogRecord && or.isInstalled())
+                    removeFromWriteSet(or);
+                else
+                    addToWriteSet(or);
+            }
+        }
+    }
+
+    private void addToWriteSet(OptimisticUndoLogRecord r) {
+        if (writeSet == null)
+            writeSet = new HashMap<>();
+        writeSet.computeIfAbsent(r.getMapName(), k -> new HashMap<>()).put(r.getKey(), r);
+    }
+
+    private void removeFromWriteSet(OptimisticUndoLogRecord r) {
+        HashMap<Object, OptimisticUndoLogRecord> writes = writeSet == null ? null : writeSet.get(r.getMapName());
+        if (writes != null)
+            writes.remove(r.getKey());
+    }
+
+    // 按写操作的顺序逐条写入map，只要有一条记录被其他事务改过就说明发生了冲突，由调用者回滚整个事务。
+    // 要等其他事务时返回false，被唤醒后重新调用，已经写入的记录会跳过
+    private boolean installWriteSet(Listener listener) {
+        committing = true;
+        if (writeSet == null)
+            return true;
+        status = STATUS_COMMITTING;
+        for (int i = 0, size = undoLog.size(); i < size; i++) {
+            UndoLogRecord r = undoLog.get(i);
+            if (r instanceof IncrementUndoLogRecord) {
+                IncrementUndoLogRecord ir = (IncrementUndoLogRecord) r;
+                // 被同一个事务后面的增量修改合并了的不需要写入
+                if (!ir.isInstalled() && getPendingWrite(ir.getMapName(), ir.getKey()) == ir) {
+                    if (!installIncrement(ir, true, listener))
+                        return false;
+                    hasIncrements = true;
+                }
+            } else if (r instanceof OptimisticUndoLogRecord) {
+                OptimisticUndoLogRecord or = (OptimisticUndoLogRecord) r;
+                if (!or.isInstalled() && !or.install()) {
+                    transactionEngine.incrementOptimisticCount(true);
+                    throw DbException.get(ErrorCode.TRANSACTION_CONFLICT_1, r.getMapName());
+                }
+            }
+        }
+        writeSet = null;
+        if (optimistic)
+            transactionEngine.incrementOptimisticCount(false);
+        return true;
+    }
+
+    IncrementUndoLogRecord getPendingIncrement(String mapName, Object key) {
+        OptimisticUndoLogRecord r = getPendingWrite(mapName, key);
+        return r instanceof IncrementUndoLogRecord ? (IncrementUndoLogRecord) r : null;
+    }
+
+    // 执行普通的写操作前先把同一条记录上的增量修改写入map，这样普通的写操作就在它的基础上进行，
+    // 记录被其他事务锁住时返回false
+    boolean installPendingIncrement(IncrementUndoLogRecord r) {
+        if (!installIncrement(r, false, null))
+            return false;
+        removeFromWriteSet(r);
+        return true;
+    }
+
+    // 在最新的已提交值上合并增量，记录被其他事务锁住时返回false。wait为true时在提交阶段调用，
+    // 锁住记录的事务如果也在提交，很快就会释放锁，所以要等它结束，其他情况都当作冲突。
+    // 等待时如果有listener，就把它放到锁住记录的事务的等待队列中然后返回false，否则在当前线程中等待
+    private boolean installIncrement(IncrementUndoLogRecord r, boolean wait, Listener listener) {
+        TransactionalValue ref = r.getRef();
+        while (true) {
+            TransactionalValue head = ref.getRefValue();
+            AMTransaction owner = getIncrementLockOwner(head, r.getColumnIndexes());
+            if (owner == null) {
+                TransactionalValue committed = head == null ? null : head.getCommitted();
+                // 记录已经被其他事务删除了
+                if (committed == null || committed.getValue() == null)
+                    throw DbException.get(ErrorCode.TRANSACTION_CONFLICT_1, r.getMapName());
+                if (r.install(this, head, committed))
+                    return true;
+                continue;
+            }
+            if (!wait)
+                return false;
+            // 锁住记录的事务刚刚结束，它的值很快就会变成已提交的
+            if (owner == this)
+                continue;
+            if (!owner.committing)
+                throw DbException.get(ErrorCode.TRANSACTION_CONFLICT_1, r.getMapName());
+            // 两个正在提交的事务互相等待时，由死锁检测选出一个牺牲者
+            if (listener != null) {
+                if (owner.addWaitingTransaction(r.getKey(), this, listener) == OPERATION_NEED_WAIT)
+                    return false;
+            } else {
+                awaitIncrementLock(owner, r);
+                status = STATUS_COMMITTING;
+            }
+        }
+    }
+
+    private void awaitIncrementLock(AMTransaction owner, IncrementUndoLogRecord r) {
+        CountDownLatch latch = new CountDownLatch(1);
+        Listener listener = new Listener() {
+            @Override
+            public void operationUndo() {
+            }
+
+            @Override
+            public void operationComplete() {
+            }
+
+            @Override
+            public void wakeUp() {
+                latch.countDown();
+            }
+        };
+        if (owner.addWaitingTransaction(r.getKey(), this, listener) != OPERATION_NEED_WAIT)
+            return;
+        long timeout = session != null ? session.getLockTimeout() : Constants.INITIAL_LOCK_TIMEOUT;
+        try {
+            if (latch.await(timeout, TimeUnit.MILLISECONDS))
+                return;
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        } finally {
+            if (latch.getCount() > 0) {
+                owner.removeWaitingTransaction(this);
+                setStatus(STATUS_OPEN);
+            }
+        }
+        throw DbException.get(ErrorCode.TRANSACTION_CONFLICT_1, r.getMapName());
+    }
+
+    // 已提交的值也可能排在其他事务未提交的列锁前面，所以要找到第一个未提交的值再检查
+    private AMTransaction getIncrementLockOwner(TransactionalValue head, int[] columnIndexes) {
+        for (TransactionalValue tv = head; tv != null; tv = tv.getOldValue()) {
+            if (tv instanceof TransactionalValue.Uncommitted) {
+                if (tv.getTid() == transactionId || !tv.isLocked(transactionId, columnIndexes))
+                    return null;
+                AMTransaction owner = transactionEngine.getTransaction(tv.getTid());
+                // 锁住记录的事务刚刚结束，返回当前事务让调用者重试
+                return owner != null ? owner : this;
+            }
+        }
+        return null;
+    }
+
+    // 所有写操作之前调用
+    void checkWritable() {
+        checkNotClosed();
+        upgradeToReadWrite();
+    }
+
     @Override
     public boolean isAutoCommit() {
         return autoCommit;
@@ -206,10 +439,8 @@ public class AMTransaction implements Transaction {
             parameters.put("isShardingMode", "true");
 
         StorageMap<K, TransactionalValue> map = storage.openMap(name, keyType, valueType, parameters);
-        if (!map.isInMemory()) {
-            logSyncService.getRedoLog().redo(map);
-        }
-        transactionEngine.addStorageMap((StorageMap<Object, TransactionalValue>) map);
+        boolean redone = !map.isInMemory() && logSyncService.getRedoLog().redo(map) > 0;
+        transactionEngine.addStorageMap((StorageMap<Object, TransactionalValue>) map, redone);
         return createTransactionMap(map, parameters);
     }
 
@@ -240,11 +471,19 @@ public class AMTransaction implements Transaction {
 
     @Override
     public void asyncCommit(Runnable asyncTask) {
+        tryAsyncCommit(asyncTask, null);
+    }
+
+    @Override
+    public boolean tryAsyncCommit(Runnable asyncTask, Listener listener) {
         checkNotClosed();
+        if (!installWriteSet(listener))
+            return false;
         this.asyncTask = asyncTask;
         if (writeRedoLog(true)) {
             asyncCommitComplete();
         }
+        return true;
     }
 
     // 如果不需要事务日志同步或者不需要立即做事务日志同步那么返回true，这时可以直接提交事务了。
@@ -255,7 +494,15 @@ public class AMTransaction implements Transaction {
             if (logSyncService.isInstantSync()) {
                 RedoLogRecord r = createLocalTransactionRedoLogRecord();
                 if (asyncCommit) {
-                    logSyncService.addRedoLogRecord(r);
+                    // 合并了增量修改的记录都是热点，也提前释放锁
+                    if (logSyncService.isEarlyLockRelease() || hasIncrements) {
+                        // 日志进入队列后就释放锁，热点行不用等fsync，日志同步完成后才通知客户端提交成功
+                        logSyncService.addEarlyLockReleaseRedoLogRecord(r);
+                        earlyLockReleased = true;
+                        commitFinal();
+                    } else {
+                        logSyncService.addRedoLogRecord(r);
+                    }
                     logSyncService.asyncCommit(this);
                     return false;
                 } else {
@@ -270,6 +517,15 @@ public class AMTransaction implements Transaction {
                 logSyncService.addRedoLogRecord(r);
                 return true;
             }
+        } else if (logSyncService.hasCommitDependency()) {
+            // 可能看到了提前释放锁的事务还没有同步完成的数据，要等这些日志同步完成
+            if (asyncCommit) {
+                logSyncService.asyncCommit(this);
+                return false;
+            } else {
+                logSyncService.waitForCommitDependency();
+                return true;
+            }
         } else {
             // 如果不需要事务日志同步，那么什么都不做，可以直接提交事务了
             return true;
@@ -277,7 +533,8 @@ public class AMTransaction implements Transaction {
     }
 
     public void asyncCommitComplete() {
-        commitFinal();
+        if (!earlyLockReleased)
+            commitFinal();
         if (session != null) {
             session.asyncCommitComplete();
         }
@@ -302,6 +559,7 @@ public class AMTransaction implements Transaction {
 
     protected void commitLocal() {
         checkNotClosed();
+        installWriteSet(null);
         writeRedoLog(false);
 
         // 分布式事务推迟提交
@@ -311,7 +569,11 @@ public class AMTransaction implements Transaction {
     }
 
     protected void commitFinal() {
-        commitFinal(transactionId);
+        // 只读事务没有注册，直接结束即可
+        if (readOnly)
+            endTransaction(false);
+        else
+            commitFinal(transactionId);
     }
 
     // tid在分布式场景下可能是其他事务的tid
@@ -320,15 +582,24 @@ public class AMTransaction implements Transaction {
         AMTransaction t = transactionEngine.removeTransaction(tid);
         if (t == null)
             return;
+        transactionEngine.getTransactionEngineMetrics().recordUndoLogSize(t.undoLog.size());
         t.undoLog.commit(transactionEngine, tid);
         t.endTransaction(false);
     }
 
     private void endTransaction(boolean remove) {
+        endLockWait();
+        if (lockWaitTime > 0) {
+            transactionEngine.getTransactionEngineMetrics().recordLockWait(lockWaitTime);
+            lockWaitTime = 0;
+        }
+        if (status != STATUS_CLOSED && isolationLevel >= Transaction.IL_REPEATABLE_READ)
+            transactionEngine.removeSnapshot(snapshot);
         savepoints = null;
         undoLog = null;
+        writeSet = null;
         status = STATUS_CLOSED;
-        if (remove)
+        if (remove && !readOnly)
             transactionEngine.removeTransaction(transactionId);
 
         while (true) {
@@ -381,6 +652,8 @@ public class AMTransaction implements Transaction {
     }
 
     int addWaitingTransaction(Object key, AMTransaction transaction, Listener listener) {
+        // 之前已经被选为死锁的牺牲者了，重新执行语句时直接抛出异常
+        transaction.checkDeadlockVictim();
         transaction.setStatus(STATUS_WAITING);
         WaitingTransaction wt = new WaitingTransaction(key, transaction, listener);
         while (true) {
@@ -394,6 +667,8 @@ public class AMTransaction implements Transaction {
             newWaitingTransactions.add(wt);
             if (waitingTransactionsRef.compareAndSet(waitingTransactions, newWaitingTransactions)) {
                 transaction.waitFor(this);
+                checkDeadlock(transaction);
+                transaction.checkDeadlockVictim();
                 return OPERATION_NEED_WAIT;
             }
         }
@@ -401,13 +676,108 @@ public class AMTransaction implements Transaction {
 
     private void waitFor(AMTransaction transaction) {
         lockedBy = transaction;
-        lockStartTime = System.currentTimeMillis();
+        lockStartTime = System.nanoTime();
+    }
+
+    // 一个事务可能等待多次，累加起来在事务结束时记录一次
+    private void endLockWait() {
+        if (lockStartTime != 0) {
+            lockWaitTime += System.nanoTime() - lockStartTime;
+            lockStartTime = 0;
+        }
+    }
+
+    // 每个事务最多只等待一个事务，所以等待图中的每个节点最多只有一条出边，
+    // 从被等待的事务开始沿着lockedBy往下找，如果又回到了新加入的等待者那里就说明出现了死锁，
+    // 两个以及多个事务形成的环都能在开始等待时立刻发现。
+    // 因为lockedBy是volatile的，并发形成环的多个事务中至少有最后一个能发现死锁。
+    private void checkDeadlock(AMTransaction waiter) {
+        ArrayList<AMTransaction> cycle = null;
+        AMTransaction t = this;
+        int maxDepth = transactionEngine.getCurrentTransactionCount();
+        for (int depth = 0; t != null && depth <= maxDepth; depth++) {
+            if (t == waiter) {
+                cycle = new ArrayList<>();
+                t = waiter;
+                do {
+                    cycle.add(t);
+                    t = t.lockedBy;
+                } while (t != null && t != waiter && cycle.size() <= maxDepth);
+                break;
+            }
+            if (t.status != STATUS_WAITING)
+                return;
+            t = t.lockedBy;
+        }
+        if (cycle == null)
+            return;
+
+        // 选择最年轻(事务id最大)的事务作为牺牲者，它做的工作通常最少
+        AMTransaction victim = waiter;
+        for (AMTransaction c : cycle) {
+            if (c.transactionId > victim.transactionId)
+                victim = c;
+        }
+        StringBuilder msg = new StringBuilder();
+        for (AMTransaction c : cycle) {
+            AMTransaction next = c.lockedBy;
+            if (next == null)
+                continue;
+            if (msg.length() > 0)
+                msg.append("\r\n");
+            msg.append(getMsg(c.transactionId, c.session, next, next.getWaitingTransaction(c)));
+        }
+        victim.deadlockMsg = msg.toString();
+        if (victim == waiter)
+            return;
+        // 唤醒牺牲者所在的调度线程，让它尽快重新执行语句，此时牺牲者依然处于等待状态
+        AMTransaction lockedBy = victim.lockedBy;
+        WaitingTransaction wt = lockedBy != null ? lockedBy.getWaitingTransaction(victim) : null;
+        if (wt != null)
+            wt.getListener().wakeUp();
+    }
+
+    private void checkDeadlockVictim() {
+        String deadlockMsg = this.deadlockMsg;
+        if (deadlockMsg != null) {
+            this.deadlockMsg = null;
+            AMTransaction lockedBy = this.lockedBy;
+            if (lockedBy != null)
+                lockedBy.removeWaitingTransaction(this);
+            this.lockedBy = null;
+            endLockWait();
+            status = STATUS_OPEN;
+            throw DbException.get(ErrorCode.DEADLOCK_1, deadlockMsg);
+        }
+    }
+
+    private void removeWaitingTransaction(AMTransaction transaction) {
+        while (true) {
+            LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
+            LinkedList<WaitingTransaction> newWaitingTransactions = new LinkedList<>(waitingTransactions);
+            if (!newWaitingTransactions.removeIf(wt -> wt.getTransaction() == transaction))
+                return;
+            if (waitingTransactionsRef.compareAndSet(waitingTransactions, newWaitingTransactions))
+                return;
+        }
+    }
+
+    private WaitingTransaction getWaitingTransaction(AMTransaction transaction) {
+        LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
+        if (waitingTransactions != null) {
+            for (WaitingTransaction wt : waitingTransactions) {
+                if (wt.getTransaction() == transaction)
+                    return wt;
+            }
+        }
+        return null;
     }
 
     @Override
     public void checkTimeout() {
+        checkDeadlockVictim();
         if (lockedBy != null && lockStartTime != 0
-                && System.currentTimeMillis() - lockStartTime > session.getLockTimeout()) {
+                && (System.nanoTime() - lockStartTime) / 1000000 > session.getLockTimeout()) {
             boolean isDeadlock = false;
             WaitingTransaction waitingTransaction = null;
             LinkedList<WaitingTransaction> waitingTransactions = waitingTransactionsRef.get();
@@ -440,7 +810,8 @@ public class AMTransaction implements Transaction {
     private static String getMsg(long tid, Session session, AMTransaction transaction,
             WaitingTransaction waitingTransaction) {
         return "transaction #" + tid + " in session " + session + " wait for transaction #" + transaction.transactionId
-                + " in session " + transaction.session + ", key: " + waitingTransaction.getKey();
+                + " in session " + transaction.session + ", key: "
+                + (waitingTransaction == null ? null : waitingTransaction.getKey());
     }
 
     @Override
@@ -486,6 +857,8 @@ public class AMTransaction implements Transaction {
 
     private void rollbackTo(long toLogId) {
         undoLog.rollbackTo(transactionEngine, toLogId);
+        if (writeSet != null)
+            rebuildWriteSet();
     }
 
     protected void checkNotClosed() {
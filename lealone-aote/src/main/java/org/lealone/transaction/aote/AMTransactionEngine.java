@@ -17,16 +17,28 @@
  */
 package org.lealone.transaction.aote;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lealone.common.concurrent.NamedThreadFactory;
+import org.lealone.common.exceptions.DbException;
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.DateTimeUtils;
@@ -52,9 +64,13 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
     private static final class MapInfo {
         final StorageMap<Object, TransactionalValue> map;
         final AtomicInteger estimatedMemory = new AtomicInteger(0);
+        // 最近一次保存map前redo日志所在的chunk id，在它之前的chunk中的redo日志都已经保存到map中了
+        volatile int checkpointChunkId;
+        int memorySnapshot; // 只在CheckpointService中使用
 
-        MapInfo(StorageMap<Object, TransactionalValue> map) {
+        MapInfo(StorageMap<Object, TransactionalValue> map, int checkpointChunkId) {
             this.map = map;
+            this.checkpointChunkId = checkpointChunkId;
         }
     }
 
@@ -62,7 +78,19 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
     private final ConcurrentHashMap<String, MapInfo> maps = new ConcurrentHashMap<>();
     // key: transactionId
     private final ConcurrentSkipListMap<Long, AMTransaction> currentTransactions = new ConcurrentSkipListMap<>();
+    // ConcurrentSkipListMap.size()要遍历所有元素，所以单独计数
+    private final AtomicInteger currentTransactionCount = new AtomicInteger();
     private final AtomicLong lastTransactionId = new AtomicLong();
+    // key: 可重复读事务的快照, value: 使用这个快照的事务个数(多个只读事务可能共用同一个快照)
+    private final ConcurrentSkipListMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+    // 所有活跃的可重复读事务中最老的快照，判断能否清除旧版本时只需要跟它比较
+    private volatile long oldestSnapshot = Long.MAX_VALUE;
+
+    // 乐观模式下成功提交和因为冲突而回滚的事务个数，用来计算冲突率，决定某类负载适不适合用乐观模式
+    private final AtomicLong optimisticCommits = new AtomicLong();
+    private final AtomicLong optimisticAborts = new AtomicLong();
+
+    private final TransactionEngineMetrics metrics = new TransactionEngineMetrics(this);
 
     private LogSyncService logSyncService;
     private CheckpointService checkpointService;
@@ -79,8 +107,20 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         return logSyncService;
     }
 
+    public TransactionEngineMetrics getTransactionEngineMetrics() {
+        return metrics;
+    }
+
     AMTransaction removeTransaction(long tid) {
-        return currentTransactions.remove(tid);
+        AMTransaction t = currentTransactions.remove(tid);
+        if (t != null)
+            currentTransactionCount.decrementAndGet();
+        return t;
+    }
+
+    private void addTransaction(long tid, AMTransaction t) {
+        if (currentTransactions.put(tid, t) == null)
+            currentTransactionCount.incrementAndGet();
     }
 
     boolean containsTransaction(long tid) {
@@ -95,10 +135,22 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         return currentTransactions.values();
     }
 
-    void addStorageMap(StorageMap<Object, TransactionalValue> map) {
+    int getCurrentTransactionCount() {
+        return currentTransactionCount.get();
+    }
+
+    void addStorageMap(StorageMap<Object, TransactionalValue> map, boolean redone) {
         // 注意，不要敲成contains，是containsKey
         if (!maps.containsKey(map.getName())) {
-            maps.put(map.getName(), new MapInfo(map));
+            MapInfo mapInfo;
+            if (redone) {
+                // redo过的数据还没有保存，在map保存之前不能删除任何redo日志
+                mapInfo = new MapInfo(map, 0);
+                mapInfo.estimatedMemory.set(1);
+            } else {
+                mapInfo = new MapInfo(map, logSyncService.getRedoLog().getCurrentChunkId());
+            }
+            maps.put(map.getName(), mapInfo);
             map.getStorage().registerEventListener(this);
         }
     }
@@ -122,13 +174,58 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             mapInfo.estimatedMemory.addAndGet(memory);
     }
 
-    // 看看是否有REPEATABLE_READ和SERIALIZABLE隔离级别的事务，并且事务id小于给定值tid的
+    // 看看是否有REPEATABLE_READ和SERIALIZABLE隔离级别的事务，并且快照小于给定的版本号
     public boolean containsRepeatableReadTransactions(long lessThanVersion) {
-        for (AMTransaction t : currentTransactions.headMap(lessThanVersion).values()) {
-            if (t.getIsolationLevel() >= Transaction.IL_REPEATABLE_READ)
-                return true;
-        }
-        return false;
+        return oldestSnapshot < lessThanVersion;
+    }
+
+    long getOldestSnapshot() {
+        return oldestSnapshot;
+    }
+
+    void addSnapshot(long snapshot) {
+        snapshots.merge(snapshot, 1, Integer::sum);
+        updateOldestSnapshot();
+    }
+
+    void removeSnapshot(long snapshot) {
+        snapshots.computeIfPresent(snapshot, (k, v) -> v == 1 ? null : v - 1);
+        updateOldestSnapshot();
+    }
+
+    // 并发更新时，最后一个写入oldestSnapshot的线程写完后还会再检查一次，所以最终一定是最老的快照
+    private void updateOldestSnapshot() {
+        long oldest;
+        do {
+            oldest = getFirstSnapshot();
+            oldestSnapshot = oldest;
+        } while (oldest != getFirstSnapshot());
+    }
+
+    private long getFirstSnapshot() {
+        Map.Entry<Long, Integer> e = snapshots.firstEntry();
+        return e == null ? Long.MAX_VALUE : e.getKey();
+    }
+
+    void incrementOptimisticCount(boolean aborted) {
+        if (aborted)
+            optimisticAborts.incrementAndGet();
+        else
+            optimisticCommits.incrementAndGet();
+    }
+
+    public long getOptimisticCommitCount() {
+        return optimisticCommits.get();
+    }
+
+    public long getOptimisticAbortCount() {
+        return optimisticAborts.get();
+    }
+
+    public double getOptimisticAbortRate() {
+        long aborts = optimisticAborts.get();
+        long total = aborts + optimisticCommits.get();
+        return total == 0 ? 0 : (double) aborts / total;
     }
 
     ///////////////////// 实现TransactionEngine接口 /////////////////////
@@ -138,7 +235,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         if (logSyncService != null)
             return;
         checkpointService = new CheckpointService(config);
-        logSyncService = LogSyncService.create(config);
+        logSyncService = LogSyncService.create(config, metrics);
 
         long lastTransactionId = logSyncService.getRedoLog().init();
         this.lastTransactionId.set(lastTransactionId);
@@ -146,6 +243,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         // 调用完initPendingRedoLog后再启动logSyncService
         logSyncService.start();
         checkpointService.start();
+        registerMBean();
 
         ShutdownHookUtils.addShutdownHook(this, () -> {
             close();
@@ -170,9 +268,42 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
             }
             this.logSyncService = null;
             this.checkpointService = null;
+            unregisterMBean();
         }
     }
 
+    private ObjectName getMBeanName() throws Exception {
+        return new ObjectName("org.lealone:type=TransactionEngineMetrics,name=" + name);
+    }
+
+    // 同名的引擎可能创建多个实例(比如测试中)，只保留最后一个初始化的
+    private void registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = getMBeanName();
+            if (mbs.isRegistered(mbeanName))
+                mbs.unregisterMBean(mbeanName);
+            mbs.registerMBean(metrics, mbeanName);
+        } catch (Exception e) {
+            logger.warn("Failed to register transaction engine metrics mbean", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = getMBeanName();
+            if (mbs.isRegistered(mbeanName))
+                mbs.unregisterMBean(mbeanName);
+        } catch (Exception e) {
+        }
+    }
+
+    @Override
+    public Map<String, String> getMetrics() {
+        return metrics.getMetrics();
+    }
+
     @Override
     public AMTransaction beginTransaction(boolean autoCommit, RunMode runMode) {
         if (logSyncService == null) {
@@ -183,10 +314,36 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         AMTransaction t = createTransaction(tid, runMode);
         t.setAutoCommit(autoCommit);
         t.setRunMode(runMode);
-        currentTransactions.put(tid, t);
+        addTransaction(tid, t);
         return t;
     }
 
+    @Override
+    public AMTransaction beginTransaction(boolean autoCommit, RunMode runMode, boolean readOnly) {
+        if (!readOnly || runMode == RunMode.SHARDING || runMode == RunMode.REPLICATION)
+            return beginTransaction(autoCommit, runMode);
+        if (logSyncService == null) {
+            init(getDefaultConfig());
+        }
+        // 只读事务不分配事务id，也不放到currentTransactions中，只用当前最大的事务id加1作为快照标记，
+        // 非sharding模式下的事务id都是偶数，所以这个标记不会跟其他事务的id相同
+        long last = lastTransactionId.get();
+        if (last % 2 != 0)
+            return beginTransaction(autoCommit, runMode);
+        AMTransaction t = createTransaction(last + 1, runMode);
+        t.setAutoCommit(autoCommit);
+        t.setRunMode(runMode);
+        t.setReadOnly();
+        return t;
+    }
+
+    // 只读事务第一次写之前才分配真正的事务id
+    long registerTransaction(AMTransaction t) {
+        long tid = nextEvenTransactionId();
+        addTransaction(tid, t);
+        return tid;
+    }
+
     private static Map<String, String> getDefaultConfig() {
         Map<String, String> config = new HashMap<>();
         config.put("base_dir", SysProperties.getBaseDir());
@@ -283,6 +440,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         private final int committedDataCacheSize;
         private final long checkpointPeriod;
         private final long loopInterval;
+        private final ExecutorService executorService;
 
         private volatile long lastSavedAt = System.currentTimeMillis();
         private volatile boolean isClosed;
@@ -311,6 +469,15 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
                 loopInterval = checkpointPeriod;
 
             this.loopInterval = loopInterval;
+
+            v = config.get("checkpoint_service_threads");
+            int threads;
+            if (v != null)
+                threads = Integer.parseInt(v);
+            else
+                threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+            executorService = Executors.newFixedThreadPool(Math.max(1, threads),
+                    new NamedThreadFactory(getName()));
         }
 
         void close() {
@@ -330,34 +497,104 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
         // 按周期自动触发
         private synchronized void checkpoint(boolean force) {
             long now = System.currentTimeMillis();
+            int currentChunkId = logSyncService.getRedoLog().getCurrentChunkId();
             boolean executeCheckpoint = force || isClosed || (lastSavedAt + checkpointPeriod < now);
-
-            // 如果上面的条件都不满足，那么再看看已经提交的数据占用的预估总内存大小是否大于阈值
-            if (!executeCheckpoint) {
-                long totalEstimatedMemory = 0;
-                for (MapInfo mapInfo : maps.values()) {
-                    totalEstimatedMemory += mapInfo.estimatedMemory.get();
-                }
-                executeCheckpoint = totalEstimatedMemory > committedDataCacheSize;
-            }
             if (executeCheckpoint) {
+                ArrayList<MapInfo> list = new ArrayList<>();
                 for (MapInfo mapInfo : maps.values()) {
-                    StorageMap<?, ?> map = mapInfo.map;
-                    if (map.isClosed())
-                        continue;
-
-                    // 在这里有可能把已提交和未提交事务的数据都保存了，
-                    // 不过不要紧，如果在生成检查点之后系统崩溃了导致未提交事务不能正常完成，还有读时撤销机制保证数据完整性，
-                    // 因为在保存未提交数据时，也同时保存了原来的数据，如果在读到未提交数据时发现了异常，就会进行撤销，
-                    // 读时撤销机制在TransactionalValue类中实现。
-                    AtomicInteger counter = mapInfo.estimatedMemory;
-                    if (force || counter != null && counter.getAndSet(0) > 0) {
-                        map.save();
-                    }
+                    if (!mapInfo.map.isClosed() && (force || mapInfo.estimatedMemory.get() > 0))
+                        list.add(mapInfo);
                 }
+                // 在这里有可能把已提交和未提交事务的数据都保存了，
+                // 不过不要紧，如果在生成检查点之后系统崩溃了导致未提交事务不能正常完成，还有读时撤销机制保证数据完整性，
+                // 因为在保存未提交数据时，也同时保存了原来的数据，如果在读到未提交数据时发现了异常，就会进行撤销，
+                // 读时撤销机制在TransactionalValue类中实现。
+                save(list);
                 lastSavedAt = now;
                 logSyncService.checkpoint(nextEvenTransactionId());
+                return;
+            }
+
+            // 如果上面的条件都不满足，那么再看看已经提交的数据占用的预估总内存大小是否大于阈值
+            long totalEstimatedMemory = 0;
+            ArrayList<MapInfo> dirtyMaps = new ArrayList<>();
+            for (MapInfo mapInfo : maps.values()) {
+                int memory = mapInfo.estimatedMemory.get();
+                if (memory > 0 && !mapInfo.map.isClosed()) {
+                    mapInfo.memorySnapshot = memory;
+                    dirtyMaps.add(mapInfo);
+                    totalEstimatedMemory += memory;
+                }
+            }
+            if (totalEstimatedMemory <= committedDataCacheSize)
+                return;
+
+            // 只保存占用内存最多的那些map，直到剩下的降到阈值的一半，
+            // 这样不用每次都等所有的map保存完，每个map有自己的检查点
+            dirtyMaps.sort((m1, m2) -> Integer.compare(m2.memorySnapshot, m1.memorySnapshot));
+            long target = totalEstimatedMemory - committedDataCacheSize / 2;
+            long savedMemory = 0;
+            ArrayList<MapInfo> list = new ArrayList<>();
+            ArrayList<String> mapNames = new ArrayList<>();
+            for (MapInfo mapInfo : dirtyMaps) {
+                if (savedMemory >= target)
+                    break;
+                list.add(mapInfo);
+                mapNames.add(mapInfo.map.getName());
+                savedMemory += mapInfo.memorySnapshot;
+            }
+            save(list);
+            logSyncService.checkpoint(mapNames, nextEvenTransactionId());
+
+            // redo日志只能截断到所有map中最小的检查点，没有未保存数据的map不影响截断
+            int minChunkId = currentChunkId;
+            for (MapInfo mapInfo : maps.values()) {
+                if (mapInfo.estimatedMemory.get() > 0 && mapInfo.checkpointChunkId < minChunkId)
+                    minChunkId = mapInfo.checkpointChunkId;
+            }
+            logSyncService.getRedoLog().deleteOldChunkFiles(minChunkId);
+        }
+
+        // 多个map并行保存，单个大map不会拖慢其他map
+        private void save(List<MapInfo> list) {
+            if (list.isEmpty())
+                return;
+            if (list.size() == 1) {
+                save(list.get(0));
+                return;
+            }
+            ArrayList<Future<?>> futures = new ArrayList<>(list.size());
+            for (MapInfo mapInfo : list) {
+                futures.add(executorService.submit(() -> save(mapInfo)));
+            }
+            RuntimeException exception = null;
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (exception == null)
+                        exception = DbException.convert(e.getCause());
+                } catch (InterruptedException e) {
+                    if (exception == null)
+                        exception = DbException.convert(e);
+                }
+            }
+            if (exception != null)
+                throw exception;
+        }
+
+        private void save(MapInfo mapInfo) {
+            int chunkId = logSyncService.getRedoLog().getCurrentChunkId();
+            int memory = mapInfo.estimatedMemory.getAndSet(0);
+            long start = System.nanoTime();
+            try {
+                mapInfo.map.save();
+            } catch (Throwable t) {
+                mapInfo.estimatedMemory.addAndGet(memory);
+                throw t;
             }
+            metrics.recordCheckpoint(System.nanoTime() - start);
+            mapInfo.checkpointChunkId = chunkId;
         }
 
         @Override
@@ -375,6 +612,7 @@ public class AMTransactionEngine extends TransactionEngineBase implements Storag
                     logger.error("Failed to execute checkpoint", e);
                 }
             }
+            executorService.shutdown();
         }
     }
 }
@@ -19,15 +19,16 @@ package org.lealone.transaction.aote;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.DataUtils;
+import org.lealone.db.api.ErrorCode;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
 import org.lealone.db.async.Future;
@@ -39,10 +40,12 @@ import org.lealone.storage.PageKey;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageMapCursor;
-import org.lealone.storage.type.ObjectDataType;
 import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.aote.log.IncrementUndoLogRecord;
+import org.lealone.transaction.aote.log.OptimisticUndoLogRecord;
+import org.lealone.transaction.aote.log.UndoLog;
 import org.lealone.transaction.aote.log.UndoLogRecord;
 
 //只支持单机场景
@@ -84,6 +87,23 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
 
     // 获得当前事务能看到的值，依据不同的隔离级别看到的值是不一样的
     protected TransactionalValue getValue(K key, TransactionalValue data) {
+        // 乐观模式下当前事务的写操作还在写集中，增量修改也还没有写入map
+        OptimisticUndoLogRecord r = transaction.getPendingWrite(getName(), key);
+        if (r != null) {
+            if (r instanceof IncrementUndoLogRecord) {
+                // 读的时候把增量合并到当前能看到的值上
+                TransactionalValue tv = getVisibleValue(key, data);
+                if (tv == null || tv.getValue() == null)
+                    return null;
+                return TransactionalValue.createCommitted(((IncrementUndoLogRecord) r).apply(tv.getValue()));
+            }
+            TransactionalValue tv = r.getNewValue();
+            return tv.getValue() == null ? null : tv;
+        }
+        return getVisibleValue(key, data);
+    }
+
+    private TransactionalValue getVisibleValue(K key, TransactionalValue data) {
         // data为null说明记录不存在，data.getRefValue()为null说明是一个删除标记
         if (data == null || data.getRefValue() == null) {
             return null;
@@ -262,61 +282,22 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
      */
     @Override
     public long size() {
-        long sizeRaw = map.size();
-        long undoLogSize = 0;
-        for (AMTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
-            undoLogSize += t.undoLog.size();
-        }
-        if (undoLogSize == 0) {
-            return sizeRaw;
-        }
-        if (undoLogSize > sizeRaw) {
-            // the undo log is larger than the map -
-            // count the entries of the map
-            long size = 0;
-            StorageMapCursor<K, TransactionalValue> cursor = map.cursor();
-            while (cursor.hasNext()) {
-                K key = cursor.next();
-                TransactionalValue data = cursor.getValue();
-                data = getValue(key, data);
-                if (data != null && data.getValue() != null) {
-                    size++;
-                }
-            }
-            return size;
-        }
-        // the undo log is smaller than the map -
-        // scan the undo log and subtract invisible entries
-        // re-fetch in case any transaction was committed now
+        // 每个活跃事务都记录了自己在各个map中未提交的insert和delete个数，
+        // 所以只需要用map的原始记录数减去当前事务看不到的记录，不需要扫描undo log
         long size = map.size();
         String mapName = getName();
-        Storage storage = map.getStorage();
-        String tmpMapName = storage.nextTemporaryMapName();
-        StorageMap<Object, Integer> temp = storage.openMap(tmpMapName, new ObjectDataType(), new ObjectDataType(),
-                null);
-        try {
-            for (AMTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
-                LinkedList<UndoLogRecord> records = t.undoLog.getUndoLogRecords();
-                for (UndoLogRecord r : records) {
-                    String m = r.getMapName();
-                    if (!mapName.equals(m)) {
-                        // a different map - ignore
-                        continue;
-                    }
-                    @SuppressWarnings("unchecked")
-                    K key = (K) r.getKey();
-                    if (get(key) == null) {
-                        Integer old = temp.put(key, 1);
-                        // count each key only once (there might be multiple
-                        // changes for the same key)
-                        if (old == null) {
-                            size--;
-                        }
-                    }
-                }
-            }
-        } finally {
-            temp.remove();
+        boolean readUncommitted = transaction.getIsolationLevel() == Transaction.IL_READ_UNCOMMITTED;
+        for (AMTransaction t : transaction.transactionEngine.getCurrentTransactions()) {
+            UndoLog undoLog = t.undoLog;
+            if (undoLog == null) // 事务刚刚结束
+                continue;
+            UndoLog.RowCounter c = undoLog.getRowCounter(mapName);
+            if (c == null)
+                continue;
+            if (t == transaction || readUncommitted)
+                size += c.getReinserts() - c.getDeletes();
+            else
+                size -= c.getInserts();
         }
         return size;
     }
@@ -378,6 +359,7 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
     @SuppressWarnings("unchecked")
     @Override
     public K append(V value) { // 追加新记录时不会产生事务冲突
+        transaction.checkWritable();
         TransactionalValue ref = TransactionalValue.createRef(null);
         TransactionalValue newValue = TransactionalValue.createUncommitted(transaction, value, null, map.getValueType(),
                 null, ref);
@@ -677,7 +659,7 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
     @Override // 比put方法更高效，不需要返回值，所以也不需要事先调用get
     public void addIfAbsent(K key, V value, Transaction.Listener listener) {
         DataUtils.checkNotNull(value, "value");
-        transaction.checkNotClosed();
+        transaction.checkWritable();
         TransactionalValue ref = TransactionalValue.createRef();
         TransactionalValue newValue = TransactionalValue.createUncommitted(transaction, value, null, map.getValueType(),
                 null, ref);
@@ -688,9 +670,11 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
             if (ar.isSucceeded()) {
                 TransactionalValue old = ar.getResult();
                 if (old != null) {
-                    r.setUndone(true);
+                    transaction.undoLog.setUndone(r);
                     // 同一个事务，先删除再更新，因为删除记录时只是打了一个删除标记，存储层并没有真实删除
-                    if (old.getValue() == null || old.getValue() == ValueNull.INSTANCE) { // 辅助索引的值是ValueNull.INSTANCE
+                    // 乐观模式下删除操作还在写集中，map中的记录没有变
+                    if (old.getValue() == null || old.getValue() == ValueNull.INSTANCE
+                            || isPendingRemoved(key)) { // 辅助索引的值是ValueNull.INSTANCE
                         if (tryUpdate(key, value, old) == Transaction.OPERATION_COMPLETE) {
                             listener.operationComplete();
                             afterAddComplete();
@@ -708,7 +692,7 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
                     afterAddComplete();
                 }
             } else {
-                r.setUndone(true);
+                transaction.undoLog.setUndone(r);
                 listener.operationUndo();
             }
         };
@@ -718,9 +702,43 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
     protected void afterAddComplete() {
     }
 
+    private boolean isPendingRemoved(K key) {
+        if (!transaction.isOptimistic())
+            return false;
+        OptimisticUndoLogRecord r = transaction.getPendingWrite(getName(), key);
+        return r != null && r.getNewValue().getValue() == null;
+    }
+
+    // 乐观模式下不加锁也不等待，只把写操作放到事务的写集中，提交时再校验
+    @SuppressWarnings("unchecked")
+    private int addPendingWrite(K key, V value, int[] columnIndexes, TransactionalValue ref,
+            boolean isForUpdate) {
+        String mapName = getName();
+        OptimisticUndoLogRecord last = transaction.getPendingWrite(mapName, key);
+        if (last instanceof IncrementUndoLogRecord) {
+            if (!transaction.installPendingIncrement((IncrementUndoLogRecord) last))
+                throw DbException.get(ErrorCode.TRANSACTION_CONFLICT_1, mapName);
+        }
+        if (isForUpdate && last != null)
+            return Transaction.OPERATION_COMPLETE; // 已经在写集中了
+        // 同一个事务对同一条记录写多次时，基于写集中的上一次写操作
+        TransactionalValue expected = last != null ? last.getNewValue() : ref.getRefValue();
+        // 记录已经被其他事务修改了但还没提交，不能基于它写入，否则就是脏写
+        if (OptimisticUndoLogRecord.isUncommittedByOthers(expected, transaction.transactionId))
+            throw DbException.get(ErrorCode.TRANSACTION_CONFLICT_1, mapName);
+        if (isForUpdate)
+            value = (V) expected.getValue();
+        TransactionalValue newValue = TransactionalValue.createUncommitted(transaction, value, expected,
+                map.getValueType(), columnIndexes, ref);
+        transaction.addPendingWrite(new OptimisticUndoLogRecord(mapName, key, newValue.getOldValue(), newValue,
+                columnIndexes, isForUpdate, ref, expected));
+        return Transaction.OPERATION_COMPLETE;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public void append(V value, Transaction.Listener listener, AsyncHandler<AsyncResult<K>> topHandler) {
+        transaction.checkWritable();
         TransactionalValue ref = TransactionalValue.createRef(null);
         TransactionalValue newValue = TransactionalValue.createUncommitted(transaction, value, null, map.getValueType(),
                 null, ref);
@@ -748,21 +766,62 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         return tryUpdateOrRemove(key, null, null, (TransactionalValue) oldTransactionalValue);
     }
 
+    // 增量修改先放到写集中，不加锁，提交时再合并到最新的已提交值上。
+    // 分布式事务、复制模式以及当前事务已经用普通的写操作修改过这条记录时，按普通的更新处理
+    @Override
+    @SuppressWarnings("unchecked")
+    public int tryIncrement(K key, V oldValue, int[] columnIndexes, Object oldTransactionalValue,
+            UnaryOperator<V> op) {
+        DataUtils.checkNotNull(oldTransactionalValue, "oldTransactionalValue");
+        transaction.checkWritable();
+        TransactionalValue ref = (TransactionalValue) oldTransactionalValue;
+        String mapName = getName();
+        OptimisticUndoLogRecord last = transaction.getPendingWrite(mapName, key);
+        if (transaction.isShardingMode() || transaction.globalReplicationName != null
+                || (last != null && !(last instanceof IncrementUndoLogRecord))
+                || (last == null && (ref.getRefValue() == null || isWrittenBySelf(ref)))) {
+            return tryUpdate(key, op.apply(oldValue), columnIndexes, ref);
+        }
+        UnaryOperator<Object> increment = (UnaryOperator<Object>) op;
+        if (last != null) {
+            UnaryOperator<Object> prev = ((IncrementUndoLogRecord) last).getOperator();
+            UnaryOperator<Object> next = increment;
+            increment = v -> next.apply(prev.apply(v));
+        }
+        TransactionalValue head = ref.getRefValue();
+        TransactionalValue newValue = TransactionalValue.createCommitted(op.apply(oldValue));
+        transaction.addPendingWrite(new IncrementUndoLogRecord(transaction, mapName, key, head, newValue,
+                columnIndexes, ref, map.getValueType(), increment));
+        return Transaction.OPERATION_COMPLETE;
+    }
+
+    private boolean isWrittenBySelf(TransactionalValue ref) {
+        for (TransactionalValue tv = ref.getRefValue(); tv != null; tv = tv.getOldValue()) {
+            if (tv instanceof TransactionalValue.Uncommitted && tv.getTid() == transaction.transactionId)
+                return true;
+        }
+        return false;
+    }
+
     // 在SQL层对应update或delete语句，用于支持行锁和列锁。
     // 如果当前行(或列)已经被其他事务锁住了那么返回一个非Transaction.OPERATION_COMPLETE值表示更新或删除失败了，
     // 当前事务要让出当前线程。
     // 当value为null时代表delete，否则代表update。
     protected int tryUpdateOrRemove(K key, V value, int[] columnIndexes, TransactionalValue oldTransactionalValue) {
         DataUtils.checkNotNull(oldTransactionalValue, "oldTransactionalValue");
-        transaction.checkNotClosed();
+        transaction.checkWritable();
+        if (transaction.isOptimistic())
+            return addPendingWrite(key, value, columnIndexes, oldTransactionalValue, false);
         String mapName = getName();
+        if (!installPendingIncrement(key))
+            return addWaitingTransaction(key, oldTransactionalValue);
         // 进入循环前先取出原来的值
         TransactionalValue refValue = oldTransactionalValue.getRefValue();
         // 不同事务更新不同字段时，在循环里重试是可以的
         while (!oldTransactionalValue.isLocked(transaction.transactionId, columnIndexes)) {
             TransactionalValue newValue = TransactionalValue.createUncommitted(transaction, value, refValue,
                     map.getValueType(), columnIndexes, oldTransactionalValue);
-            transaction.undoLog.add(mapName, key, refValue, newValue);
+            transaction.undoLog.add(mapName, key, newValue.getOldValue(), newValue, columnIndexes, false);
             if (oldTransactionalValue.compareAndSet(refValue, newValue)) {
                 return Transaction.OPERATION_COMPLETE;
             } else {
@@ -779,6 +838,12 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
         return addWaitingTransaction(key, oldTransactionalValue);
     }
 
+    // 在普通的写操作之前先把同一条记录上还在写集中的增量修改写入map
+    private boolean installPendingIncrement(K key) {
+        IncrementUndoLogRecord r = transaction.getPendingIncrement(getName(), key);
+        return r == null || transaction.installPendingIncrement(r);
+    }
+
     @Override
     public int addWaitingTransaction(Object key, Object oldTransactionalValue, Transaction.Listener listener) {
         return addWaitingTransaction(key, (TransactionalValue) oldTransactionalValue, listener);
@@ -806,15 +871,17 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
     @Override
     public boolean tryLock(K key, Object oldTransactionalValue) {
         DataUtils.checkNotNull(oldTransactionalValue, "oldTransactionalValue");
-        transaction.checkNotClosed();
+        transaction.checkWritable();
         TransactionalValue ref = (TransactionalValue) oldTransactionalValue;
-        if (ref.isLocked(transaction.transactionId, null))
+        if (transaction.isOptimistic())
+            return addPendingWrite(key, null, null, ref, true) == Transaction.OPERATION_COMPLETE;
+        if (!installPendingIncrement(key) || ref.isLocked(transaction.transactionId, null))
             return false;
 
         TransactionalValue refValue = ref.getRefValue();
         TransactionalValue newValue = TransactionalValue.createUncommitted(transaction, refValue.getValue(), refValue,
                 map.getValueType(), null, ref);
-        transaction.undoLog.add(getName(), key, refValue, newValue, true);
+        transaction.undoLog.add(getName(), key, newValue.getOldValue(), newValue, true);
         if (ref.compareAndSet(refValue, newValue)) {
             return true;
         } else {
@@ -825,6 +892,9 @@ public class AMTransactionMap<K, V> implements TransactionMap<K, V> {
 
     @Override
     public boolean isLocked(Object oldValue, int[] columnIndexes) {
+        // 乐观模式下不等待其他事务释放锁，冲突留到提交时再检查
+        if (transaction.isOptimistic())
+            return false;
         TransactionalValue tv = ((TransactionalValue) oldValue);
         if (transaction.globalReplicationName != null
                 && transaction.globalReplicationName.equals(tv.getGlobalReplicationName()))
@@ -18,7 +18,9 @@
 package org.lealone.transaction.aote;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
@@ -34,6 +36,8 @@ import org.lealone.server.protocol.AckPacketHandler;
 import org.lealone.server.protocol.Packet;
 import org.lealone.server.protocol.dt.DTransactionValidate;
 import org.lealone.server.protocol.dt.DTransactionValidateAck;
+import org.lealone.server.protocol.dt.DTransactionValidateBatch;
+import org.lealone.server.protocol.dt.DTransactionValidateBatchAck;
 import org.lealone.server.protocol.replication.ReplicationCheckConflict;
 import org.lealone.server.protocol.replication.ReplicationCheckConflictAck;
 import org.lealone.server.protocol.replication.ReplicationHandleConflict;
@@ -43,7 +47,12 @@ import org.lealone.storage.replication.ConsistencyLevel;
 //DT表示Distributed Transaction，R表示Replication
 class DTRValidator {
 
-    private static final Map<String, DTStatusCache> hostAndPortMap = new HashMap<>();
+    // 多个调度线程会同时读写，所以用ConcurrentHashMap
+    private static final ConcurrentHashMap<String, DTStatusCache> hostAndPortMap = new ConcurrentHashMap<>();
+
+    // 缓存其他节点上的本地事务的效验结果，key: hostAndPort
+    // 值的含义跟DTStatusCache一样，只是有效的事务统一用0表示
+    private static final ConcurrentHashMap<String, DTStatusCache> remoteHostAndPortMap = new ConcurrentHashMap<>();
 
     // key: transactionName, value: [ allLocalTransactionNames, commitTimestamp ].
     private static final ConcurrentHashMap<String, Object[]> dTransactions = new ConcurrentHashMap<>();
@@ -51,15 +60,40 @@ class DTRValidator {
     // key: replicationName, value: replicationName.
     private static final ConcurrentHashMap<String, String> replications = new ConcurrentHashMap<>();
 
-    private static DTStatusCache newCache(String hostAndPort) {
-        synchronized (DTRValidator.class) {
-            DTStatusCache cache = hostAndPortMap.get(hostAndPort);
-            if (cache == null) {
-                cache = new DTStatusCache();
-                hostAndPortMap.put(hostAndPort, cache);
+    private static DTStatusCache getCache(ConcurrentHashMap<String, DTStatusCache> map, String hostAndPort) {
+        DTStatusCache cache = map.get(hostAndPort);
+        if (cache == null) {
+            cache = map.computeIfAbsent(hostAndPort, k -> new DTStatusCache());
+        }
+        return cache;
+    }
+
+    private static String getHostAndPort(String localTransactionName) {
+        int pos = localTransactionName.lastIndexOf(':');
+        return localTransactionName.substring(0, pos);
+    }
+
+    private static long getTid(String localTransactionName) {
+        int pos = localTransactionName.lastIndexOf(':');
+        return Long.parseLong(localTransactionName.substring(pos + 1));
+    }
+
+    // 按节点分组，同一个节点上的多个本地事务只需要发一个协议包
+    private static Map<String, List<String>> groupByHostAndPort(String[] allLocalTransactionNames,
+            String excludedName) {
+        HashMap<String, List<String>> map = new HashMap<>();
+        for (String localTransactionName : allLocalTransactionNames) {
+            if (localTransactionName.equals(excludedName))
+                continue;
+            String hostAndPort = getHostAndPort(localTransactionName);
+            List<String> names = map.get(hostAndPort);
+            if (names == null) {
+                names = new ArrayList<>();
+                map.put(hostAndPort, names);
             }
-            return cache;
+            names.add(localTransactionName);
         }
+        return map;
     }
 
     static void addTransaction(AOTransaction transaction, String allLocalTransactionNames) {
@@ -69,26 +103,26 @@ class DTRValidator {
     }
 
     private static void validateTransactionAsync(AOTransaction transaction, String[] allLocalTransactionNames) {
+        String localHostAndPort = NetNode.getLocalTcpHostAndPort();
+        Map<String, List<String>> map = groupByHostAndPort(allLocalTransactionNames, null);
+        map.remove(localHostAndPort);
+        if (map.isEmpty())
+            return;
         AtomicBoolean isFullSuccessful = new AtomicBoolean(true);
-        AtomicInteger size = new AtomicInteger(allLocalTransactionNames.length);
-        AckPacketHandler<Void, DTransactionValidateAck> handler = ack -> {
-            isFullSuccessful.compareAndSet(true, ack.isValid);
-            int index = size.decrementAndGet();
-            if (index == 0 && isFullSuccessful.get()) {
+        AtomicInteger size = new AtomicInteger(map.size());
+        AckPacketHandler<Void, DTransactionValidateBatchAck> handler = ack -> {
+            for (boolean isValid : ack.isValid) {
+                if (!isValid)
+                    isFullSuccessful.set(false);
+            }
+            if (size.decrementAndGet() == 0 && isFullSuccessful.get()) {
                 transaction.commitAfterValidate(transaction.transactionId);
             }
             return null;
         };
-        String localHostAndPort = NetNode.getLocalTcpHostAndPort();
-        for (String localTransactionName : allLocalTransactionNames) {
-            if (!localTransactionName.startsWith(localHostAndPort)) {
-                String[] a = localTransactionName.split(":");
-                String hostAndPort = a[0] + ":" + a[1];
-                DTransactionValidate packet = new DTransactionValidate(localTransactionName);
-                transaction.getSession().send(packet, hostAndPort, handler);
-            } else {
-                size.decrementAndGet();
-            }
+        for (Map.Entry<String, List<String>> e : map.entrySet()) {
+            String[] names = e.getValue().toArray(new String[0]);
+            transaction.getSession().send(new DTransactionValidateBatch(names), e.getKey(), handler);
         }
     }
 
@@ -108,10 +142,7 @@ class DTRValidator {
      * @return true 有效 
      */
     static boolean validateTransaction(String hostAndPort, long oldTid, AOTransaction currentTransaction) {
-        DTStatusCache cache = hostAndPortMap.get(hostAndPort);
-        if (cache == null) {
-            cache = newCache(hostAndPort);
-        }
+        DTStatusCache cache = getCache(hostAndPortMap, hostAndPort);
         long commitTimestamp = cache.get(oldTid);
         // 1.上一次已经查过了，已确认过是条无效的记录
         if (commitTimestamp == -2)
@@ -128,16 +159,8 @@ class DTRValidator {
 
         commitTimestamp = (long) v[1];
         String[] allLocalTransactionNames = ((String) v[0]).split(",");
-        boolean isFullSuccessful = true;
-
-        for (String localTransactionName : allLocalTransactionNames) {
-            if (!oldTransactionName.equals(localTransactionName)) {
-                if (!validateRemoteTransaction(localTransactionName, currentTransaction.getSession())) {
-                    isFullSuccessful = false;
-                    break;
-                }
-            }
-        }
+        boolean isFullSuccessful = validateRemoteTransactions(allLocalTransactionNames, oldTransactionName,
+                currentTransaction.getSession());
 
         // TODO 如果前一个事务没有结束，如何让它结束或是等它结束。
         if (isFullSuccessful) {
@@ -149,10 +172,47 @@ class DTRValidator {
         }
     }
 
-    private static boolean validateRemoteTransaction(String localTransactionName, Session session) {
-        String[] a = localTransactionName.split(":");
-        String hostAndPort = a[0] + ":" + a[1];
-        return validateRemoteTransaction(hostAndPort, localTransactionName, session);
+    // 先查缓存，没有缓存的按节点分组，每个节点只发一个协议包，所有节点的包都发出去后再一起等待结果
+    private static boolean validateRemoteTransactions(String[] allLocalTransactionNames, String excludedName,
+            Session session) {
+        Map<String, List<String>> map = groupByHostAndPort(allLocalTransactionNames, excludedName);
+        ArrayList<String> hostAndPorts = new ArrayList<>(map.size());
+        ArrayList<String[]> namesList = new ArrayList<>(map.size());
+        for (Map.Entry<String, List<String>> e : map.entrySet()) {
+            DTStatusCache cache = getCache(remoteHostAndPortMap, e.getKey());
+            ArrayList<String> names = new ArrayList<>(e.getValue().size());
+            for (String localTransactionName : e.getValue()) {
+                long status = cache.get(getTid(localTransactionName));
+                if (status == -2)
+                    return false;
+                else if (status == -1)
+                    names.add(localTransactionName);
+            }
+            if (!names.isEmpty()) {
+                hostAndPorts.add(e.getKey());
+                namesList.add(names.toArray(new String[0]));
+            }
+        }
+        if (namesList.isEmpty())
+            return true;
+
+        ArrayList<Future<DTransactionValidateBatchAck>> acks = new ArrayList<>(namesList.size());
+        for (int i = 0, size = namesList.size(); i < size; i++) {
+            DTransactionValidateBatch packet = new DTransactionValidateBatch(namesList.get(i));
+            acks.add(session.send(packet, hostAndPorts.get(i)));
+        }
+        boolean isFullSuccessful = true;
+        for (int i = 0, size = acks.size(); i < size; i++) {
+            DTStatusCache cache = getCache(remoteHostAndPortMap, hostAndPorts.get(i));
+            String[] names = namesList.get(i);
+            boolean[] isValid = acks.get(i).get().isValid;
+            for (int j = 0; j < names.length; j++) {
+                cache.set(getTid(names[j]), isValid[j] ? 0 : -2);
+                if (!isValid[j])
+                    isFullSuccessful = false;
+            }
+        }
+        return isFullSuccessful;
     }
 
     private static boolean validateRemoteTransaction(String hostAndPort, String localTransactionName, Session session) {
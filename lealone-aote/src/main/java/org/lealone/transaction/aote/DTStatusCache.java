@@ -17,7 +17,8 @@
  */
 package org.lealone.transaction.aote;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.lealone.db.Constants;
 
@@ -38,14 +39,17 @@ class DTStatusCache {
     private static final int BUCKET_SIZE = Integer.valueOf(System.getProperty(
             Constants.PROJECT_NAME_PREFIX + "transaction.status.cache.bucket.size", Integer.toString(1 << 14)));
 
-    private final Bucket buckets[] = new Bucket[BUCKET_NUMBER];
+    // 桶和桶中的槽都是原子的，读写都不需要加锁
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKET_NUMBER);
 
-    public synchronized void set(long tid, long timestamp) {
+    public void set(long tid, long timestamp) {
         int position = getPosition(tid);
-        Bucket bucket = buckets[position];
+        Bucket bucket = buckets.get(position);
         if (bucket == null) {
             bucket = new Bucket();
-            buckets[position] = bucket;
+            // 其他线程已经创建了就用它的
+            if (!buckets.compareAndSet(position, null, bucket))
+                bucket = buckets.get(position);
         }
         bucket.set(tid, timestamp);
     }
@@ -56,7 +60,7 @@ class DTStatusCache {
      * @return -1: 事务状态未知; -2: 事务未正常提交; 其他值: 事务正常提交
      */
     public long get(long tid) {
-        Bucket bucket = buckets[getPosition(tid)];
+        Bucket bucket = buckets.get(getPosition(tid));
         if (bucket == null) {
             return -1;
         }
@@ -69,18 +73,19 @@ class DTStatusCache {
     }
 
     private static class Bucket {
-        private final long tids[] = new long[BUCKET_SIZE];
+        private final AtomicLongArray tids = new AtomicLongArray(BUCKET_SIZE);
 
         Bucket() {
-            Arrays.fill(tids, -1);
+            for (int i = 0; i < BUCKET_SIZE; i++)
+                tids.lazySet(i, -1);
         }
 
         long get(long tid) {
-            return tids[(int) (tid % BUCKET_SIZE)];
+            return tids.get((int) (tid % BUCKET_SIZE));
         }
 
         void set(long tid, long timestamp) {
-            tids[(int) (tid % BUCKET_SIZE)] = timestamp;
+            tids.set((int) (tid % BUCKET_SIZE), timestamp);
         }
     }
 }
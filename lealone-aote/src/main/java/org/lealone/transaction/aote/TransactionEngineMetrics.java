@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// 事务引擎的运行时统计信息，可以通过INFORMATION_SCHEMA.TRANSACTION_METRICS表和JMX查看
+// 热点路径上只做LongAdder的累加，多个线程并发记录时不会竞争同一个变量
+public class TransactionEngineMetrics implements TransactionEngineMetricsMXBean {
+
+    // 时间的单位都是微秒
+    final Histogram logSyncQueueTime = new Histogram("log_sync_queue_time_us");
+    final Histogram fsyncTime = new Histogram("fsync_time_us");
+    final Histogram syncBytes = new Histogram("sync_bytes");
+    final Histogram syncRecords = new Histogram("sync_records");
+    final Histogram lockWaitTime = new Histogram("lock_wait_time_us");
+    final Histogram undoLogSize = new Histogram("undo_log_size");
+    final Histogram checkpointMapTime = new Histogram("checkpoint_map_time_us");
+
+    private final Histogram[] histograms = { logSyncQueueTime, fsyncTime, syncBytes, syncRecords, lockWaitTime,
+            undoLogSize, checkpointMapTime };
+
+    private final AMTransactionEngine engine;
+
+    TransactionEngineMetrics(AMTransactionEngine engine) {
+        this.engine = engine;
+    }
+
+    public void recordLogSync(long queueNanos, long fsyncNanos, long bytes, int records) {
+        logSyncQueueTime.record(queueNanos / 1000);
+        fsyncTime.record(fsyncNanos / 1000);
+        syncBytes.record(bytes);
+        syncRecords.record(records);
+    }
+
+    void recordLockWait(long waitNanos) {
+        lockWaitTime.record(waitNanos / 1000);
+    }
+
+    void recordUndoLogSize(int size) {
+        undoLogSize.record(size);
+    }
+
+    void recordCheckpoint(long nanos) {
+        checkpointMapTime.record(nanos / 1000);
+    }
+
+    public Histogram getHistogram(String name) {
+        for (Histogram h : histograms) {
+            if (h.name.equals(name))
+                return h;
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getMetrics() {
+        LinkedHashMap<String, String> metrics = new LinkedHashMap<>();
+        for (Histogram h : histograms) {
+            h.addTo(metrics);
+        }
+        metrics.put("optimistic_commits", Long.toString(engine.getOptimisticCommitCount()));
+        metrics.put("optimistic_aborts", Long.toString(engine.getOptimisticAbortCount()));
+        metrics.put("current_transactions", Integer.toString(engine.getCurrentTransactionCount()));
+        return metrics;
+    }
+
+    @Override
+    public double getOptimisticAbortRate() {
+        return engine.getOptimisticAbortRate();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram h : histograms) {
+            h.reset();
+        }
+    }
+
+    // 按2的幂分桶的直方图，百分位数只精确到所在桶的上界
+    public static class Histogram {
+
+        private static final int BUCKET_COUNT = 64;
+
+        private final String name;
+        private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKET_COUNT; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+            // 0在第0个桶，[2^(i-1), 2^i - 1]在第i个桶
+            buckets[Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder b : buckets)
+                count += b.sum();
+            return count;
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        public long getPercentile(double percentile) {
+            long[] counts = new long[BUCKET_COUNT];
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            if (count == 0)
+                return 0;
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= target && counts[i] > 0)
+                    return Math.min(getMax(), i == 0 ? 0 : (1L << i) - 1);
+            }
+            return getMax();
+        }
+
+        void reset() {
+            for (LongAdder b : buckets)
+                b.reset();
+            sum.reset();
+            max.reset();
+        }
+
+        void addTo(Map<String, String> metrics) {
+            metrics.put(name + ".count", Long.toString(getCount()));
+            metrics.put(name + ".mean", Long.toString(Math.round(getMean())));
+            metrics.put(name + ".p50", Long.toString(getPercentile(0.5)));
+            metrics.put(name + ".p99", Long.toString(getPercentile(0.99)));
+            metrics.put(name + ".max", Long.toString(getMax()));
+        }
+    }
+}
@@ -109,7 +109,7 @@ public interface TransactionalValue {
         if (tid == 0) {
             Object value = TransactionalValue.readValue(buff, valueType);
             // 需要返回引用，否则无法在修改和删除时使用CAS
-            return createRef(TransactionalValue.createCommitted(value));
+            return createCommittedRef(value);
         } else {
             return createRef(Uncommitted.read(tid, valueType, buff, oldValueType));
         }
@@ -117,6 +117,8 @@ public interface TransactionalValue {
 
     public static TransactionalValue createUncommitted(AMTransaction transaction, Object value,
             TransactionalValue oldValue, StorageDataType oldValueType, int[] columnIndexes, TransactionalValue ref) {
+        if (oldValue instanceof CommittedRef)
+            oldValue = ((CommittedRef) oldValue).toCommitted();
         boolean rowLock = false;
         if (oldValue == null || oldValue instanceof Exclusive) { // insert
             rowLock = true;
@@ -150,6 +152,10 @@ public interface TransactionalValue {
         return new Committed(value);
     }
 
+    public static TransactionalValue createCommittedRef(Object value) {
+        return new CommittedRef(value);
+    }
+
     // 因为每条记录都对应此类的一个实例，所以为了节约内存没有直接使用java.util.concurrent.atomic.AtomicReference
     public static class TransactionalValueRef implements TransactionalValue {
 
@@ -289,6 +295,183 @@ public interface TransactionalValue {
         }
     }
 
+    // 已提交的记录占了绝大多数，如果每条都用TransactionalValueRef包装一个Committed，会多出一个对象，
+    // 所以把两者合并成一个对象: 没有被修改时tv指向自身，此时它就是一个Committed，
+    // 有事务修改它时再通过CAS把tv换成Uncommitted，此时它只是一个引用。
+    static class CommittedRef extends TransactionalValueRef {
+
+        private final Object value;
+
+        CommittedRef(Object value) {
+            super(null);
+            this.value = value;
+            setRefValue(this);
+        }
+
+        // 当前对象的tv字段会被修改，所以作为其他TransactionalValue的oldValue时要用一个独立的Committed
+        TransactionalValue toCommitted() {
+            return new Committed(value);
+        }
+
+        @Override
+        public String toString() {
+            TransactionalValue tv = getRefValue();
+            if (tv == this) {
+                StringBuilder buff = new StringBuilder("CommittedRef[ ");
+                buff.append(value).append(" ]");
+                return buff.toString();
+            }
+            return super.toString();
+        }
+
+        @Override
+        public Object getValue() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? value : tv.getValue();
+        }
+
+        @Override
+        public TransactionalValue getOldValue() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? null : tv.getOldValue();
+        }
+
+        @Override
+        public void setOldValue(TransactionalValue oldValue) {
+            TransactionalValue tv = getRefValue();
+            if (tv != this)
+                tv.setOldValue(oldValue);
+        }
+
+        @Override
+        public long getTid() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? 0 : tv.getTid();
+        }
+
+        @Override
+        public int getLogId() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? 0 : tv.getLogId();
+        }
+
+        @Override
+        public boolean isLocked(long tid, int[] columnIndexes) {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? false : tv.isLocked(tid, columnIndexes);
+        }
+
+        @Override
+        public String getHostAndPort() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? null : tv.getHostAndPort();
+        }
+
+        @Override
+        public String getGlobalReplicationName() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? null : tv.getGlobalReplicationName();
+        }
+
+        @Override
+        public boolean isReplicated() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? false : tv.isReplicated();
+        }
+
+        @Override
+        public void setReplicated(boolean replicated) {
+            TransactionalValue tv = getRefValue();
+            if (tv != this)
+                tv.setReplicated(replicated);
+        }
+
+        @Override
+        public void incrementVersion() {
+            TransactionalValue tv = getRefValue();
+            if (tv != this)
+                tv.incrementVersion();
+        }
+
+        @Override
+        public <K> TransactionalValue undo(StorageMap<K, TransactionalValue> map, K key) {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? this : tv.undo(map, key);
+        }
+
+        @Override
+        public TransactionalValue getCommitted() {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? this : tv.getCommitted();
+        }
+
+        @Override
+        public TransactionalValue getCommitted(AMTransaction transaction) {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? this : tv.getCommitted(transaction);
+        }
+
+        @Override
+        public TransactionalValue commit(long tid) {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? this : tv.commit(tid);
+        }
+
+        @Override
+        public void rollback() {
+            TransactionalValue tv = getRefValue();
+            if (tv != this)
+                tv.rollback();
+        }
+
+        @Override
+        public TransactionalValue remove(long tid) {
+            TransactionalValue tv = getRefValue();
+            return tv == this ? this : tv.remove(tid);
+        }
+
+        @Override
+        public boolean isCommitted() {
+            TransactionalValue tv = getRefValue();
+            return tv == this || tv == null || tv.isCommitted();
+        }
+
+        @Override
+        public void write(DataBuffer buff, StorageDataType valueType) {
+            TransactionalValue tv = getRefValue();
+            if (tv == this) {
+                writeMeta(buff);
+                writeValue(buff, valueType);
+            } else {
+                tv.write(buff, valueType);
+            }
+        }
+
+        @Override
+        public void writeMeta(DataBuffer buff) {
+            TransactionalValue tv = getRefValue();
+            if (tv == this)
+                buff.putVarLong(0);
+            else
+                tv.writeMeta(buff);
+        }
+
+        @Override
+        public void writeValue(DataBuffer buff, StorageDataType valueType) {
+            TransactionalValue tv = getRefValue();
+            if (tv == this) {
+                if (value == null) {
+                    buff.put((byte) 0);
+                } else {
+                    buff.put((byte) 1);
+                    valueType.write(buff, value);
+                }
+            } else {
+                tv.writeValue(buff, valueType);
+            }
+        }
+    }
+
     static abstract class TransactionalValueBase implements TransactionalValue {
 
         public final Object value;
@@ -475,7 +658,7 @@ public interface TransactionalValue {
                 switch (transaction.getIsolationLevel()) {
                 case Transaction.IL_REPEATABLE_READ:
                 case Transaction.IL_SERIALIZABLE:
-                    if (transaction.transactionId >= version)
+                    if (transaction.snapshot >= version)
                         return this;
                     else if (oldValue != null) {
                         return oldValue.getCommitted(transaction);
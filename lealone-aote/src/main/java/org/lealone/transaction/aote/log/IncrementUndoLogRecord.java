@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote.log;
+
+import java.util.function.UnaryOperator;
+
+import org.lealone.storage.type.StorageDataType;
+import org.lealone.transaction.aote.AMTransaction;
+import org.lealone.transaction.aote.TransactionalValue;
+
+// 可交换的增量修改(比如计数器加1)，执行语句时不加锁也不修改map中的记录，
+// 提交时才把增量合并到最新的已提交值上，所以并发修改同一条记录的事务不用等到对方提交。
+// 同一个事务对同一条记录的多次增量修改会合成一个，只有写集中最后的那个需要写入
+public class IncrementUndoLogRecord extends OptimisticUndoLogRecord {
+
+    private final AMTransaction transaction;
+    private final StorageDataType valueType;
+    private final UnaryOperator<Object> op;
+
+    public IncrementUndoLogRecord(AMTransaction transaction, String mapName, Object key,
+            TransactionalValue oldValue, TransactionalValue newValue, int[] columnIndexes, TransactionalValue ref,
+            StorageDataType valueType, UnaryOperator<Object> op) {
+        super(mapName, key, oldValue, newValue, columnIndexes, false, ref, oldValue);
+        this.transaction = transaction;
+        this.valueType = valueType;
+        this.op = op;
+    }
+
+    public UnaryOperator<Object> getOperator() {
+        return op;
+    }
+
+    public Object apply(Object value) {
+        return op.apply(value);
+    }
+
+    // 把增量合并到committed上，然后像普通的更新一样放到记录的最前面，直到事务结束才释放字段上的锁
+    public boolean install(AMTransaction transaction, TransactionalValue head, TransactionalValue committed) {
+        TransactionalValue ref = getRef();
+        TransactionalValue newValue = TransactionalValue.createUncommitted(transaction, op.apply(committed.getValue()),
+                head, valueType, getColumnIndexes(), ref);
+        if (ref.compareAndSet(head, newValue)) {
+            setValues(newValue.getOldValue(), newValue);
+            setInstalled(true);
+            return true;
+        }
+        return false;
+    }
+
+    // 不等待的写入，记录上还有其他事务未提交的修改时返回false，否则合并到最新的已提交值上
+    @Override
+    public boolean install() {
+        TransactionalValue head = getRef().getRefValue();
+        for (TransactionalValue tv = head; tv != null; tv = tv.getOldValue()) {
+            if (isUncommittedByOthers(tv, transaction.getTransactionId()))
+                return false;
+        }
+        TransactionalValue committed = head == null ? null : head.getCommitted();
+        if (committed == null || committed.getValue() == null)
+            return false;
+        return install(transaction, head, committed);
+    }
+}
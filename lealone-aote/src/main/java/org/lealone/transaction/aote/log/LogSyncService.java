@@ -18,13 +18,16 @@
 package org.lealone.transaction.aote.log;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.common.concurrent.WaitQueue;
 import org.lealone.transaction.aote.AMTransaction;
+import org.lealone.transaction.aote.TransactionEngineMetrics;
 
 public abstract class LogSyncService extends Thread {
 
@@ -44,6 +47,14 @@ public abstract class LogSyncService extends Thread {
     protected boolean running = true;
     protected RedoLog redoLog;
 
+    // 提前释放锁时，事务的redo日志一进入队列其他事务就能看到它的数据，
+    // 看到这些数据的事务要等这些日志同步完成后才能通知客户端提交成功
+    private final boolean earlyLockRelease;
+    // 每加入一条redo日志递增一次，用来判断哪些日志已经同步完成
+    private final AtomicLong lastQueuedLsn = new AtomicLong();
+    private final AtomicLong lastEarlyReleasedLsn = new AtomicLong();
+    private volatile long lastSyncedLsn;
+
     public LogSyncService(Map<String, String> config) {
         setName(getClass().getSimpleName());
         setDaemon(true);
@@ -51,6 +62,7 @@ public abstract class LogSyncService extends Thread {
             redoLogRecordSyncThreshold = Integer.parseInt(config.get("redo_log_record_sync_threshold"));
         else
             redoLogRecordSyncThreshold = 100;
+        earlyLockRelease = Boolean.parseBoolean(config.get("early_lock_release"));
     }
 
     public RedoLog getRedoLog() {
@@ -97,39 +109,89 @@ public abstract class LogSyncService extends Thread {
     }
 
     private void sync() {
+        // 事务总是先加redo日志再进入transactions队列，所以先取出事务再保存，
+        // 保证这些事务的日志一定在这次保存的日志中
+        long lsn = lastQueuedLsn.get();
+        ArrayList<AMTransaction> oldTransactions = null;
+        if (!transactions.isEmpty()) {
+            oldTransactions = new ArrayList<>(transactions.size());
+            transactions.drainTo(oldTransactions);
+        }
         if (redoLog != null)
             redoLog.save();
-        notifyComplete();
+        lastSyncedLsn = lsn;
+        if (oldTransactions != null)
+            notifyComplete(oldTransactions);
     }
 
-    private void notifyComplete() {
-        if (transactions.isEmpty())
-            return;
-        ArrayList<AMTransaction> oldTransactions = new ArrayList<>(transactions.size());
-        transactions.drainTo(oldTransactions);
+    private void notifyComplete(ArrayList<AMTransaction> oldTransactions) {
         for (AMTransaction t : oldTransactions) {
             t.asyncCommitComplete();
         }
     }
 
     public void addRedoLogRecord(RedoLogRecord r) {
-        redoLog.addRedoLogRecord(r);
+        addToRedoLog(r);
         // 对于需要立即做同步的场景，及时唤醒日志同步线程
         if (isInstantSync())
             haveWork.release();
     }
 
     public void addAndMaybeWaitForSync(RedoLogRecord r) {
-        redoLog.addRedoLogRecord(r);
+        addToRedoLog(r);
         maybeWaitForSync(r);
     }
 
+    private long addToRedoLog(RedoLogRecord r) {
+        redoLog.addRedoLogRecord(r);
+        return lastQueuedLsn.incrementAndGet();
+    }
+
+    // 只有需要立即同步日志时提前释放锁才有意义
+    public boolean isEarlyLockRelease() {
+        return earlyLockRelease && isInstantSync();
+    }
+
+    public void addEarlyLockReleaseRedoLogRecord(RedoLogRecord r) {
+        long lsn = addToRedoLog(r);
+        lastEarlyReleasedLsn.accumulateAndGet(lsn, Math::max);
+        haveWork.release();
+    }
+
+    // 是否还有提前释放锁的事务的日志没有同步完成
+    public boolean hasCommitDependency() {
+        return lastEarlyReleasedLsn.get() > lastSyncedLsn;
+    }
+
+    public void waitForCommitDependency() {
+        long lsn = lastEarlyReleasedLsn.get();
+        haveWork.release();
+        while (lastSyncedLsn < lsn && running) {
+            WaitQueue.Signal signal = syncComplete.register();
+            if (lastSyncedLsn >= lsn || !running) {
+                signal.cancel();
+                return;
+            }
+            signal.awaitUninterruptibly();
+        }
+    }
+
     public void checkpoint(long checkpointId) {
         RedoLogRecord r = RedoLogRecord.createCheckpoint(checkpointId);
         addRedoLogRecord(r);
         maybeWaitForSync(r);
     }
 
+    public void checkpoint(List<String> mapNames, long checkpointId) {
+        RedoLogRecord r = null;
+        for (String mapName : mapNames) {
+            r = RedoLogRecord.createMapCheckpoint(mapName, checkpointId);
+            addRedoLogRecord(r);
+        }
+        if (r != null)
+            maybeWaitForSync(r);
+    }
+
     public boolean isInstantSync() {
         return false;
     }
@@ -138,7 +200,7 @@ public abstract class LogSyncService extends Thread {
         return true;
     }
 
-    public static LogSyncService create(Map<String, String> config) {
+    public static LogSyncService create(Map<String, String> config, TransactionEngineMetrics metrics) {
         LogSyncService logSyncService;
         String logSyncType = config.get("log_sync_type");
         if (logSyncType == null || LOG_SYNC_TYPE_PERIODIC.equalsIgnoreCase(logSyncType))
@@ -149,7 +211,7 @@ public abstract class LogSyncService extends Thread {
             logSyncService = new NoLogSyncService(config);
         else
             throw new IllegalArgumentException("Unknow log_sync_type: " + logSyncType);
-        logSyncService.redoLog = new RedoLog(config);
+        logSyncService.redoLog = new RedoLog(config, metrics);
         return logSyncService;
     }
 }
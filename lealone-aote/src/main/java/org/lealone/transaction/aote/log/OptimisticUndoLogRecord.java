@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction.aote.log;
+
+import org.lealone.db.DataBuffer;
+import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.TransactionalValue;
+
+// 乐观模式下的写操作先放在事务私有的写集中，不修改map中的记录，也不加锁，
+// 提交时再校验记录有没有被其他事务改过，没有冲突才一次性写入
+public class OptimisticUndoLogRecord extends UndoLogRecord {
+
+    private final TransactionalValue ref;
+    private final TransactionalValue expected; // 写操作发生时看到的记录
+    private boolean installed;
+
+    public OptimisticUndoLogRecord(String mapName, Object key, TransactionalValue oldValue,
+            TransactionalValue newValue, int[] columnIndexes, boolean isForUpdate, TransactionalValue ref,
+            TransactionalValue expected) {
+        super(mapName, key, oldValue, newValue, columnIndexes, isForUpdate);
+        this.ref = ref;
+        this.expected = expected;
+    }
+
+    public TransactionalValue getRef() {
+        return ref;
+    }
+
+    public boolean isInstalled() {
+        return installed;
+    }
+
+    void setInstalled(boolean installed) {
+        this.installed = installed;
+    }
+
+    public boolean install() {
+        // 基于其他事务未提交的值写入就是脏写，当成冲突处理
+        if (isUncommittedByOthers(expected, getNewValue().getTid()))
+            return false;
+        installed = ref.compareAndSet(expected, getNewValue());
+        return installed;
+    }
+
+    public static boolean isUncommittedByOthers(TransactionalValue tv, long tid) {
+        return tv != null && !tv.isCommitted() && tv.getTid() != tid;
+    }
+
+    @Override
+    public void commit(AMTransactionEngine transactionEngine, long tid) {
+        if (installed)
+            super.commit(transactionEngine, tid);
+    }
+
+    // 没有写入的记录不需要撤销
+    @Override
+    public void rollback(AMTransactionEngine transactionEngine) {
+        if (installed)
+            super.rollback(transactionEngine);
+    }
+
+    @Override
+    public void writeForRedo(DataBuffer writeBuffer, AMTransactionEngine transactionEngine) {
+        if (installed)
+            super.writeForRedo(writeBuffer, transactionEngine);
+    }
+}
@@ -25,11 +25,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.DataUtils;
 import org.lealone.db.Constants;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.type.StorageDataType;
+import org.lealone.transaction.aote.TransactionEngineMetrics;
 import org.lealone.transaction.aote.TransactionalValue;
 import org.lealone.transaction.aote.TransactionalValueType;
 
@@ -48,10 +51,12 @@ public class RedoLog {
     private final HashMap<String, List<ByteBuffer>> pendingRedoLog = new HashMap<>();
     private final Map<String, String> config;
     private final long logChunkSize;
+    private final TransactionEngineMetrics metrics;
 
-    private RedoLogChunk currentChunk;
+    private volatile RedoLogChunk currentChunk;
 
-    RedoLog(Map<String, String> config) {
+    RedoLog(Map<String, String> config, TransactionEngineMetrics metrics) {
+        this.metrics = metrics;
         this.config = config;
         if (config.containsKey("log_chunk_size"))
             logChunkSize = Long.parseLong(config.get("log_chunk_size"));
@@ -110,30 +115,70 @@ public class RedoLog {
     }
 
     // 第一次打开底层存储的map时调用这个方法，重新执行一次上次已经成功并且在检查点之后的事务操作
+    // 返回redo的记录数
     @SuppressWarnings("unchecked")
-    public <K> void redo(StorageMap<K, TransactionalValue> map) {
+    public <K> int redo(StorageMap<K, TransactionalValue> map) {
         List<ByteBuffer> pendingKeyValues = pendingRedoLog.remove(map.getName());
-        if (pendingKeyValues != null && !pendingKeyValues.isEmpty()) {
+        if (pendingKeyValues == null)
+            return 0;
+        if (!pendingKeyValues.isEmpty()) {
             StorageDataType kt = map.getKeyType();
             StorageDataType vt = ((TransactionalValueType) map.getValueType()).valueType;
             for (ByteBuffer kv : pendingKeyValues) {
                 K key = (K) kt.read(kv);
-                if (kv.get() == 0)
+                byte type = kv.get();
+                if (type == UndoLogRecord.REDO_TYPE_REMOVE)
                     map.remove(key);
                 else {
-                    Object value = vt.read(kv);
+                    Object value;
+                    if (type == UndoLogRecord.REDO_TYPE_COLUMNS)
+                        value = readColumns(map, key, vt, kv);
+                    else
+                        value = vt.read(kv);
                     // 需要返回引用，否则无法在修改和删除时使用CAS
-                    TransactionalValue ref = TransactionalValue.createRef(TransactionalValue.createCommitted(value));
+                    TransactionalValue ref = TransactionalValue.createCommittedRef(value);
                     map.put(key, ref);
                 }
             }
         }
+        return pendingKeyValues.size();
+    }
+
+    // 把redo日志中被更新的字段合并到原有记录中，原有记录要么已经存盘，要么在前面的redo日志中
+    private static <K> Object readColumns(StorageMap<K, TransactionalValue> map, K key, StorageDataType vt,
+            ByteBuffer kv) {
+        TransactionalValue old = map.get(key);
+        if (old == null || old.getValue() == null) {
+            throw DbException.throwInternalError("Base row not found, map: " + map.getName() + ", key: " + key);
+        }
+        int columnCount = vt.getColumnCount();
+        Object value = vt.readMeta(kv, columnCount);
+        int[] columnIndexes = new int[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columnIndexes[i] = i;
+        }
+        vt.setColumns(value, old.getValue(), columnIndexes);
+        int len = DataUtils.readVarInt(kv);
+        for (int i = 0; i < len; i++) {
+            int columnIndex = DataUtils.readVarInt(kv);
+            vt.readColumn(kv, value, columnIndex);
+        }
+        return value;
     }
 
     int size() {
         return currentChunk.size();
     }
 
+    public int getCurrentChunkId() {
+        return currentChunk.getId();
+    }
+
+    // 所有map都已经保存了endId之前的chunk中的redo日志，这些chunk文件可以删除了
+    public void deleteOldChunkFiles(int endId) {
+        RedoLogChunk.deleteOldChunkFiles(config, Math.min(endId, getCurrentChunkId()));
+    }
+
     void addRedoLogRecord(RedoLogRecord r) {
         currentChunk.addRedoLogRecord(r);
     }
@@ -144,7 +189,7 @@ public class RedoLog {
     }
 
     void save() {
-        currentChunk.save();
+        currentChunk.save(metrics);
         if (currentChunk.logChunkSize() > logChunkSize) {
             currentChunk.close();
             currentChunk = new RedoLogChunk(currentChunk.getId() + 1, config);
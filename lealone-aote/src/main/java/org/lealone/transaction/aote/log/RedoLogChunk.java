@@ -26,6 +26,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.lealone.db.DataBuffer;
 import org.lealone.storage.fs.FileStorage;
 import org.lealone.storage.fs.FileUtils;
+import org.lealone.transaction.aote.TransactionEngineMetrics;
 
 /**
  * A queue-based redo log chunk
@@ -50,6 +51,8 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
     private final AtomicInteger logQueueSize = new AtomicInteger(0);
     private LinkedTransferQueue<RedoLogRecord> logQueue;
     private long pos;
+    // 当前这一组日志中第一条进入队列的时间，用来统计日志排队等待同步的时间
+    private volatile long firstQueuedAt;
 
     RedoLogChunk(int id, Map<String, String> config) {
         this.id = id;
@@ -84,6 +87,8 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
     void addRedoLogRecord(RedoLogRecord r) {
         // 虽然这两行不是原子操作，但是也没影响的，最多日志线程空转一下
         logQueueSize.incrementAndGet();
+        if (firstQueuedAt == 0)
+            firstQueuedAt = System.nanoTime();
         logQueue.add(r);
     }
 
@@ -94,17 +99,22 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
     }
 
     void close() {
-        save();
+        save(null);
         fileStorage.close();
     }
 
-    synchronized void save() {
+    synchronized void save(TransactionEngineMetrics metrics) {
         if (logQueueSize.get() > 0) {
+            // 先清零再换队列，并发加入的日志最多让下一组的排队时间偏大一点
+            long queuedAt = firstQueuedAt;
+            firstQueuedAt = 0;
+            long syncStarted = System.nanoTime();
             LinkedTransferQueue<RedoLogRecord> redoLogRecordQueue = getAndResetRedoLogRecords();
             long chunkLength = 0;
+            int records = 0;
             for (RedoLogRecord r : redoLogRecordQueue) {
                 if (r.isCheckpoint()) {
-                    deleteOldChunkFiles();
+                    deleteOldChunkFiles(config, id);
                     fileStorage.truncate(0);
                     buff.reset();
                     pos = 0;
@@ -113,11 +123,18 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
                 if (buff.position() > BUFF_SIZE)
                     chunkLength += write(buff);
                 logQueueSize.decrementAndGet();
+                records++;
             }
             chunkLength += write(buff);
+            long fsyncStarted = System.nanoTime();
             if (chunkLength > 0) {
                 fileStorage.sync();
             }
+            if (metrics != null) {
+                long now = System.nanoTime();
+                metrics.recordLogSync(queuedAt == 0 ? 0 : syncStarted - queuedAt, now - fsyncStarted, chunkLength,
+                        records);
+            }
             for (RedoLogRecord r : redoLogRecordQueue) {
                 r.setSynced(true);
             }
@@ -137,8 +154,9 @@ class RedoLogChunk implements Comparable<RedoLogChunk> {
         return length;
     }
 
-    private void deleteOldChunkFiles() {
-        for (int i = 0; i < id; i++) {
+    // 删除id小于endId的chunk文件
+    static synchronized void deleteOldChunkFiles(Map<String, String> config, int endId) {
+        for (int i = 0; i < endId; i++) {
             String chunkFileName = getChunkFileName(config, i);
             if (FileUtils.exists(chunkFileName))
                 FileUtils.delete(chunkFileName);
@@ -36,6 +36,7 @@ public abstract class RedoLogRecord {
     private static byte TYPE_DROPPED_MAP_REDO_LOG_RECORD = 1;
     private static byte TYPE_LOCAL_TRANSACTION_REDO_LOG_RECORD = 2;
     private static byte TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD = 3;
+    private static byte TYPE_MAP_CHECKPOINT = 4;
 
     private volatile boolean synced;
 
@@ -65,6 +66,8 @@ public abstract class RedoLogRecord {
             return LocalTransactionRedoLogRecord.read(buff);
         } else if (type == TYPE_DISTRIBUTED_TRANSACTION_REDO_LOG_RECORD) {
             return DistributedTransactionRedoLogRecord.read(buff);
+        } else if (type == TYPE_MAP_CHECKPOINT) {
+            return MapCheckpoint.read(buff);
         } else {
             throw DbException.throwInternalError("unknow type: " + type);
         }
@@ -74,6 +77,10 @@ public abstract class RedoLogRecord {
         return new Checkpoint(checkpointId);
     }
 
+    public static MapCheckpoint createMapCheckpoint(String mapName, long checkpointId) {
+        return new MapCheckpoint(mapName, checkpointId);
+    }
+
     public static DroppedMapRedoLogRecord createDroppedMapRedoLogRecord(String mapName) {
         return new DroppedMapRedoLogRecord(mapName);
     }
@@ -130,6 +137,38 @@ public abstract class RedoLogRecord {
         }
     }
 
+    // 单个map的检查点，在它之前出现的这个map的redo日志都已经保存到map中了，redo时可以跳过
+    static class MapCheckpoint extends RedoLogRecord {
+
+        private final String mapName;
+        private final long checkpointId;
+
+        MapCheckpoint(String mapName, long checkpointId) {
+            DataUtils.checkNotNull(mapName, "mapName");
+            this.mapName = mapName;
+            this.checkpointId = checkpointId;
+        }
+
+        @Override
+        public long initPendingRedoLog(Map<String, List<ByteBuffer>> pendingRedoLog, long lastTransactionId) {
+            pendingRedoLog.remove(mapName);
+            return checkpointId > lastTransactionId ? checkpointId : lastTransactionId;
+        }
+
+        @Override
+        public void write(DataBuffer buff) {
+            buff.put(TYPE_MAP_CHECKPOINT);
+            ValueString.type.write(buff, mapName);
+            buff.putVarLong(checkpointId);
+        }
+
+        public static RedoLogRecord read(ByteBuffer buff) {
+            String mapName = ValueString.type.read(buff);
+            long checkpointId = DataUtils.readVarLong(buff);
+            return new MapCheckpoint(mapName, checkpointId);
+        }
+    }
+
     static class DroppedMapRedoLogRecord extends RedoLogRecord {
 
         private final String mapName;
@@ -289,9 +328,7 @@ public abstract class RedoLogRecord {
             buffer.putVarLong(transactionId);
             int pos = buffer.position();
             buffer.putInt(0);
-            for (UndoLogRecord r : undoLog.getUndoLogRecords()) {
-                r.writeForRedo(buffer, transactionEngine);
-            }
+            undoLog.writeForRedo(buffer, transactionEngine);
             int length = buffer.position() - pos - 4;
             buffer.putInt(pos, length);
         }
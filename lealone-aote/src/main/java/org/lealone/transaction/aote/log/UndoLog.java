@@ -18,7 +18,8 @@
 package org.lealone.transaction.aote.log;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.lealone.db.DataBuffer;
 import org.lealone.transaction.aote.AMTransactionEngine;
@@ -26,38 +27,56 @@ import org.lealone.transaction.aote.TransactionalValue;
 
 public class UndoLog {
 
+    private static final UndoLogRecord[] EMPTY_RECORDS = new UndoLogRecord[0];
+    private static final int INITIAL_CAPACITY = 8;
+
+    // 用数组代替链表，不用为每条记录额外分配一个链表节点，遍历时也是连续的内存，
+    // logId就是数组中有效记录的个数，回滚到保存点时直接按下标截断
+    private UndoLogRecord[] undoLogRecords = EMPTY_RECORDS;
     private int logId;
-    private final LinkedList<UndoLogRecord> undoLogRecords = new LinkedList<>();
+
+    // 其他事务在计算map的记录数时会并发读取，所以用写时复制的数组，通常一个事务只涉及很少的几个map
+    private volatile RowCounter[] rowCounters = EMPTY_ROW_COUNTERS;
 
     public int getLogId() {
         return logId;
     }
 
-    public LinkedList<UndoLogRecord> getUndoLogRecords() {
-        return undoLogRecords;
+    public UndoLogRecord get(int index) {
+        return undoLogRecords[index];
     }
 
     public boolean isEmpty() {
-        return undoLogRecords.isEmpty();
+        return logId == 0;
     }
 
     public boolean isNotEmpty() {
-        return !undoLogRecords.isEmpty();
+        return logId != 0;
     }
 
     public UndoLogRecord getLast() {
-        return undoLogRecords.getLast();
+        return undoLogRecords[logId - 1];
     }
 
     public int size() {
-        return undoLogRecords.size();
+        return logId;
     }
 
     public UndoLogRecord add(String mapName, Object key, TransactionalValue oldValue, TransactionalValue newValue,
             boolean isForUpdate) {
-        UndoLogRecord r = new UndoLogRecord(mapName, key, oldValue, newValue, isForUpdate);
-        undoLogRecords.add(r);
-        logId++;
+        return add(mapName, key, oldValue, newValue, null, isForUpdate);
+    }
+
+    public UndoLogRecord add(String mapName, Object key, TransactionalValue oldValue, TransactionalValue newValue,
+            int[] columnIndexes, boolean isForUpdate) {
+        return add(new UndoLogRecord(mapName, key, oldValue, newValue, columnIndexes, isForUpdate));
+    }
+
+    public UndoLogRecord add(UndoLogRecord r) {
+        if (logId == undoLogRecords.length)
+            undoLogRecords = Arrays.copyOf(undoLogRecords, logId == 0 ? INITIAL_CAPACITY : logId * 2);
+        undoLogRecords[logId++] = r;
+        updateRowCounter(r, 1);
         return r;
     }
 
@@ -66,21 +85,41 @@ public class UndoLog {
     }
 
     public void undo() {
-        undoLogRecords.removeLast();
-        --logId;
+        UndoLogRecord r = undoLogRecords[--logId];
+        undoLogRecords[logId] = null;
+        updateRowCounter(r, -1);
+    }
+
+    // 异步写入失败时调用，此时记录还在undoLogRecords中，但是不再对记录数产生影响
+    public void setUndone(UndoLogRecord r) {
+        if (!r.isUndone()) {
+            r.setUndone(true);
+            updateRowCounter(r, -1);
+        }
     }
 
     public void commit(AMTransactionEngine transactionEngine, long tid) {
-        for (UndoLogRecord r : undoLogRecords) {
-            r.commit(transactionEngine, tid);
+        UndoLogRecord[] records = undoLogRecords;
+        for (int i = 0, size = logId; i < size; i++) {
+            records[i].commit(transactionEngine, tid);
         }
     }
 
     public void rollbackTo(AMTransactionEngine transactionEngine, long toLogId) {
+        UndoLogRecord[] records = undoLogRecords;
         while (logId > toLogId) {
-            UndoLogRecord r = undoLogRecords.removeLast();
+            UndoLogRecord r = records[--logId];
+            records[logId] = null;
+            if (!r.isUndone())
+                updateRowCounter(r, -1);
             r.rollback(transactionEngine);
-            --logId;
+        }
+    }
+
+    public void writeForRedo(DataBuffer writeBuffer, AMTransactionEngine transactionEngine) {
+        UndoLogRecord[] records = undoLogRecords;
+        for (int i = 0, size = logId; i < size; i++) {
+            records[i].writeForRedo(writeBuffer, transactionEngine);
         }
     }
 
@@ -88,15 +127,66 @@ public class UndoLog {
 
     // 将当前一系列的事务操作日志转换成单条RedoLogRecord
     public ByteBuffer toRedoLogRecordBuffer(AMTransactionEngine transactionEngine) {
-        if (undoLogRecords.isEmpty())
+        if (isEmpty())
             return null;
         DataBuffer writeBuffer = DataBuffer.create(lastCapacity);
-        for (UndoLogRecord r : undoLogRecords) {
-            r.writeForRedo(writeBuffer, transactionEngine);
-        }
+        writeForRedo(writeBuffer, transactionEngine);
         lastCapacity = writeBuffer.position();
         if (lastCapacity > 1024)
             lastCapacity = 1024;
         return writeBuffer.getAndFlipBuffer();
     }
+
+    public RowCounter getRowCounter(String mapName) {
+        for (RowCounter c : rowCounters) {
+            if (c.mapName.equals(mapName))
+                return c;
+        }
+        return null;
+    }
+
+    private void updateRowCounter(UndoLogRecord r, int delta) {
+        int type = r.getRowCountType();
+        if (type == UndoLogRecord.ROW_COUNT_NONE)
+            return;
+        String mapName = r.getMapName();
+        RowCounter c = getRowCounter(mapName);
+        if (c == null) {
+            c = new RowCounter(mapName);
+            RowCounter[] old = rowCounters;
+            RowCounter[] counters = Arrays.copyOf(old, old.length + 1);
+            counters[old.length] = c;
+            rowCounters = counters;
+        }
+        c.counts.addAndGet(type, delta);
+    }
+
+    private static final RowCounter[] EMPTY_ROW_COUNTERS = new RowCounter[0];
+
+    // 记录一个事务在某个map中还未提交的insert和delete个数，
+    // 计算记录数时不用再逐条扫描undo log
+    public static class RowCounter {
+
+        private final String mapName;
+        private final AtomicLongArray counts = new AtomicLongArray(3);
+
+        RowCounter(String mapName) {
+            this.mapName = mapName;
+        }
+
+        // 新增的记录已经在map中了，但是其他事务看不到
+        public long getInserts() {
+            return counts.get(UndoLogRecord.ROW_COUNT_INSERT);
+        }
+
+        // 删除的记录在提交前还在map中，只有当前事务看不到
+        public long getDeletes() {
+            return counts.get(UndoLogRecord.ROW_COUNT_DELETE);
+        }
+
+        // 把当前事务删除的记录重新加回来，此时map中的记录数没有变化
+        public long getReinserts() {
+            return counts.get(UndoLogRecord.ROW_COUNT_REINSERT);
+        }
+    }
 }
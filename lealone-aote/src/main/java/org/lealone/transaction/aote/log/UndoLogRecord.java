@@ -20,25 +20,43 @@ package org.lealone.transaction.aote.log;
 import org.lealone.db.DataBuffer;
 import org.lealone.db.value.ValueString;
 import org.lealone.storage.StorageMap;
+import org.lealone.storage.type.StorageDataType;
 import org.lealone.transaction.aote.AMTransactionEngine;
 import org.lealone.transaction.aote.TransactionalValue;
 import org.lealone.transaction.aote.TransactionalValueType;
 
 public class UndoLogRecord {
 
+    // redo日志中keyValue部分的类型标记，格式参照writeForRedo()和RedoLog.redo()
+    public static final byte REDO_TYPE_REMOVE = 0;
+    public static final byte REDO_TYPE_PUT = 1;
+    public static final byte REDO_TYPE_COLUMNS = 2; // 只记录被更新的字段
+
+    static final int ROW_COUNT_NONE = -1;
+    static final int ROW_COUNT_INSERT = 0;
+    static final int ROW_COUNT_DELETE = 1;
+    static final int ROW_COUNT_REINSERT = 2;
+
     private final String mapName;
     private Object key; // 没有用final，在AMTransaction.replicationPrepareCommit方法那里有特殊用途
-    private final TransactionalValue oldValue;
-    private final TransactionalValue newValue;
+    private TransactionalValue oldValue;
+    private TransactionalValue newValue; // 增量修改在提交时才会生成最终的oldValue和newValue
+    private final int[] columnIndexes; // 为null时表示整行记录都变了
     private final boolean isForUpdate;
     private volatile boolean undone;
 
     public UndoLogRecord(String mapName, Object key, TransactionalValue oldValue, TransactionalValue newValue,
             boolean isForUpdate) {
+        this(mapName, key, oldValue, newValue, null, isForUpdate);
+    }
+
+    public UndoLogRecord(String mapName, Object key, TransactionalValue oldValue, TransactionalValue newValue,
+            int[] columnIndexes, boolean isForUpdate) {
         this.mapName = mapName;
         this.key = key;
         this.oldValue = oldValue;
         this.newValue = newValue;
+        this.columnIndexes = columnIndexes;
         this.isForUpdate = isForUpdate;
     }
 
@@ -54,10 +72,40 @@ public class UndoLogRecord {
         this.key = key;
     }
 
+    public TransactionalValue getNewValue() {
+        return newValue;
+    }
+
+    void setValues(TransactionalValue oldValue, TransactionalValue newValue) {
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public int[] getColumnIndexes() {
+        return columnIndexes;
+    }
+
     public void setUndone(boolean undone) {
         this.undone = undone;
     }
 
+    public boolean isUndone() {
+        return undone;
+    }
+
+    // 当前记录对map的记录数有什么影响，由UndoLog.RowCounter负责统计
+    int getRowCountType() {
+        if (isForUpdate)
+            return ROW_COUNT_NONE;
+        if (oldValue == null)
+            return ROW_COUNT_INSERT;
+        if (newValue.getValue() == null)
+            return ROW_COUNT_DELETE;
+        if (oldValue.getValue() == null) // 先删除后增加
+            return ROW_COUNT_REINSERT;
+        return ROW_COUNT_NONE;
+    }
+
     // 调用这个方法时事务已经提交，redo日志已经写完，这里只是在内存中更新到最新值
     public void commit(AMTransactionEngine transactionEngine, long tid) {
         if (undone)
@@ -124,12 +172,25 @@ public class UndoLogRecord {
         writeBuffer.putInt(0);
 
         map.getKeyType().write(writeBuffer, key);
-        if (newValue.getValue() == null)
-            writeBuffer.put((byte) 0);
+        Object value = newValue.getValue();
+        if (value == null)
+            writeBuffer.put(REDO_TYPE_REMOVE);
         else {
-            writeBuffer.put((byte) 1);
             // 如果这里运行时出现了cast异常，可能是上层应用没有通过TransactionMap提供的api来写入最初的数据
-            ((TransactionalValueType) map.getValueType()).valueType.write(writeBuffer, newValue.getValue());
+            StorageDataType valueType = ((TransactionalValueType) map.getValueType()).valueType;
+            if (isColumnsUpdate(valueType)) {
+                // 只更新了部分字段时只需要写被更新的字段，redo时再合并到原有记录中
+                writeBuffer.put(REDO_TYPE_COLUMNS);
+                valueType.writeMeta(writeBuffer, value);
+                writeBuffer.putVarInt(columnIndexes.length);
+                for (int i : columnIndexes) {
+                    writeBuffer.putVarInt(i);
+                    valueType.writeColumn(writeBuffer, value, i);
+                }
+            } else {
+                writeBuffer.put(REDO_TYPE_PUT);
+                valueType.write(writeBuffer, value);
+            }
         }
         writeBuffer.putInt(keyValueLengthStartPos, writeBuffer.position() - keyValueLengthStartPos - 4);
 
@@ -137,4 +198,9 @@ public class UndoLogRecord {
         int memory = writeBuffer.position() - lastPosition;
         transactionEngine.incrementEstimatedMemory(mapName, memory);
     }
+
+    private boolean isColumnsUpdate(StorageDataType valueType) {
+        return oldValue != null && oldValue.getValue() != null && columnIndexes != null
+                && columnIndexes.length > 0 && columnIndexes.length < valueType.getColumnCount();
+    }
 }
@@ -11,10 +11,12 @@ import java.util.ArrayList;
 import org.lealone.client.session.ClientSession;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.Utils;
+import org.lealone.db.Constants;
 import org.lealone.db.SysProperties;
 import org.lealone.db.result.Result;
 import org.lealone.db.value.Value;
 import org.lealone.net.TransferInputStream;
+import org.lealone.server.protocol.result.ColumnarRowBatch;
 import org.lealone.server.protocol.result.ResultChangeId;
 import org.lealone.server.protocol.result.ResultClose;
 import org.lealone.server.protocol.result.ResultFetchRows;
@@ -40,12 +42,15 @@ public abstract class ClientResult implements Result {
     protected final int rowCount;
     protected int rowId, rowOffset;
     protected ArrayList<Value[]> result;
+    protected ColumnarRowBatch batch; // 按列编码的一批记录，读到某一行时才解码
+    protected final int protocolVersion;
 
     public ClientResult(ClientSession session, TransferInputStream in, int resultId, int columnCount, int rowCount,
             int fetchSize) throws IOException {
         this.session = session;
         this.in = in;
         this.resultId = resultId;
+        this.protocolVersion = session.getProtocolVersion();
         this.columns = new ClientResultColumn[columnCount];
         this.rowCount = rowCount;
         for (int i = 0; i < columnCount; i++) {
@@ -62,6 +67,45 @@ public abstract class ClientResult implements Result {
 
     protected abstract void fetchRows(boolean sendFetch);
 
+    /**
+     * 读取服务器端发来的一批记录，之前读到的记录会被丢弃
+     *
+     * @param count 服务器端最多发送的记录数
+     * @return 服务器端的结果集是否已经没有更多记录了
+     */
+    protected boolean readRows(int count) throws IOException {
+        result.clear();
+        batch = null;
+        if (count <= 0)
+            return false;
+        if (protocolVersion >= Constants.TCP_PROTOCOL_VERSION_2) {
+            batch = ColumnarRowBatch.read(in, columns.length);
+            return batch.isEnd();
+        }
+        for (int r = 0; r < count; r++) {
+            boolean row = in.readBoolean();
+            if (!row) {
+                return true;
+            }
+            int len = columns.length;
+            Value[] values = new Value[len];
+            for (int i = 0; i < len; i++) {
+                Value v = in.readValue();
+                values[i] = v;
+            }
+            result.add(values);
+        }
+        return false;
+    }
+
+    protected int getFetchedRowCount() {
+        return batch != null ? batch.getRowCount() : result.size();
+    }
+
+    protected Value[] getFetchedRow(int index) {
+        return batch != null ? batch.getRow(index) : result.get(index);
+    }
+
     @Override
     public String getAlias(int i) {
         return columns[i].alias;
@@ -174,6 +218,7 @@ public abstract class ClientResult implements Result {
     @Override
     public void close() {
         result = null;
+        batch = null;
         sendClose();
     }
 
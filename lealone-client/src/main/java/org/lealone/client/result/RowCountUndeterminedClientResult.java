@@ -21,7 +21,6 @@ import java.io.IOException;
 
 import org.lealone.client.session.ClientSession;
 import org.lealone.common.exceptions.DbException;
-import org.lealone.db.value.Value;
 import org.lealone.net.TransferInputStream;
 
 public class RowCountUndeterminedClientResult extends ClientResult {
@@ -37,7 +36,12 @@ public class RowCountUndeterminedClientResult extends ClientResult {
 
     @Override
     public boolean next() {
-        if (isEnd && rowId - rowOffset >= result.size() - 1) {
+        // 读完后已经关闭了
+        if (result == null) {
+            currentRow = null;
+            return false;
+        }
+        if (isEnd && rowId - rowOffset >= getFetchedRowCount() - 1) {
             currentRow = null;
             return false;
         }
@@ -45,15 +49,15 @@ public class RowCountUndeterminedClientResult extends ClientResult {
         rowId++;
         if (!isEnd) {
             remapIfOld();
-            if (rowId - rowOffset >= result.size()) {
+            if (rowId - rowOffset >= getFetchedRowCount()) {
                 fetchRows(true);
-                if (isEnd && result.isEmpty()) {
+                if (isEnd && getFetchedRowCount() == 0) {
                     currentRow = null;
                     return false;
                 }
             }
         }
-        currentRow = result.get(rowId - rowOffset);
+        currentRow = getFetchedRow(rowId - rowOffset);
         return true;
 
     }
@@ -67,24 +71,12 @@ public class RowCountUndeterminedClientResult extends ClientResult {
     protected void fetchRows(boolean sendFetch) {
         session.checkClosed();
         try {
-            rowOffset += result.size();
-            result.clear();
+            rowOffset += getFetchedRowCount();
             if (sendFetch) {
                 sendFetch(fetchSize);
             }
-            for (int r = 0; r < fetchSize; r++) {
-                boolean row = in.readBoolean();
-                if (!row) {
-                    isEnd = true;
-                    break;
-                }
-                int len = columns.length;
-                Value[] values = new Value[len];
-                for (int i = 0; i < len; i++) {
-                    Value v = in.readValue();
-                    values[i] = v;
-                }
-                result.add(values);
+            if (readRows(fetchSize)) {
+                isEnd = true;
             }
 
             if (isEnd)
@@ -26,6 +26,8 @@ import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.CaseInsensitiveMap;
 import org.lealone.common.util.StringUtils;
 import org.lealone.db.ConnectionInfo;
+import org.lealone.db.ConnectionSetting;
+import org.lealone.db.Constants;
 import org.lealone.db.RunMode;
 import org.lealone.db.api.ErrorCode;
 import org.lealone.db.async.AsyncCallback;
@@ -132,7 +134,9 @@ public class ClientSessionFactory implements SessionFactory {
                 int sessionId = tcpConnection.getNextId();
                 ClientSession clientSession = new ClientSession(tcpConnection, ci, server, parent, sessionId);
 
-                SessionInit packet = new SessionInit(ci);
+                int maxVersion = ci.getProperty(ConnectionSetting.MAX_PROTOCOL_VERSION,
+                        Constants.TCP_PROTOCOL_VERSION_MAX);
+                SessionInit packet = new SessionInit(ci, maxVersion);
                 AckPacketHandler<ClientSession, SessionInitAck> ackPacketHandler = ack -> {
                     clientSession.setProtocolVersion(ack.clientVersion);
                     clientSession.setAutoCommit(ack.autoCommit);
@@ -24,6 +24,7 @@ public enum ConnectionSetting {
     PASSWORD,
     PASSWORD_HASH,
     IS_LOCAL,
+    MAX_PROTOCOL_VERSION,
     NET_FACTORY_NAME,
     NETWORK_TIMEOUT,
     TRACE_ENABLED;
@@ -26,6 +26,7 @@ public enum DbSetting {
     ALIAS_COLUMN_NAME,
     ANALYZE_AUTO,
     ANALYZE_SAMPLE,
+    AUTO_PARAMETERIZE,
     DATABASE_TO_UPPER,
     DB_CLOSE_ON_EXIT,
     DEFAULT_ESCAPE,
@@ -34,6 +35,7 @@ public enum DbSetting {
     ESTIMATED_FUNCTION_TABLE_ROWS,
     FUNCTIONS_IN_SCHEMA,
     LARGE_RESULT_BUFFER_SIZE,
+    LAZY_QUERY_EXECUTION,
     // LARGE_TRANSACTIONS, //暂时用不到
     // MAX_COMPACT_TIME, //暂时用不到
     MAX_QUERY_TIMEOUT,
@@ -46,6 +48,8 @@ public enum DbSetting {
     OPTIMIZE_IS_NULL,
     OPTIMIZE_OR,
     OPTIMIZE_TWO_EQUALS,
+    PLAN_CACHE_SIZE,
+    PLAN_CACHE_MAX_INSTANCES,
     QUERY_CACHE_SIZE,
     RECOMPILE_ALWAYS,
     ROWID,
@@ -1934,6 +1934,14 @@ public class ErrorCode {
 
     public static final int DATABASE_IS_CLOSING = 90146;
 
+    /**
+     * The error with code <code>90147</code> is thrown when
+     * an optimistic transaction finds at commit time that a row it has
+     * updated, deleted or locked was changed by another transaction.
+     * The current transaction was rolled back and can be retried.
+     */
+    public static final int TRANSACTION_CONFLICT_1 = 90147;
+
     // next are 90056, 90110, 90122, 90143
 
     private ErrorCode() {
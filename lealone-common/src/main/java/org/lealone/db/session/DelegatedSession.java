@@ -331,6 +331,16 @@ public class DelegatedSession implements Session {
         return session.getNestedSession(hostAndPort, remote);
     }
 
+    @Override
+    public void setProtocolVersion(int version) {
+        session.setProtocolVersion(version);
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return session.getProtocolVersion();
+    }
+
     @Override
     public int getNetworkTimeout() {
         return session.getNetworkTimeout();
@@ -53,6 +53,7 @@ public abstract class SessionBase implements Session {
 
     protected TraceSystem traceSystem;
     protected boolean closed;
+    protected int protocolVersion = Constants.TCP_PROTOCOL_VERSION_CURRENT;
 
     @Override
     public String getReplicationName() {
@@ -64,6 +65,16 @@ public abstract class SessionBase implements Session {
         this.replicationName = replicationName;
     }
 
+    @Override
+    public void setProtocolVersion(int version) {
+        protocolVersion = version;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
     @Override
     public boolean isLocal() {
         return true;
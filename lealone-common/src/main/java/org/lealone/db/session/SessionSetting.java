@@ -29,7 +29,8 @@ public enum SessionSetting {
     SCHEMA,
     SCHEMA_SEARCH_PATH,
     VARIABLE,
-    THROTTLE;
+    THROTTLE,
+    OPTIMISTIC;
 
     public String getName() {
         if (this == VARIABLE)
@@ -34,6 +34,8 @@ import org.lealone.server.protocol.dt.DTransactionUpdate;
 import org.lealone.server.protocol.dt.DTransactionUpdateAck;
 import org.lealone.server.protocol.dt.DTransactionValidate;
 import org.lealone.server.protocol.dt.DTransactionValidateAck;
+import org.lealone.server.protocol.dt.DTransactionValidateBatch;
+import org.lealone.server.protocol.dt.DTransactionValidateBatchAck;
 import org.lealone.server.protocol.lob.LobRead;
 import org.lealone.server.protocol.lob.LobReadAck;
 import org.lealone.server.protocol.ps.PreparedStatementClose;
@@ -165,6 +167,8 @@ public class PacketDecoders {
         register(PacketType.DISTRIBUTED_TRANSACTION_ROLLBACK_SAVEPOINT, DTransactionRollbackSavepoint.decoder);
         register(PacketType.DISTRIBUTED_TRANSACTION_VALIDATE, DTransactionValidate.decoder);
         register(PacketType.DISTRIBUTED_TRANSACTION_VALIDATE_ACK, DTransactionValidateAck.decoder);
+        register(PacketType.DISTRIBUTED_TRANSACTION_VALIDATE_BATCH, DTransactionValidateBatch.decoder);
+        register(PacketType.DISTRIBUTED_TRANSACTION_VALIDATE_BATCH_ACK, DTransactionValidateBatchAck.decoder);
 
         register(PacketType.STORAGE_GET, StorageGet.decoder);
         register(PacketType.STORAGE_GET_ACK, StorageGetAck.decoder);
@@ -82,6 +82,8 @@ public enum PacketType {
     DISTRIBUTED_TRANSACTION_ROLLBACK_SAVEPOINT(101),
     DISTRIBUTED_TRANSACTION_VALIDATE(102),
     DISTRIBUTED_TRANSACTION_VALIDATE_ACK(103),
+    DISTRIBUTED_TRANSACTION_VALIDATE_BATCH(104),
+    DISTRIBUTED_TRANSACTION_VALIDATE_BATCH_ACK(105),
 
     STORAGE_GET(120),
     STORAGE_GET_ACK(121),
@@ -0,0 +1,579 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server.protocol.result;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.lealone.common.compress.CompressTool;
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.DataUtils;
+import org.lealone.db.DataBuffer;
+import org.lealone.db.result.Result;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueBoolean;
+import org.lealone.db.value.ValueByte;
+import org.lealone.db.value.ValueBytes;
+import org.lealone.db.value.ValueDate;
+import org.lealone.db.value.ValueDecimal;
+import org.lealone.db.value.ValueDouble;
+import org.lealone.db.value.ValueFloat;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueShort;
+import org.lealone.db.value.ValueString;
+import org.lealone.db.value.ValueStringFixed;
+import org.lealone.db.value.ValueStringIgnoreCase;
+import org.lealone.db.value.ValueTime;
+import org.lealone.db.value.ValueTimestamp;
+import org.lealone.db.value.ValueUuid;
+import org.lealone.net.NetInputStream;
+import org.lealone.net.NetOutputStream;
+
+/**
+ * 从TCP_PROTOCOL_VERSION_2开始，结果集中的一批记录按列编码后再发送。
+ * <p>
+ * 每一列的类型只写一次，NULL值用位图表示，整数、日期和时间类型的列按相邻两个值的差值用变长整数编码，
+ * 重复值较多的字符串列使用字典编码，编码后的数据比较大时再用LZF压缩。
+ * 遇到LOB、ARRAY这类不适合按列编码的类型，或者同一列中出现了不同类型的值时，这一批记录还是按行编码。
+ * <p>
+ * 客户端收到后只把每一列解码成基本类型的数组，读到某一行时才创建这一行的Value对象。
+ */
+public class ColumnarRowBatch {
+
+    private static final int ROW_WISE = 0;
+    private static final int COLUMNAR = 1;
+    private static final int COLUMNAR_LZF = 2;
+
+    // 编码后的数据小于这个值时不压缩
+    private static final int COMPRESS_MIN_LENGTH = 512;
+
+    private final int rowCount;
+    private final boolean end;
+    private final Value[][] rows; // 按行编码时直接读出所有记录
+    private final Column[] columns;
+
+    private ColumnarRowBatch(int rowCount, boolean end, Value[][] rows, Column[] columns) {
+        this.rowCount = rowCount;
+        this.end = end;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * 这一批记录的行数
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * 服务器端的结果集是否已经没有更多记录了
+     */
+    public boolean isEnd() {
+        return end;
+    }
+
+    public Value[] getRow(int index) {
+        if (rows != null)
+            return rows[index];
+        int len = columns.length;
+        Value[] row = new Value[len];
+        for (int i = 0; i < len; i++) {
+            row[i] = columns[i].getValue(index);
+        }
+        return row;
+    }
+
+    public static void write(NetOutputStream out, Result result, int count) throws IOException {
+        if (count <= 0)
+            return;
+        int columnCount = result.getVisibleColumnCount();
+        ArrayList<Value[]> list = new ArrayList<>(Math.min(count, 1024));
+        boolean end = false;
+        try {
+            for (int i = 0; i < count; i++) {
+                if (result.next()) {
+                    list.add(Arrays.copyOf(result.currentRow(), columnCount));
+                } else {
+                    end = true;
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            // 跟按行编码时一样，结果集包必须加一个结束标记，结果集包后面跟一个异常包。
+            out.writeInt(0);
+            out.writeBoolean(true);
+            throw DbException.convert(e);
+        }
+        int size = list.size();
+        out.writeInt(size);
+        out.writeBoolean(end);
+        if (size == 0)
+            return;
+        byte[] data = encode(list, columnCount);
+        if (data == null) {
+            out.writeInt(ROW_WISE);
+            for (Value[] row : list) {
+                for (int i = 0; i < columnCount; i++) {
+                    out.writeValue(row[i]);
+                }
+            }
+            return;
+        }
+        if (data.length >= COMPRESS_MIN_LENGTH) {
+            byte[] compressed = CompressTool.getInstance().compress(data, "LZF");
+            if (compressed.length < data.length) {
+                out.writeInt(COLUMNAR_LZF);
+                out.writeBytes(compressed);
+                return;
+            }
+        }
+        out.writeInt(COLUMNAR);
+        out.writeBytes(data);
+    }
+
+    public static ColumnarRowBatch read(NetInputStream in, int columnCount) throws IOException {
+        int rowCount = in.readInt();
+        boolean end = in.readBoolean();
+        if (rowCount == 0)
+            return new ColumnarRowBatch(0, end, new Value[0][], null);
+        int format = in.readInt();
+        if (format == ROW_WISE) {
+            Value[][] rows = new Value[rowCount][];
+            for (int r = 0; r < rowCount; r++) {
+                Value[] row = new Value[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = in.readValue();
+                }
+                rows[r] = row;
+            }
+            return new ColumnarRowBatch(rowCount, end, rows, null);
+        }
+        byte[] data = in.readBytes();
+        if (format == COLUMNAR_LZF)
+            data = CompressTool.getInstance().expand(data);
+        ByteBuffer buff = ByteBuffer.wrap(data);
+        Column[] columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = Column.read(buff, rowCount);
+        }
+        return new ColumnarRowBatch(rowCount, end, null, columns);
+    }
+
+    // 返回null表示只能按行编码
+    private static byte[] encode(ArrayList<Value[]> list, int columnCount) {
+        DataBuffer buff = DataBuffer.create(null, 256, false);
+        for (int i = 0; i < columnCount; i++) {
+            if (!Column.write(buff, list, i))
+                return null;
+        }
+        return Arrays.copyOf(buff.getBytes(), buff.length());
+    }
+
+    private static long encodeZigZag(long x) {
+        return (x << 1) ^ (x >> 63);
+    }
+
+    private static long decodeZigZag(long x) {
+        return (x >>> 1) ^ -(x & 1);
+    }
+
+    private static void writeString(DataBuffer buff, String s) {
+        int len = s.length();
+        buff.putVarInt(len).putStringData(s, len);
+    }
+
+    private static String readString(ByteBuffer buff) {
+        int len = DataUtils.readVarInt(buff);
+        return DataUtils.readString(buff, len);
+    }
+
+    private static class Column {
+
+        private final int type;
+        private byte[] nulls; // 没有NULL值时为null
+        private long[] longs; // 整数、日期、时间、布尔类型，TIMESTAMP的日期部分
+        private long[] longs2; // TIMESTAMP的时间部分、UUID的低64位
+        private double[] doubles;
+        private String[] strings;
+        private byte[][] bytes;
+        private int[] indexes; // 字典编码时每一行在字典中的位置
+        private Value[] dictionary;
+
+        private Column(int type) {
+            this.type = type;
+        }
+
+        private boolean isNull(int index) {
+            return type == Value.NULL || nulls != null && (nulls[index >>> 3] & (1 << (index & 7))) != 0;
+        }
+
+        Value getValue(int index) {
+            if (isNull(index))
+                return ValueNull.INSTANCE;
+            switch (type) {
+            case Value.BOOLEAN:
+                return ValueBoolean.get(longs[index] != 0);
+            case Value.BYTE:
+                return ValueByte.get((byte) longs[index]);
+            case Value.SHORT:
+                return ValueShort.get((short) longs[index]);
+            case Value.INT:
+                return ValueInt.get((int) longs[index]);
+            case Value.LONG:
+                return ValueLong.get(longs[index]);
+            case Value.DATE:
+                return ValueDate.fromDateValue(longs[index]);
+            case Value.TIME:
+                return ValueTime.fromNanos(longs[index]);
+            case Value.TIMESTAMP:
+                return ValueTimestamp.fromDateValueAndNanos(longs[index], longs2[index]);
+            case Value.DOUBLE:
+                return ValueDouble.get(doubles[index]);
+            case Value.FLOAT:
+                return ValueFloat.get((float) doubles[index]);
+            case Value.BYTES:
+                return ValueBytes.getNoCopy(bytes[index]);
+            case Value.UUID:
+                return ValueUuid.get(longs[index], longs2[index]);
+            default:
+                if (indexes != null) {
+                    int i = indexes[index];
+                    Value v = dictionary[i];
+                    if (v == null) {
+                        v = dictionary[i] = createStringValue(strings[i]);
+                    }
+                    return v;
+                }
+                return createStringValue(strings[index]);
+            }
+        }
+
+        private Value createStringValue(String s) {
+            switch (type) {
+            case Value.STRING_IGNORECASE:
+                return ValueStringIgnoreCase.get(s);
+            case Value.STRING_FIXED:
+                return ValueStringFixed.get(s);
+            case Value.DECIMAL:
+                return ValueDecimal.get(new BigDecimal(s));
+            default:
+                return ValueString.get(s);
+            }
+        }
+
+        static boolean write(DataBuffer buff, ArrayList<Value[]> list, int column) {
+            int rowCount = list.size();
+            int type = Value.NULL;
+            byte[] nulls = null;
+            for (int r = 0; r < rowCount; r++) {
+                Value v = list.get(r)[column];
+                int t = v.getType();
+                if (t == Value.NULL) {
+                    if (nulls == null)
+                        nulls = new byte[(rowCount + 7) >>> 3];
+                    nulls[r >>> 3] |= 1 << (r & 7);
+                } else if (type == Value.NULL) {
+                    type = t;
+                } else if (type != t) {
+                    return false;
+                }
+            }
+            if (!isSupported(type))
+                return false;
+            buff.put((byte) type);
+            if (type == Value.NULL)
+                return true;
+            if (nulls == null) {
+                buff.put((byte) 0);
+            } else {
+                buff.put((byte) 1).put(nulls);
+            }
+            switch (type) {
+            case Value.BOOLEAN:
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE)
+                        buff.put((byte) (v.getBoolean() ? 1 : 0));
+                }
+                break;
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG: {
+                long last = 0;
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE) {
+                        long x = v.getLong();
+                        buff.putVarLong(encodeZigZag(x - last));
+                        last = x;
+                    }
+                }
+                break;
+            }
+            case Value.DATE: {
+                long last = 0;
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE) {
+                        long x = ((ValueDate) v).getDateValue();
+                        buff.putVarLong(encodeZigZag(x - last));
+                        last = x;
+                    }
+                }
+                break;
+            }
+            case Value.TIME: {
+                long last = 0;
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE) {
+                        long x = ((ValueTime) v).getNanos();
+                        buff.putVarLong(encodeZigZag(x - last));
+                        last = x;
+                    }
+                }
+                break;
+            }
+            case Value.TIMESTAMP: {
+                long lastDate = 0, lastNanos = 0;
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE) {
+                        ValueTimestamp ts = (ValueTimestamp) v;
+                        long date = ts.getDateValue();
+                        long nanos = ts.getNanos();
+                        buff.putVarLong(encodeZigZag(date - lastDate));
+                        buff.putVarLong(encodeZigZag(nanos - lastNanos));
+                        lastDate = date;
+                        lastNanos = nanos;
+                    }
+                }
+                break;
+            }
+            case Value.DOUBLE:
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE)
+                        buff.putDouble(v.getDouble());
+                }
+                break;
+            case Value.FLOAT:
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE)
+                        buff.putFloat(v.getFloat());
+                }
+                break;
+            case Value.BYTES:
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE) {
+                        byte[] b = v.getBytesNoCopy();
+                        buff.putVarInt(b.length).put(b);
+                    }
+                }
+                break;
+            case Value.UUID:
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE) {
+                        ValueUuid uuid = (ValueUuid) v;
+                        buff.putLong(uuid.getHigh()).putLong(uuid.getLow());
+                    }
+                }
+                break;
+            default:
+                writeStrings(buff, list, column);
+            }
+            return true;
+        }
+
+        private static boolean isSupported(int type) {
+            switch (type) {
+            case Value.NULL:
+            case Value.BOOLEAN:
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+            case Value.DATE:
+            case Value.TIME:
+            case Value.TIMESTAMP:
+            case Value.DOUBLE:
+            case Value.FLOAT:
+            case Value.BYTES:
+            case Value.UUID:
+            case Value.DECIMAL:
+            case Value.STRING:
+            case Value.STRING_IGNORECASE:
+            case Value.STRING_FIXED:
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        // 不同的字符串不超过非NULL值个数的一半时才使用字典编码
+        private static void writeStrings(DataBuffer buff, ArrayList<Value[]> list, int column) {
+            HashMap<String, Integer> map = new HashMap<>();
+            ArrayList<String> dictionary = new ArrayList<>();
+            int count = 0;
+            for (Value[] row : list) {
+                Value v = row[column];
+                if (v != ValueNull.INSTANCE) {
+                    count++;
+                    String s = v.getString();
+                    if (!map.containsKey(s)) {
+                        map.put(s, dictionary.size());
+                        dictionary.add(s);
+                    }
+                }
+            }
+            if (dictionary.size() <= count / 2) {
+                buff.put((byte) 1).putVarInt(dictionary.size());
+                for (String s : dictionary) {
+                    writeString(buff, s);
+                }
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE)
+                        buff.putVarInt(map.get(v.getString()));
+                }
+            } else {
+                buff.put((byte) 0);
+                for (Value[] row : list) {
+                    Value v = row[column];
+                    if (v != ValueNull.INSTANCE)
+                        writeString(buff, v.getString());
+                }
+            }
+        }
+
+        static Column read(ByteBuffer buff, int rowCount) {
+            Column c = new Column(buff.get());
+            if (c.type == Value.NULL)
+                return c;
+            if (buff.get() != 0) {
+                c.nulls = new byte[(rowCount + 7) >>> 3];
+                buff.get(c.nulls);
+            }
+            switch (c.type) {
+            case Value.BOOLEAN:
+                c.longs = new long[rowCount];
+                for (int r = 0; r < rowCount; r++) {
+                    if (!c.isNull(r))
+                        c.longs[r] = buff.get();
+                }
+                break;
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+            case Value.DATE:
+            case Value.TIME: {
+                c.longs = new long[rowCount];
+                long last = 0;
+                for (int r = 0; r < rowCount; r++) {
+                    if (!c.isNull(r)) {
+                        last += decodeZigZag(DataUtils.readVarLong(buff));
+                        c.longs[r] = last;
+                    }
+                }
+                break;
+            }
+            case Value.TIMESTAMP: {
+                c.longs = new long[rowCount];
+                c.longs2 = new long[rowCount];
+                long lastDate = 0, lastNanos = 0;
+                for (int r = 0; r < rowCount; r++) {
+                    if (!c.isNull(r)) {
+                        lastDate += decodeZigZag(DataUtils.readVarLong(buff));
+                        lastNanos += decodeZigZag(DataUtils.readVarLong(buff));
+                        c.longs[r] = lastDate;
+                        c.longs2[r] = lastNanos;
+                    }
+                }
+                break;
+            }
+            case Value.DOUBLE:
+                c.doubles = new double[rowCount];
+                for (int r = 0; r < rowCount; r++) {
+                    if (!c.isNull(r))
+                        c.doubles[r] = buff.getDouble();
+                }
+                break;
+            case Value.FLOAT:
+                c.doubles = new double[rowCount];
+                for (int r = 0; r < rowCount; r++) {
+                    if (!c.isNull(r))
+                        c.doubles[r] = buff.getFloat();
+                }
+                break;
+            case Value.BYTES:
+                c.bytes = new byte[rowCount][];
+                for (int r = 0; r < rowCount; r++) {
+                    if (!c.isNull(r)) {
+                        byte[] b = DataUtils.newBytes(DataUtils.readVarInt(buff));
+                        buff.get(b);
+                        c.bytes[r] = b;
+                    }
+                }
+                break;
+            case Value.UUID:
+                c.longs = new long[rowCount];
+                c.longs2 = new long[rowCount];
+                for (int r = 0; r < rowCount; r++) {
+                    if (!c.isNull(r)) {
+                        c.longs[r] = buff.getLong();
+                        c.longs2[r] = buff.getLong();
+                    }
+                }
+                break;
+            default:
+                if (buff.get() != 0) {
+                    int size = DataUtils.readVarInt(buff);
+                    c.strings = new String[size];
+                    for (int i = 0; i < size; i++) {
+                        c.strings[i] = readString(buff);
+                    }
+                    c.dictionary = new Value[size];
+                    c.indexes = new int[rowCount];
+                    for (int r = 0; r < rowCount; r++) {
+                        if (!c.isNull(r))
+                            c.indexes[r] = DataUtils.readVarInt(buff);
+                    }
+                } else {
+                    c.strings = new String[rowCount];
+                    for (int r = 0; r < rowCount; r++) {
+                        if (!c.isNull(r))
+                            c.strings[r] = readString(buff);
+                    }
+                }
+            }
+            return c;
+        }
+    }
+}
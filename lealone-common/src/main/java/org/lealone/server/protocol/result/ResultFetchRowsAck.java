@@ -20,6 +20,7 @@ package org.lealone.server.protocol.result;
 import java.io.IOException;
 
 import org.lealone.common.exceptions.DbException;
+import org.lealone.db.Constants;
 import org.lealone.db.result.Result;
 import org.lealone.db.value.Value;
 import org.lealone.net.NetInputStream;
@@ -53,7 +54,7 @@ public class ResultFetchRowsAck implements AckPacket {
 
     @Override
     public void encode(NetOutputStream out, int version) throws IOException {
-        writeRow(out, result, count);
+        writeRow(out, result, count, version);
     }
 
     public static final Decoder decoder = new Decoder();
@@ -65,7 +66,11 @@ public class ResultFetchRowsAck implements AckPacket {
         }
     }
 
-    public static void writeRow(NetOutputStream out, Result result, int count) throws IOException {
+    public static void writeRow(NetOutputStream out, Result result, int count, int version) throws IOException {
+        if (version >= Constants.TCP_PROTOCOL_VERSION_2) {
+            ColumnarRowBatch.write(out, result, count);
+            return;
+        }
         try {
             int visibleColumnCount = result.getVisibleColumnCount();
             for (int i = 0; i < count; i++) {
@@ -58,7 +58,8 @@ public class SessionInit implements Packet {
     public void encode(NetOutputStream out, int version) throws IOException {
         out.setSSL(ci.isSSL());
         out.writeInt(Constants.TCP_PROTOCOL_VERSION_1); // minClientVersion
-        out.writeInt(Constants.TCP_PROTOCOL_VERSION_1); // maxClientVersion
+        // 客户端可以用MAX_PROTOCOL_VERSION参数限制协议版本，比如跟旧版本兼容时
+        out.writeInt(clientVersion > 0 ? clientVersion : Constants.TCP_PROTOCOL_VERSION_MAX); // maxClientVersion
         out.writeString(ci.getDatabaseShortName());
         out.writeString(ci.getURL()); // 不带参数的URL
         out.writeString(ci.getUserName());
@@ -65,7 +65,7 @@ public class StatementQueryAck implements AckPacket {
         for (int i = 0; i < columnCount; i++) {
             PreparedStatementGetMetaDataAck.writeColumn(out, result, i);
         }
-        ResultFetchRowsAck.writeRow(out, result, fetchSize);
+        ResultFetchRowsAck.writeRow(out, result, fetchSize, version);
     }
 
     public static final Decoder decoder = new Decoder();
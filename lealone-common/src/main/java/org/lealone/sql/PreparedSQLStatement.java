@@ -23,6 +23,7 @@ import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
 import org.lealone.db.result.Result;
 import org.lealone.db.session.Session;
+import org.lealone.db.value.Value;
 import org.lealone.storage.PageKey;
 import org.lealone.storage.replication.ReplicaSQLCommand;
 
@@ -50,6 +51,15 @@ public interface PreparedSQLStatement extends SQLStatement, ReplicaSQLCommand {
 
     boolean isCacheable();
 
+    // 依赖的数据库对象被修改过后需要重新编译
+    boolean needRecompile();
+
+    // 是否可以放到数据库级的计划缓存中给其他session复用
+    boolean isShareable();
+
+    // 从计划缓存中取出后绑定到新的session
+    void setSession(Session session);
+
     PreparedSQLStatement getWrappedStatement();
 
     double getCost();
@@ -81,12 +91,20 @@ public interface PreparedSQLStatement extends SQLStatement, ReplicaSQLCommand {
     Yieldable<Result> createYieldableQuery(int maxRows, boolean scrollable,
             AsyncHandler<AsyncResult<Result>> asyncHandler);
 
+    // 把每一行参数依次绑定到当前语句上执行，所有行在同一个事务中执行，返回每一行的更新记录数
+    Yieldable<int[]> createYieldableBatchUpdate(List<Value[]> batchParameters,
+            AsyncHandler<AsyncResult<int[]>> asyncHandler);
+
     static interface Yieldable<T> {
         boolean run();
 
         T getResult();
 
         void setPageKeys(List<PageKey> pageKeys);
+
+        // 查询语句的结果可以等到客户端取数据时再产生
+        default void setLazy(boolean lazy) {
+        }
     }
 
     default boolean yieldIfNeeded() {
@@ -130,6 +130,13 @@ public interface Transaction {
 
     void asyncCommit(Runnable asyncTask);
 
+    // 提交时如果要等其他正在提交的事务结束，就把listener放到它的等待队列中然后返回false，
+    // 被唤醒后调用者要重新调用这个方法继续提交。listener为null时在当前线程中等待，和asyncCommit一样
+    default boolean tryAsyncCommit(Runnable asyncTask, Listener listener) {
+        asyncCommit(asyncTask);
+        return true;
+    }
+
     void commit();
 
     void commit(String allLocalTransactionNames);
@@ -148,6 +155,22 @@ public interface Transaction {
 
     Transaction getLockedBy();
 
+    default boolean isReadOnly() {
+        return false;
+    }
+
+    // 只读事务在第一次写之前升级为普通事务
+    default void upgradeToReadWrite() {
+    }
+
+    // 乐观并发控制模式，写操作不加锁，提交时才检查冲突
+    default void setOptimistic(boolean optimistic) {
+    }
+
+    default boolean isOptimistic() {
+        return false;
+    }
+
     interface Participant {
         void addSavepoint(String name);
 
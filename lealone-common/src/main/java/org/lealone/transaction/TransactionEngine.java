@@ -17,6 +17,9 @@
  */
 package org.lealone.transaction;
 
+import java.util.Collections;
+import java.util.Map;
+
 import org.lealone.db.PluggableEngine;
 import org.lealone.db.RunMode;
 
@@ -28,6 +31,11 @@ public interface TransactionEngine extends PluggableEngine {
 
     Transaction beginTransaction(boolean autoCommit, RunMode runMode);
 
+    // 不支持只读事务的引擎直接开始一个普通事务
+    default Transaction beginTransaction(boolean autoCommit, RunMode runMode, boolean readOnly) {
+        return beginTransaction(autoCommit, runMode);
+    }
+
     boolean validateTransaction(String localTransactionName);
 
     boolean supportsMVCC();
@@ -35,4 +43,9 @@ public interface TransactionEngine extends PluggableEngine {
     TransactionMap<?, ?> getTransactionMap(String mapName, Transaction transaction);
 
     void checkpoint();
+
+    // 运行时统计信息，通过INFORMATION_SCHEMA.TRANSACTION_METRICS表查看
+    default Map<String, String> getMetrics() {
+        return Collections.emptyMap();
+    }
 }
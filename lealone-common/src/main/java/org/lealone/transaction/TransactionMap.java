@@ -21,6 +21,7 @@ package org.lealone.transaction;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.function.UnaryOperator;
 
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
@@ -108,6 +109,13 @@ public interface TransactionMap<K, V> extends StorageMap<K, V> {
 
     public int tryUpdate(K key, V newValue, int[] columnIndexes, Object oldTransactionalValue);
 
+    // 对columnIndexes中的字段做可交换的增量修改(比如计数器加1)，增量由op作用在某个版本的记录上得到新记录，
+    // 支持的实现可以不加锁，等到提交时再把增量合并到最新的已提交值上，不支持的实现直接在oldValue上修改
+    public default int tryIncrement(K key, V oldValue, int[] columnIndexes, Object oldTransactionalValue,
+            UnaryOperator<V> op) {
+        return tryUpdate(key, op.apply(oldValue), columnIndexes, oldTransactionalValue);
+    }
+
     public default int tryRemove(K key) {
         Object oldTransactionalValue = getTransactionalValue(key);
         return tryRemove(key, oldTransactionalValue);
@@ -9,6 +9,7 @@ package org.lealone.db;
 import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -24,6 +25,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
 import org.lealone.common.trace.TraceModuleType;
@@ -166,6 +170,8 @@ public class Database implements DataHandler, DbObject, IDatabase {
 
     private final AtomicLong modificationDataId = new AtomicLong();
     private final AtomicLong modificationMetaId = new AtomicLong();
+    // 修改数据库设置这类全局操作时的modificationMetaId，之前编译的语句都要重新编译
+    private volatile long globalModificationMetaId = -1;
 
     private Table meta;
     private String metaStorageEngineName;
@@ -213,6 +219,7 @@ public class Database implements DataHandler, DbObject, IDatabase {
     private ConnectionInfo lastConnectionInfo;
 
     private final DbObjectVersionManager dbObjectVersionManager = new DbObjectVersionManager();
+    private final PlanCache planCache = new PlanCache(this);
 
     private String[] hostIds;
     private HashSet<NetNode> nodes;
@@ -429,9 +436,36 @@ public class Database implements DataHandler, DbObject, IDatabase {
         }
 
         opened();
+        registerMBean();
         state = State.OPENED;
     }
 
+    private ObjectName getMBeanName() throws Exception {
+        return new ObjectName("org.lealone:type=PlanCache,name=" + ObjectName.quote(name));
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = getMBeanName();
+            if (mbs.isRegistered(mbeanName))
+                mbs.unregisterMBean(mbeanName);
+            mbs.registerMBean(planCache, mbeanName);
+        } catch (Exception e) {
+            trace.error(e, "register plan cache mbean");
+        }
+    }
+
+    private void unregisterMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = getMBeanName();
+            if (mbs.isRegistered(mbeanName))
+                mbs.unregisterMBean(mbeanName);
+        } catch (Exception e) {
+        }
+    }
+
     private boolean isLealoneDatabase() {
         return LealoneDatabase.ID == id;
     }
@@ -650,6 +684,20 @@ public class Database implements DataHandler, DbObject, IDatabase {
         return modificationMetaId.getAndIncrement();
     }
 
+    public long getGlobalModificationMetaId() {
+        return globalModificationMetaId;
+    }
+
+    // 不是修改某个数据库对象，而是修改了数据库设置等会影响所有语句的东西
+    public void setGlobalModified() {
+        globalModificationMetaId = getNextModificationMetaId();
+        planCache.clear();
+    }
+
+    public PlanCache getPlanCache() {
+        return planCache;
+    }
+
     public void setPowerOffCount(int count) {
         if (powerOffCount == -1) {
             return;
@@ -1292,6 +1340,8 @@ public class Database implements DataHandler, DbObject, IDatabase {
             s.close();
         }
 
+        planCache.clear();
+        unregisterMBean();
         state = State.CLOSED;
     }
 
@@ -96,6 +96,15 @@ public class DbSettings extends SettingsBase {
      */
     public final int analyzeSample = get(DbSetting.ANALYZE_SAMPLE, 10000);
 
+    /**
+     * Database setting <code>AUTO_PARAMETERIZE</code> (default: false).<br />
+     * Replace the literals of SQL statements that are not prepared by the
+     * client with parameters, so that statements which only differ in their
+     * literals can share the same entry of the plan cache. Only literals that
+     * do not affect the execution plan are replaced.
+     */
+    public final boolean autoParameterize = get(DbSetting.AUTO_PARAMETERIZE, false);
+
     /**
      * Database setting <code>DATABASE_TO_UPPER</code> (default: true).<br />
      * Database short names are converted to uppercase for the DATABASE()
@@ -156,6 +165,18 @@ public class DbSettings extends SettingsBase {
      */
     public final int largeResultBufferSize = get(DbSetting.LARGE_RESULT_BUFFER_SIZE, 4 * 1024);
 
+    /**
+     * Database setting <code>LAZY_QUERY_EXECUTION</code> (default: false).<br />
+     * Simple queries without sorting, grouping or distinct that are executed
+     * by a client over the network produce their rows only when the client
+     * fetches them, instead of building the whole result before the first
+     * row is sent.
+     * The rows are read after the statement and, in autocommit mode, its
+     * transaction have finished, so an open result sees changes committed
+     * after the query started.
+     */
+    public final boolean lazyQueryExecution = get(DbSetting.LAZY_QUERY_EXECUTION, false);
+
     /**
      * Database setting <code>LARGE_TRANSACTIONS</code> (default: true).<br />
      * Support very large transactions
@@ -242,14 +263,32 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean optimizeTwoEquals = get(DbSetting.OPTIMIZE_TWO_EQUALS, true);
 
+    /**
+     * Database setting <code>PLAN_CACHE_SIZE</code> (default: 256).<br />
+     * The size of the database level plan cache, in number of distinct
+     * statements. The cache is shared by all sessions of the same user. When
+     * it is full the least recently used statement is evicted together with
+     * all of its idle instances. Set to 0 to disable the cache.
+     */
+    public final int planCacheSize = get(DbSetting.PLAN_CACHE_SIZE, 256);
+
+    /**
+     * Database setting <code>PLAN_CACHE_MAX_INSTANCES</code> (default: 8).<br />
+     * The number of idle instances kept in the plan cache for each statement.
+     * Each instance is used by only one session at a time, so this limits how
+     * many sessions can reuse the same statement concurrently without parsing
+     * it again. Instances returned beyond this limit are dropped. The plan
+     * cache holds at most PLAN_CACHE_SIZE * PLAN_CACHE_MAX_INSTANCES idle
+     * statements. Set to 0 to disable the plan cache.
+     */
+    public final int planCacheMaxInstances = get(DbSetting.PLAN_CACHE_MAX_INSTANCES, 8);
+
     /**
      * Database setting <code>QUERY_CACHE_SIZE</code> (default: 8).<br />
-     * The size of the query cache, in number of cached statements. Each session
-     * has it's own cache with the given size. The cache is only used if the SQL
-     * statement and all parameters match. Only the last returned result per
-     * query is cached. Only SELECT statements are cached (excluding UNION and
-     * FOR UPDATE statements). This works for both statements and prepared
-     * statement.
+     * Not used any more. The per-session query cache was replaced by the
+     * database level plan cache, see <code>PLAN_CACHE_SIZE</code> and
+     * <code>PLAN_CACHE_MAX_INSTANCES</code>. The setting is still accepted so
+     * that existing database parameters keep working.
      */
     public final int queryCacheSize = get(DbSetting.QUERY_CACHE_SIZE, 8);
 
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.db;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.lealone.sql.PreparedSQLStatement;
+
+/**
+ * 数据库级的执行计划缓存，同一个用户的所有session共享。
+ * 
+ * 语句对象是有状态的(参数值、游标等)，所以缓存中放的是空闲的语句实例，
+ * session从缓存中取出一个实例后独占使用，执行完后再放回缓存，给其他session复用，
+ * 这样就不需要每个session都重新解析和优化同样的语句了。
+ * 
+ * 使用限制:
+ * <ul>
+ * <li>最多缓存PLAN_CACHE_SIZE条不同的语句，按LRU淘汰，淘汰时这条语句的所有空闲实例都会被丢弃</li>
+ * <li>每条语句最多保留PLAN_CACHE_MAX_INSTANCES个空闲实例，
+ * 并发执行同一条语句的session多于这个数时，多出来的session还是要自己解析，用完的实例也会被丢弃</li>
+ * <li>所有操作都在同一把锁上串行执行，只适合缓存取出和放回这样很短的操作</li>
+ * <li>依赖视图、临时表的语句，以及有临时表的session都不使用计划缓存</li>
+ * </ul>
+ * 
+ * 运行时统计信息可以通过INFORMATION_SCHEMA.PLAN_CACHE表和JMX查看。
+ */
+public class PlanCache implements PlanCacheMXBean {
+
+    private final Database database;
+    // 按访问顺序排列，最久没有用过的语句最先被淘汰
+    private final LinkedHashMap<String, ArrayDeque<PreparedSQLStatement>> cache = new LinkedHashMap<>(16,
+            0.75f, true);
+    private int idleCount;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+
+    public PlanCache(Database database) {
+        this.database = database;
+    }
+
+    public boolean isEnabled() {
+        DbSettings settings = database.getSettings();
+        return settings.planCacheSize > 0 && settings.planCacheMaxInstances > 0;
+    }
+
+    /**
+     * 取出一个空闲的语句实例，调用者独占使用，没有可用的实例时返回null
+     */
+    public PreparedSQLStatement poll(String key) {
+        PreparedSQLStatement ps = null;
+        synchronized (this) {
+            ArrayDeque<PreparedSQLStatement> statements = cache.get(key);
+            if (statements != null) {
+                ps = statements.pollLast();
+                idleCount--;
+                // 依赖的对象被修改过了，同一条语句的所有实例都失效了
+                if (ps.needRecompile()) {
+                    invalidationCount.add(statements.size() + 1);
+                    idleCount -= statements.size();
+                    cache.remove(key);
+                    ps = null;
+                } else if (statements.isEmpty()) {
+                    cache.remove(key);
+                }
+            }
+        }
+        if (ps == null)
+            missCount.increment();
+        else
+            hitCount.increment();
+        return ps;
+    }
+
+    /**
+     * 把执行完的语句实例放回缓存，调用者之后不能再使用它
+     */
+    public void offer(String key, PreparedSQLStatement ps) {
+        DbSettings settings = database.getSettings();
+        int maxSize = settings.planCacheSize;
+        int maxInstances = settings.planCacheMaxInstances;
+        if (maxSize <= 0 || maxInstances <= 0)
+            return;
+        synchronized (this) {
+            ArrayDeque<PreparedSQLStatement> statements = cache.get(key);
+            if (statements == null) {
+                evictIfNeeded(maxSize - 1);
+                statements = new ArrayDeque<>();
+                cache.put(key, statements);
+            } else if (statements.size() >= maxInstances) {
+                // 空闲实例已经够多了，多出来的直接丢弃
+                return;
+            }
+            statements.addLast(ps);
+            idleCount++;
+        }
+    }
+
+    private void evictIfNeeded(int maxSize) {
+        Iterator<Map.Entry<String, ArrayDeque<PreparedSQLStatement>>> iterator = cache.entrySet().iterator();
+        while (cache.size() > maxSize && iterator.hasNext()) {
+            int size = iterator.next().getValue().size();
+            iterator.remove();
+            idleCount -= size;
+            evictionCount.add(size);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return invalidationCount.sum();
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    @Override
+    public synchronized void clear() {
+        cache.clear();
+        idleCount = 0;
+    }
+}
@@ -38,7 +38,10 @@ public class TransactionalDbObjects<T extends DbObject> {
     public TransactionalDbObjects(ServerSession session, HashMap<String, T> dbObjects, TransactionalDbObjects<T> old) {
         this.dbObjects = dbObjects;
         this.old = old;
-        version = session.getTransaction().getTransactionId();
+        // 修改数据库对象是写操作，只读事务需要先升级
+        Transaction transaction = session.getTransaction();
+        transaction.upgradeToReadWrite();
+        version = transaction.getTransactionId();
     }
 
     public HashMap<String, T> getDbObjects() {
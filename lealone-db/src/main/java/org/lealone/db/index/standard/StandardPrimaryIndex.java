@@ -231,6 +231,36 @@ public class StandardPrimaryIndex extends StandardIndex {
         return ret;
     }
 
+    // 不锁住整行，把对数值字段的增量记录下来，提交时再累加到最新的已提交值上
+    public int tryIncrement(ServerSession session, Row oldRow, List<Column> incrementColumns, Value[] deltas,
+            Transaction.Listener globalListener) {
+        int size = incrementColumns.size();
+        int[] columnIndexes = new int[size];
+        Column[] cols = new Column[size];
+        for (int i = 0; i < size; i++) {
+            cols[i] = incrementColumns.get(i);
+            columnIndexes[i] = cols[i].getColumnId();
+        }
+        TransactionMap<Value, VersionedValue> map = getMap(session);
+        if (map.isLocked(oldRow.getRawValue(), columnIndexes))
+            return map.addWaitingTransaction(ValueLong.get(oldRow.getKey()), oldRow.getRawValue(), globalListener);
+
+        VersionedValue oldValue = new VersionedValue(oldRow.getVersion(), ValueArray.get(oldRow.getValueList()));
+        return map.tryIncrement(ValueLong.get(oldRow.getKey()), oldValue, columnIndexes, oldRow.getRawValue(),
+                v -> {
+                    Value[] values = v.value.getList().clone();
+                    for (int i = 0; i < size; i++) {
+                        int columnId = columnIndexes[i];
+                        Value base = values[columnId];
+                        if (base == ValueNull.INSTANCE)
+                            continue;
+                        int type = Value.getHigherOrder(base.getType(), deltas[i].getType());
+                        values[columnId] = cols[i].convert(base.convertTo(type).add(deltas[i].convertTo(type)));
+                    }
+                    return new VersionedValue(v.version, ValueArray.get(values));
+                });
+    }
+
     @Override
     public int tryRemove(ServerSession session, Row row, Transaction.Listener globalListener) {
         Value key = ValueLong.get(row.getKey());
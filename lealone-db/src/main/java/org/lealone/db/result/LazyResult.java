@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.db.result;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.value.Value;
+import org.lealone.sql.IExpression;
+
+/**
+ * 不预先生成所有记录的结果集，每调用一次next()才产生下一行记录，
+ * 所以只能从前往后读一次，并且事先不知道总行数。
+ */
+public abstract class LazyResult implements Result {
+
+    private final IExpression[] expressions;
+    private final int visibleColumnCount;
+    private Value[] currentRow;
+    private int rowId = -1;
+    private boolean afterLast;
+    private boolean closed;
+    private Runnable closeListener;
+
+    public LazyResult(IExpression[] expressions, int visibleColumnCount) {
+        this.expressions = expressions;
+        this.visibleColumnCount = visibleColumnCount;
+    }
+
+    /**
+     * 产生下一行记录
+     *
+     * @return 下一行记录，没有更多记录时返回null
+     */
+    protected abstract Value[] fetchNextRow();
+
+    @Override
+    public boolean next() {
+        if (closed || afterLast)
+            return false;
+        currentRow = fetchNextRow();
+        if (currentRow == null) {
+            afterLast = true;
+            return false;
+        }
+        rowId++;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        throw DbException.getUnsupportedException("reset lazy result");
+    }
+
+    @Override
+    public Value[] currentRow() {
+        return currentRow;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public int getVisibleColumnCount() {
+        return visibleColumnCount;
+    }
+
+    // 行数未知
+    @Override
+    public int getRowCount() {
+        return -1;
+    }
+
+    @Override
+    public boolean needToClose() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        currentRow = null;
+        if (closeListener != null)
+            closeListener.run();
+    }
+
+    // 结果集关闭后产生它的语句才能被复用
+    public void setCloseListener(Runnable closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getAlias(int i) {
+        return expressions[i].getAlias();
+    }
+
+    @Override
+    public String getTableName(int i) {
+        return expressions[i].getTableName();
+    }
+
+    @Override
+    public String getSchemaName(int i) {
+        return expressions[i].getSchemaName();
+    }
+
+    @Override
+    public int getDisplaySize(int i) {
+        return expressions[i].getDisplaySize();
+    }
+
+    @Override
+    public String getColumnName(int i) {
+        return expressions[i].getColumnName();
+    }
+
+    @Override
+    public int getColumnType(int i) {
+        return expressions[i].getType();
+    }
+
+    @Override
+    public long getColumnPrecision(int i) {
+        return expressions[i].getPrecision();
+    }
+
+    @Override
+    public int getNullable(int i) {
+        return expressions[i].getNullable();
+    }
+
+    @Override
+    public boolean isAutoIncrement(int i) {
+        return expressions[i].isAutoIncrement();
+    }
+
+    @Override
+    public int getColumnScale(int i) {
+        return expressions[i].getScale();
+    }
+
+    @Override
+    public int getFetchSize() {
+        return 0;
+    }
+
+    @Override
+    public void setFetchSize(int fetchSize) {
+        // ignore
+    }
+}
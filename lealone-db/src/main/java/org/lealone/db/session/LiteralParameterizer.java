@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.db.session;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueDecimal;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueString;
+
+/**
+ * 一个轻量的词法分析器，把SELECT/INSERT/UPDATE/DELETE语句中的常量替换成参数，
+ * 只是常量不同的语句替换后得到的SQL是一样的，这样就能共享计划缓存中已经编译好的语句。
+ * <p>
+ * 只替换那些不会影响执行计划的常量:
+ * WHERE和SET之后紧跟在比较运算符后面的常量、INSERT语句VALUES中的常量以及IN列表中的常量，
+ * 并且常量后面只能是逗号、右括号、AND、OR这类结束一个表达式的记号。
+ * 像LIKE的模式串、LIMIT、ORDER BY、DATE '...'这类带类型的常量，以及参与运算的常量都保持不变。
+ * 遇到注释、参数和其他不认识的语法时直接放弃替换。
+ */
+class LiteralParameterizer {
+
+    private static final int WORD = 0;
+    private static final int QUOTED_WORD = 1;
+    private static final int NUMBER = 2;
+    private static final int STRING = 3;
+    private static final int SYMBOL = 4;
+    // 不能替换的常量，比如1e10、0x1F、10L
+    private static final int OTHER_VALUE = 5;
+
+    private final String sql;
+    private final ArrayList<Token> tokens = new ArrayList<>();
+    private final ArrayList<Value> values = new ArrayList<>();
+    private String newSQL;
+
+    private LiteralParameterizer(String sql) {
+        this.sql = sql;
+    }
+
+    String getSQL() {
+        return newSQL;
+    }
+
+    ArrayList<Value> getValues() {
+        return values;
+    }
+
+    /**
+     * 替换sql中的常量
+     *
+     * @param sql 原始的sql
+     * @return 没有可替换的常量或者无法安全替换时返回null
+     */
+    static LiteralParameterizer parameterize(String sql) {
+        LiteralParameterizer p = new LiteralParameterizer(sql);
+        if (!p.tokenize() || !p.isDml())
+            return null;
+        p.replace();
+        return p.values.isEmpty() ? null : p;
+    }
+
+    private boolean isDml() {
+        if (tokens.isEmpty())
+            return false;
+        Token t = tokens.get(0);
+        return t.is("SELECT") || t.is("INSERT") || t.is("UPDATE") || t.is("DELETE");
+    }
+
+    private boolean tokenize() {
+        String sql = this.sql;
+        int len = sql.length();
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (Character.isJavaIdentifierStart(c) && c != '$') {
+                while (i < len && isIdentifierPart(sql.charAt(i)))
+                    i++;
+                tokens.add(new Token(WORD, start, i));
+                continue;
+            }
+            if (c >= '0' && c <= '9') {
+                boolean dot = false;
+                while (i < len) {
+                    char ch = sql.charAt(i);
+                    if (ch == '.' && !dot) {
+                        dot = true;
+                    } else if (ch < '0' || ch > '9') {
+                        break;
+                    }
+                    i++;
+                }
+                int type = NUMBER;
+                if (i < len && (isIdentifierPart(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    while (i < len && (isIdentifierPart(sql.charAt(i)) || sql.charAt(i) == '.'))
+                        i++;
+                    type = OTHER_VALUE;
+                }
+                tokens.add(new Token(type, start, i));
+                continue;
+            }
+            switch (c) {
+            case '\'': {
+                i = skipQuoted(sql, i, '\'');
+                if (i < 0)
+                    return false;
+                int type = STRING;
+                // X'..'、N'..'、DATE '...'这类常量的前一个记号是单词，不会被替换；
+                // 空字符串在某些兼容模式下等同于NULL，也不替换
+                if (i - start == 2)
+                    type = OTHER_VALUE;
+                tokens.add(new Token(type, start, i));
+                continue;
+            }
+            case '"':
+            case '`': {
+                i = skipQuoted(sql, i, c);
+                if (i < 0)
+                    return false;
+                tokens.add(new Token(QUOTED_WORD, start, i));
+                continue;
+            }
+            case '-':
+            case '/':
+                // 注释
+                if (i + 1 < len && (sql.charAt(i + 1) == c || c == '/' && sql.charAt(i + 1) == '*'))
+                    return false;
+                break;
+            case '<':
+            case '>':
+            case '!':
+                if (i + 1 < len && (sql.charAt(i + 1) == '=' || c == '<' && sql.charAt(i + 1) == '>')) {
+                    tokens.add(new Token(SYMBOL, start, i + 2));
+                    i += 2;
+                    continue;
+                }
+                break;
+            case '?':
+            case '$':
+            case '{':
+            case '}':
+            case '\\':
+                return false;
+            default:
+            }
+            tokens.add(new Token(SYMBOL, start, i + 1));
+            i++;
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isJavaIdentifierPart(c) && c != '$';
+    }
+
+    private static int skipQuoted(String sql, int i, char quote) {
+        int len = sql.length();
+        i++;
+        while (i < len) {
+            if (sql.charAt(i) == quote) {
+                // 两个连续的引号是转义
+                if (i + 1 < len && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private void replace() {
+        boolean insert = tokens.get(0).is("INSERT");
+        boolean compareEnabled = false;
+        int valuesDepth = -1;
+        // 每一层括号是否是IN列表或VALUES中的一行
+        ArrayList<Boolean> lists = new ArrayList<>();
+        StringBuilder buff = new StringBuilder(sql.length());
+        int last = 0;
+        for (int i = 0, size = tokens.size(); i < size; i++) {
+            Token t = tokens.get(i);
+            switch (t.type) {
+            case WORD:
+                if (t.is("WHERE") || t.is("SET")) {
+                    compareEnabled = true;
+                } else if (t.is("GROUP") || t.is("HAVING") || t.is("ORDER") || t.is("LIMIT")
+                        || t.is("OFFSET")) {
+                    compareEnabled = false;
+                } else if (insert && t.is("VALUES") && valuesDepth < 0) {
+                    valuesDepth = lists.size();
+                }
+                break;
+            case SYMBOL:
+                if (t.is("(")) {
+                    Token prev = get(i - 1);
+                    boolean list = prev != null && (prev.is("IN") || prev.type == WORD && prev.is("VALUES")
+                            && lists.size() == valuesDepth
+                            || prev.is(",") && lists.size() == valuesDepth);
+                    lists.add(list);
+                } else if (t.is(")")) {
+                    if (lists.isEmpty())
+                        return;
+                    lists.remove(lists.size() - 1);
+                }
+                break;
+            case NUMBER:
+            case STRING: {
+                int start = i;
+                Token prev = get(i - 1);
+                boolean inList = !lists.isEmpty() && lists.get(lists.size() - 1);
+                boolean negative = false;
+                // 负数的符号也一起替换
+                if (t.type == NUMBER && prev.is("-")) {
+                    Token p = get(i - 2);
+                    if (isComparison(p) || inList && isListSeparator(p)) {
+                        negative = true;
+                        start = i - 1;
+                        prev = p;
+                    }
+                }
+                Token next = get(i + 1);
+                boolean replaceable;
+                if (inList && isListSeparator(prev)) {
+                    replaceable = next != null && (next.is(",") || next.is(")"));
+                } else {
+                    replaceable = compareEnabled && isComparison(prev) && isEndOfOperand(next);
+                }
+                if (replaceable) {
+                    buff.append(sql, last, tokens.get(start).start).append('?');
+                    last = t.end;
+                    values.add(getValue(t, negative));
+                }
+                break;
+            }
+            default:
+            }
+        }
+        buff.append(sql, last, sql.length());
+        newSQL = buff.toString();
+    }
+
+    private Token get(int i) {
+        return i >= 0 && i < tokens.size() ? tokens.get(i) : null;
+    }
+
+    private static boolean isListSeparator(Token t) {
+        return t != null && (t.is("(") || t.is(","));
+    }
+
+    private static boolean isComparison(Token t) {
+        return t != null && t.type == SYMBOL && (t.is("=") || t.is("<") || t.is(">") || t.is("<=")
+                || t.is(">=") || t.is("<>") || t.is("!="));
+    }
+
+    private static boolean isEndOfOperand(Token t) {
+        if (t == null)
+            return true;
+        if (t.type == SYMBOL)
+            return t.is(",") || t.is(")") || t.is(";");
+        if (t.type == WORD)
+            return t.is("AND") || t.is("OR") || t.is("ORDER") || t.is("GROUP") || t.is("HAVING")
+                    || t.is("LIMIT") || t.is("OFFSET") || t.is("WHERE") || t.is("UNION") || t.is("EXCEPT")
+                    || t.is("MINUS") || t.is("INTERSECT") || t.is("FOR");
+        return false;
+    }
+
+    private Value getValue(Token t, boolean negative) {
+        String s = sql.substring(t.start, t.end);
+        if (t.type == STRING) {
+            return ValueString.get(s.substring(1, s.length() - 1).replace("''", "'"));
+        }
+        if (s.indexOf('.') >= 0) {
+            BigDecimal bd = new BigDecimal(s);
+            return ValueDecimal.get(negative ? bd.negate() : bd);
+        }
+        BigInteger bi = new BigInteger(s);
+        if (negative)
+            bi = bi.negate();
+        if (bi.bitLength() < 32)
+            return ValueInt.get(bi.intValue());
+        else if (bi.bitLength() < 64)
+            return ValueLong.get(bi.longValue());
+        else
+            return ValueDecimal.get(new BigDecimal(bi));
+    }
+
+    private class Token {
+        final int type;
+        final int start;
+        final int end;
+
+        Token(int type, int start, int end) {
+            this.type = type;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean is(String s) {
+            return (type == WORD || type == SYMBOL) && end - start == s.length()
+                    && sql.regionMatches(true, start, s, 0, s.length());
+        }
+    }
+}
@@ -18,8 +18,8 @@ import java.util.Random;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
 import org.lealone.common.trace.TraceSystem;
-import org.lealone.common.util.SmallLRUCache;
 import org.lealone.db.Command;
+import org.lealone.db.CommandParameter;
 import org.lealone.db.ConnectionInfo;
 import org.lealone.db.Constants;
 import org.lealone.db.DataHandler;
@@ -97,6 +97,7 @@ public class ServerSession extends SessionBase {
     private HashMap<String, Constraint> localTempTableConstraints;
     private int throttle;
     private long lastThrottle;
+    private boolean optimistic;
     private PreparedSQLStatement currentCommand;
     private int currentCommandSavepointId;
     private boolean allowLiterals;
@@ -119,9 +120,6 @@ public class ServerSession extends SessionBase {
     private Thread waitForLockThread;
     private int modificationId;
     private int objectId;
-    private final int queryCacheSize;
-    private SmallLRUCache<String, PreparedSQLStatement> queryCache;
-    private long modificationMetaID = -1;
 
     private boolean containsDDL;
     private boolean containsDatabaseStatement;
@@ -131,7 +129,6 @@ public class ServerSession extends SessionBase {
     public ServerSession(Database database, User user, int id) {
         this.database = database;
         this.queryTimeout = database.getSettings().maxQueryTimeout;
-        this.queryCacheSize = database.getSettings().queryCacheSize;
         this.user = user;
         this.id = id;
         this.lockTimeout = database.getSettings().defaultLockTimeout;
@@ -475,31 +472,18 @@ public class ServerSession extends SessionBase {
         if (closed) {
             throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "session closed");
         }
-        PreparedSQLStatement ps;
-        if (queryCacheSize > 0) {
-            if (queryCache == null) {
-                queryCache = SmallLRUCache.newInstance(queryCacheSize);
-                modificationMetaID = database.getModificationMetaId();
-            } else {
-                long newModificationMetaID = database.getModificationMetaId();
-                if (newModificationMetaID != modificationMetaID) {
-                    queryCache.clear();
-                    modificationMetaID = newModificationMetaID;
-                } else {
-                    ps = queryCache.get(sql);
-                    if (ps != null && ps.canReuse()) {
-                        ps.reuse();
-                        return ps;
-                    }
-                }
+        PreparedSQLStatement ps = null;
+        String key = getPlanCacheKey(sql);
+        if (key != null) {
+            ps = database.getPlanCache().poll(key);
+            if (ps != null) {
+                ps.setSession(this);
+                ps.reuse();
             }
         }
-        SQLParser parser = database.createParser(this);
-        ps = parser.parse(sql).prepare();
-        if (queryCache != null) {
-            if (ps.isCacheable()) {
-                queryCache.put(sql, ps);
-            }
+        if (ps == null) {
+            SQLParser parser = database.createParser(this);
+            ps = parser.parse(sql).prepare();
         }
         ps.setLocal(isLocal());
         if (fetchSize != -1)
@@ -507,6 +491,67 @@ public class ServerSession extends SessionBase {
         return ps;
     }
 
+    /**
+     * 准备客户端直接执行的非Prepared语句，开启AUTO_PARAMETERIZE后会先把其中的常量替换成参数，
+     * 这样只是常量不同的语句也能共享计划缓存中的同一个语句
+     */
+    public PreparedSQLStatement prepareStatementAutoParameterized(String sql, int fetchSize) {
+        if (canAutoParameterize()) {
+            LiteralParameterizer lp = LiteralParameterizer.parameterize(sql);
+            if (lp != null) {
+                PreparedSQLStatement ps = null;
+                try {
+                    ps = prepareStatement(lp.getSQL(), fetchSize);
+                } catch (DbException e) {
+                    // 替换后的语句不合法时回退到原始的SQL
+                }
+                if (ps != null) {
+                    List<? extends CommandParameter> params = ps.getParameters();
+                    ArrayList<Value> values = lp.getValues();
+                    if (params.size() == values.size()) {
+                        for (int i = 0, size = values.size(); i < size; i++) {
+                            params.get(i).setValue(values.get(i));
+                        }
+                        return ps;
+                    }
+                }
+            }
+        }
+        return prepareStatement(sql, fetchSize);
+    }
+
+    // 复制模式下其他节点会用原始的SQL重新执行，不允许常量的数据库也不能绕过检查
+    private boolean canAutoParameterize() {
+        return database.getSettings().autoParameterize && replicationName == null
+                && database.getAllowLiterals() == Constants.ALLOW_LITERALS_ALL
+                && database.getPlanCache().isEnabled();
+    }
+
+    // 同一个用户在相同的schema下执行的语句才能共享，session有临时表时不使用计划缓存
+    private String getPlanCacheKey(String sql) {
+        if (!database.getPlanCache().isEnabled() || localTempTables != null && !localTempTables.isEmpty())
+            return null;
+        StringBuilder buff = new StringBuilder(sql.length() + 64);
+        buff.append(user.getName()).append('\n').append(currentSchemaName).append('\n');
+        if (schemaSearchPath != null) {
+            for (String s : schemaSearchPath)
+                buff.append(s).append(',');
+        }
+        return buff.append('\n').append(sql).toString();
+    }
+
+    /**
+     * 语句不再被使用时放回数据库级的计划缓存中，给其他session复用，调用者之后不能再使用它
+     */
+    public void recycleStatement(PreparedSQLStatement ps) {
+        // 还在执行中的语句不能放回去
+        if (ps == currentCommand || !ps.canReuse() || !ps.isShareable())
+            return;
+        String key = getPlanCacheKey(ps.getSQL());
+        if (key != null)
+            database.getPlanCache().offer(key, ps);
+    }
+
     @Override
     public Database getDatabase() {
         return database;
@@ -514,16 +559,64 @@ public class ServerSession extends SessionBase {
 
     @Override
     public void asyncCommit(Runnable asyncTask) {
-        if (transaction != null) {
-            transaction.setStatus(Transaction.STATUS_COMMITTING);
+        tryAsyncCommit(asyncTask, false);
+    }
+
+    // 提交时如果要等其他正在提交的事务结束，返回false，当前命令让出调度线程，被唤醒后再调用一次
+    public boolean tryAsyncCommit(Runnable asyncTask) {
+        return tryAsyncCommit(asyncTask, true);
+    }
+
+    private boolean tryAsyncCommit(Runnable asyncTask, boolean canYield) {
+        Transaction t = transaction;
+        if (t != null) {
+            t.setStatus(Transaction.STATUS_COMMITTING);
             sessionStatus = SessionStatus.TRANSACTION_COMMITTING;
-            transaction.asyncCommit(asyncTask);
+            try {
+                if (!t.tryAsyncCommit(asyncTask, canYield ? getCommitListener() : null)) {
+                    sessionStatus = SessionStatus.WAITING;
+                    // 在设置WAITING之前可能已经被唤醒了
+                    if (t.getStatus() != Transaction.STATUS_WAITING)
+                        sessionStatus = SessionStatus.TRANSACTION_NOT_COMMIT;
+                    return false;
+                }
+            } catch (DbException e) {
+                // 乐观模式或者合并增量修改时发现了冲突，回滚整个事务
+                if (t.getStatus() != Transaction.STATUS_CLOSED)
+                    rollback();
+                throw e;
+            }
         } else {
             // 在手动提交模式下执行了COMMIT语句，然后再手动提交事务，
             // 此时transaction为null，但是asyncTask不为null
             if (asyncTask != null)
                 asyncTask.run();
         }
+        return true;
+    }
+
+    // 只有在调度线程中才能让出，被唤醒后session重新变成可执行的，由调度线程再次执行当前命令
+    private Transaction.Listener getCommitListener() {
+        Object thread = Thread.currentThread();
+        if (!(thread instanceof Transaction.Listener))
+            return null;
+        Transaction.Listener scheduler = (Transaction.Listener) thread;
+        return new Transaction.Listener() {
+            @Override
+            public void operationUndo() {
+            }
+
+            @Override
+            public void operationComplete() {
+            }
+
+            @Override
+            public void wakeUp() {
+                if (sessionStatus == SessionStatus.WAITING)
+                    sessionStatus = SessionStatus.TRANSACTION_NOT_COMMIT;
+                scheduler.wakeUp();
+            }
+        };
     }
 
     @Override
@@ -552,10 +645,18 @@ public class ServerSession extends SessionBase {
         // 避免重复commit
         Transaction transaction = this.transaction;
         this.transaction = null;
-        if (allLocalTransactionNames == null)
-            transaction.commit();
-        else
-            transaction.commit(allLocalTransactionNames);
+        try {
+            if (allLocalTransactionNames == null)
+                transaction.commit();
+            else
+                transaction.commit(allLocalTransactionNames);
+        } catch (DbException e) {
+            if (transaction.getStatus() != Transaction.STATUS_CLOSED) {
+                this.transaction = transaction;
+                rollback();
+            }
+            throw e;
+        }
         endTransaction();
         commitFinal();
     }
@@ -824,6 +925,15 @@ public class ServerSession extends SessionBase {
         this.throttle = throttle;
     }
 
+    // 从下一个事务开始生效
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
     /**
      * Wait for some time if this session is throttled (slowed down).
      */
@@ -872,7 +982,8 @@ public class ServerSession extends SessionBase {
         }
     }
 
-    public <T> void stopCurrentCommand(AsyncHandler<AsyncResult<T>> asyncHandler, AsyncResult<T> asyncResult) {
+    // 返回false表示提交时要等其他事务，当前命令要让出调度线程，被唤醒后再调用一次
+    public <T> boolean stopCurrentCommand(AsyncHandler<AsyncResult<T>> asyncHandler, AsyncResult<T> asyncResult) {
         closeTemporaryResults();
         closeCurrentCommand();
         // 发生复制冲突时当前session进行重试，此时已经不需要再向客户端返回结果了，直接提交即可
@@ -889,7 +1000,11 @@ public class ServerSession extends SessionBase {
                 // 在复制模式下不能自动提交
                 if (isAutoCommit() && getReplicationName() == null) {
                     // 不阻塞当前线程，异步提交事务，等到事务日志写成功后再给客户端返回语句的执行结果
-                    asyncCommit(() -> asyncHandler.handle(asyncResult));
+                    try {
+                        return tryAsyncCommit(() -> asyncHandler.handle(asyncResult));
+                    } catch (DbException e) {
+                        asyncHandler.handle(new AsyncResult<>(e));
+                    }
                 } else {
                     // 当前语句是在一个手动提交的事务中进行，提前给客户端返回语句的执行结果
                     asyncHandler.handle(asyncResult);
@@ -901,6 +1016,7 @@ public class ServerSession extends SessionBase {
                 }
             }
         }
+        return true;
     }
 
     public void rollbackCurrentCommand() {
@@ -1296,13 +1412,23 @@ public class ServerSession extends SessionBase {
 
     @Override
     public Transaction getTransaction(PreparedSQLStatement p) {
-        if (transaction != null)
+        if (transaction != null) {
+            // 只读事务遇到非查询语句时提前升级为普通事务
+            if (p != null && !p.isQuery() && transaction.isReadOnly())
+                transaction.upgradeToReadWrite();
             return transaction;
+        }
 
         boolean isShardingMode = isShardingMode();
-        Transaction transaction = database.getTransactionEngine().beginTransaction(autoCommit, getRunMode());
+        // 自动提交模式下的查询语句(包括解析语句时)先用只读事务，不需要分配事务id，第一次写时再升级
+        boolean readOnly = autoCommit && !isShardingMode && replicationName == null && (p == null || p.isQuery());
+        Transaction transaction = database.getTransactionEngine().beginTransaction(autoCommit, getRunMode(),
+                readOnly);
         transaction.setSession(this);
         transaction.setGlobalReplicationName(replicationName);
+        // 乐观模式只用于单机事务
+        if (optimistic && !isShardingMode && replicationName == null)
+            transaction.setOptimistic(true);
 
         // TODO p != null && !p.isLocal()是否需要？
         if (isRoot && !autoCommit && isShardingMode && p != null && !p.isLocal())
@@ -1418,7 +1544,7 @@ public class ServerSession extends SessionBase {
         storage.replicateFrom(data);
     }
 
-    private SessionStatus sessionStatus = SessionStatus.TRANSACTION_NOT_START;
+    private volatile SessionStatus sessionStatus = SessionStatus.TRANSACTION_NOT_START;
 
     @Override
     public SessionStatus getStatus() {
@@ -28,6 +28,7 @@ import org.lealone.db.Database;
 import org.lealone.db.DbObject;
 import org.lealone.db.DbObjectType;
 import org.lealone.db.LealoneDatabase;
+import org.lealone.db.PlanCache;
 import org.lealone.db.QueryStatisticsData;
 import org.lealone.db.auth.Right;
 import org.lealone.db.auth.Role;
@@ -102,7 +103,9 @@ public class MetaTable extends Table {
     private static final int SESSION_STATE = 27;
     private static final int QUERY_STATISTICS = 28;
     private static final int DATABASES = 29;
-    private static final int META_TABLE_TYPE_COUNT = DATABASES + 1;
+    private static final int TRANSACTION_METRICS = 30;
+    private static final int PLAN_CACHE = 31;
+    private static final int META_TABLE_TYPE_COUNT = PLAN_CACHE + 1;
 
     private final int type;
     private final int indexColumn;
@@ -291,6 +294,14 @@ public class MetaTable extends Table {
             setObjectName("DATABASES");
             cols = createColumns("DATABASE_NAME", "RUN_MODE", "NODES");
             break;
+        case TRANSACTION_METRICS:
+            setObjectName("TRANSACTION_METRICS");
+            cols = createColumns("NAME", "VALUE");
+            break;
+        case PLAN_CACHE:
+            setObjectName("PLAN_CACHE");
+            cols = createColumns("NAME", "VALUE");
+            break;
         default:
             throw DbException.throwInternalError("type=" + type);
         }
@@ -1380,6 +1391,27 @@ public class MetaTable extends Table {
             }
             break;
         }
+        case TRANSACTION_METRICS: {
+            for (Map.Entry<String, String> e : database.getTransactionEngine().getMetrics().entrySet()) {
+                add(rows,
+                        // NAME
+                        e.getKey(),
+                        // VALUE
+                        e.getValue());
+            }
+            break;
+        }
+        case PLAN_CACHE: {
+            PlanCache planCache = database.getPlanCache();
+            add(rows, "size", Integer.toString(planCache.getSize()));
+            add(rows, "idle_count", Integer.toString(planCache.getIdleCount()));
+            add(rows, "hit_count", Long.toString(planCache.getHitCount()));
+            add(rows, "miss_count", Long.toString(planCache.getMissCount()));
+            add(rows, "hit_rate", Double.toString(planCache.getHitRate()));
+            add(rows, "eviction_count", Long.toString(planCache.getEvictionCount()));
+            add(rows, "invalidation_count", Long.toString(planCache.getInvalidationCount()));
+            break;
+        }
         default:
             DbException.throwInternalError("type=" + type);
         }
@@ -1518,6 +1550,8 @@ public class MetaTable extends Table {
         case SESSIONS:
         case LOCKS:
         case SESSION_STATE:
+        case TRANSACTION_METRICS:
+        case PLAN_CACHE:
             return Long.MAX_VALUE;
         }
         return database.getModificationDataId();
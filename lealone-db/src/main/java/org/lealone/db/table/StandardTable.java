@@ -371,6 +371,33 @@ public class StandardTable extends Table {
         return Transaction.OPERATION_COMPLETE;
     }
 
+    @Override
+    public boolean canIncrementColumns(List<Column> incrementColumns) {
+        if (isReferencedByTriggerOrConstraint(incrementColumns))
+            return false;
+        int mainIndexColumn = primaryIndex.getMainIndexColumn();
+        for (Column c : incrementColumns) {
+            if (c.getColumnId() == mainIndexColumn)
+                return false;
+            // 第一个是PrimaryIndex，其他索引包含这些字段时不能合并
+            for (int i = 1, size = indexes.size(); i < size; i++) {
+                if (indexes.get(i).getColumnIndex(c) >= 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int tryIncrementRow(ServerSession session, Row oldRow, List<Column> incrementColumns, Value[] deltas,
+            Transaction.Listener globalListener) {
+        lastModificationId = database.getNextModificationDataId();
+        int ret = primaryIndex.tryIncrement(session, oldRow, incrementColumns, deltas, globalListener);
+        if (ret == Transaction.OPERATION_COMPLETE)
+            analyzeIfRequired(session);
+        return ret;
+    }
+
     @Override
     public void removeRow(ServerSession session, Row row) {
         tryRemoveRow(session, row, false, null);
@@ -282,6 +282,32 @@ public abstract class Table extends SchemaObjectBase implements DbObjectLock {
         throw newUnsupportedException();
     }
 
+    // 只有这些字段上的更新都可以当成增量合并时才返回true，例如没有触发器、约束和二级索引引用它们
+    public boolean canIncrementColumns(List<Column> incrementColumns) {
+        return false;
+    }
+
+    protected boolean isReferencedByTriggerOrConstraint(List<Column> columns) {
+        if (triggers != null && !triggers.isEmpty())
+            return true;
+        if (constraints != null) {
+            for (Constraint constraint : constraints) {
+                HashSet<Column> set = constraint.getReferencedColumns(this);
+                for (Column c : columns) {
+                    if (set.contains(c))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // 把deltas累加到oldRow对应的字段上，不锁住整行，在事务提交时才合并到最新的已提交值上
+    public int tryIncrementRow(ServerSession session, Row oldRow, List<Column> incrementColumns, Value[] deltas,
+            Transaction.Listener globalListener) {
+        throw newUnsupportedException();
+    }
+
     /**
      * Remove a row from the table and all indexes.
      *
@@ -757,6 +783,8 @@ public abstract class Table extends SchemaObjectBase implements DbObjectLock {
                     col.setPrimaryKey(false);
                 }
             }
+            // 使用这个索引的执行计划要重新编译
+            setModified();
         }
     }
 
@@ -36,6 +36,10 @@ public abstract class AsyncConnection {
 
     public abstract void handle(NetBuffer buffer);
 
+    public boolean isServer() {
+        return isServer;
+    }
+
     public WritableChannel getWritableChannel() {
         return writableChannel;
     }
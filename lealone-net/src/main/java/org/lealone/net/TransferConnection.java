@@ -130,11 +130,8 @@ public abstract class TransferConnection extends AsyncConnection {
             while (true) {
                 // 必须生成新的Transfer实例，不同协议包对应不同Transfer实例，
                 // 否则如果有多个CommandHandler线程时会用同一个Transfer实例写数据，这会产生并发问题。
-                TransferInputStream in;
-                if (pos == 0)
-                    in = new TransferInputStream(buffer);
-                else
-                    in = new TransferInputStream(buffer.slice(pos, pos + length));
+                // 每个协议包引用buffer中的一段，解析完后各自释放，都释放了buffer才会被回收
+                TransferInputStream in = new TransferInputStream(buffer.slice(pos, pos + length));
                 int packetLength = in.readInt();
                 if (length - 4 == packetLength) {
                     handlePacket(in);
@@ -151,6 +148,7 @@ public abstract class TransferConnection extends AsyncConnection {
                         continue;
                     }
                 } else {
+                    in.closeInputStream();
                     lastBuffer = buffer.getBuffer(pos, pos + length);
                     break;
                 }
@@ -160,6 +158,8 @@ public abstract class TransferConnection extends AsyncConnection {
                 logger.error("Failed to handle packet", e);
             else
                 throw DbException.convert(e);
+        } finally {
+            buffer.recycle();
         }
     }
 
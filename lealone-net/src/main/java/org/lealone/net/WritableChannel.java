@@ -35,4 +35,13 @@ public interface WritableChannel {
 
     NetBufferFactory getBufferFactory();
 
+    // 待写的数据超过高水位后返回false，降到低水位以下才恢复
+    default boolean isWritable() {
+        return true;
+    }
+
+    // 从不可写变成可写时调用
+    default void setWritableListener(Runnable listener) {
+    }
+
 }
@@ -25,9 +25,23 @@ import org.lealone.net.NetBuffer;
 public class NioBuffer implements NetBuffer {
 
     private DataBuffer dataBuffer;
+    // 从NioBufferPool中分配的buffer，slice出来的NioBuffer共享同一个
+    private NioBufferPool.PooledBuffer pooledBuffer;
+    // 只有独占dataBuffer时才能放回DataBuffer的池中，slice出来的不能
+    private boolean recyclable;
 
     public NioBuffer(DataBuffer dataBuffer) {
+        this(dataBuffer, true);
+    }
+
+    private NioBuffer(DataBuffer dataBuffer, boolean recyclable) {
         this.dataBuffer = dataBuffer;
+        this.recyclable = recyclable;
+    }
+
+    NioBuffer(DataBuffer dataBuffer, NioBufferPool.PooledBuffer pooledBuffer) {
+        this.dataBuffer = dataBuffer;
+        this.pooledBuffer = pooledBuffer;
     }
 
     public ByteBuffer getAndFlipBuffer() {
@@ -41,16 +55,26 @@ public class NioBuffer implements NetBuffer {
     @Override
     public NioBuffer appendBuffer(NetBuffer buff) {
         if (buff instanceof NioBuffer) {
-            DataBuffer newDataBuffer = ((NioBuffer) buff).dataBuffer;
+            NioBuffer nioBuffer = (NioBuffer) buff;
+            DataBuffer newDataBuffer = nioBuffer.dataBuffer;
             if (dataBuffer.limit() == 0) {
+                recycle();
                 dataBuffer = newDataBuffer;
+                pooledBuffer = nioBuffer.pooledBuffer;
+                recyclable = nioBuffer.recyclable;
+                nioBuffer.pooledBuffer = null;
+                nioBuffer.recyclable = false;
             } else {
                 DataBuffer tmp = DataBuffer
                         .create(dataBuffer.limit() + (newDataBuffer.limit() - newDataBuffer.position()));
                 tmp.put(dataBuffer.getBuffer());
                 tmp.put(newDataBuffer.getBuffer());
                 tmp.getBuffer().flip();
+                // 数据已经复制出来了，原来的两个buffer可以释放了
+                recycle();
+                nioBuffer.recycle();
                 dataBuffer = tmp;
+                recyclable = false;
                 // dataBuffer.position(dataBuffer.limit()).put(newDataBuffer.getBuffer());
                 // dataBuffer.getBuffer().flip();
             }
@@ -70,13 +94,17 @@ public class NioBuffer implements NetBuffer {
     @Override
     public NioBuffer slice(int start, int end) {
         DataBuffer newDataBuffer = dataBuffer.slice(start, end);
-        return new NioBuffer(newDataBuffer);
+        if (pooledBuffer != null) {
+            pooledBuffer.retain();
+            return new NioBuffer(newDataBuffer, pooledBuffer);
+        }
+        return new NioBuffer(newDataBuffer, false);
     }
 
     @Override
     public NioBuffer getBuffer(int start, int end) {
         DataBuffer newDataBuffer = dataBuffer.getBuffer(start, end);
-        return new NioBuffer(newDataBuffer);
+        return new NioBuffer(newDataBuffer, false);
     }
 
     @Override
@@ -110,7 +138,14 @@ public class NioBuffer implements NetBuffer {
 
     @Override
     public void recycle() {
-        dataBuffer.close();
+        // 多次调用也是安全的
+        if (pooledBuffer != null) {
+            pooledBuffer.release();
+            pooledBuffer = null;
+        } else if (recyclable) {
+            recyclable = false;
+            dataBuffer.close();
+        }
     }
 
     @Override
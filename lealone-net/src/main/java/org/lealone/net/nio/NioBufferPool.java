@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.net.nio;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.db.DataBuffer;
+
+/**
+ * 网络读数据用的direct buffer池，按大小分成几个级别。
+ * 先从当前线程的缓存中拿，没有再从共享池中拿，
+ * 一个buffer可能被多个协议包引用，所有引用都释放后才回到池中。
+ */
+public class NioBufferPool implements NioBufferPoolMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioBufferPool.class);
+
+    private static final int[] SIZE_CLASSES = { 4 * 1024, 16 * 1024, 64 * 1024 };
+    private static final int MAX_LOCAL_SIZE = 16;
+    private static final int MAX_SHARED_SIZE = 256;
+
+    public static final int MIN_BUFFER_SIZE = SIZE_CLASSES[0];
+    public static final int MAX_BUFFER_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+    private static final NioBufferPool instance = new NioBufferPool();
+
+    public static NioBufferPool getInstance() {
+        return instance;
+    }
+
+    // 被多个NioBuffer共享的那块内存
+    static class PooledBuffer {
+        private final ByteBuffer buffer;
+        private final int sizeClass;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        PooledBuffer(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        void retain() {
+            refCount.incrementAndGet();
+        }
+
+        void release() {
+            int count = refCount.decrementAndGet();
+            if (count == 0)
+                instance.offer(this);
+            else if (count < 0)
+                logger.warn("Buffer released too many times, refCount: " + count);
+        }
+    }
+
+    // 只有分配过buffer的线程(通常是网络事件循环线程)才有本地缓存，
+    // 其他线程(比如解析协议包的调度线程)释放的buffer直接放回共享池
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> localCaches = new ThreadLocal<>();
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<ByteBuffer>[] sharedPools = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+    private final AtomicInteger[] sharedSizes = new AtomicInteger[SIZE_CLASSES.length];
+
+    private final LongAdder allocatedCount = new LongAdder();
+    private final LongAdder localHitCount = new LongAdder();
+    private final LongAdder sharedHitCount = new LongAdder();
+    private final LongAdder releasedCount = new LongAdder();
+    private final LongAdder discardedCount = new LongAdder();
+
+    private NioBufferPool() {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            sharedPools[i] = new ConcurrentLinkedQueue<>();
+            sharedSizes[i] = new AtomicInteger();
+        }
+    }
+
+    private static int getSizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i])
+                return i;
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    /**
+     * 分配一个容量不小于size(最大不超过MAX_BUFFER_SIZE)的buffer，用完后调用recycle释放。
+     */
+    public NioBuffer allocate(int size) {
+        int sizeClass = getSizeClass(size);
+        ByteBuffer buffer = getLocalCaches()[sizeClass].poll();
+        if (buffer != null) {
+            localHitCount.increment();
+        } else {
+            buffer = sharedPools[sizeClass].poll();
+            if (buffer != null) {
+                sharedSizes[sizeClass].decrementAndGet();
+                sharedHitCount.increment();
+            } else {
+                buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+                allocatedCount.increment();
+            }
+        }
+        buffer.clear();
+        return new NioBuffer(DataBuffer.create(buffer), new PooledBuffer(buffer, sizeClass));
+    }
+
+    private ArrayDeque<ByteBuffer>[] getLocalCaches() {
+        ArrayDeque<ByteBuffer>[] caches = localCaches.get();
+        if (caches == null) {
+            @SuppressWarnings("unchecked")
+            ArrayDeque<ByteBuffer>[] newCaches = new ArrayDeque[SIZE_CLASSES.length];
+            for (int i = 0; i < newCaches.length; i++)
+                newCaches[i] = new ArrayDeque<>();
+            caches = newCaches;
+            localCaches.set(caches);
+        }
+        return caches;
+    }
+
+    private void offer(PooledBuffer pb) {
+        releasedCount.increment();
+        int sizeClass = pb.sizeClass;
+        ArrayDeque<ByteBuffer>[] caches = localCaches.get();
+        if (caches != null && caches[sizeClass].size() < MAX_LOCAL_SIZE) {
+            caches[sizeClass].add(pb.buffer);
+        } else if (sharedSizes[sizeClass].incrementAndGet() <= MAX_SHARED_SIZE) {
+            sharedPools[sizeClass].add(pb.buffer);
+        } else {
+            sharedSizes[sizeClass].decrementAndGet();
+            discardedCount.increment();
+        }
+    }
+
+    @Override
+    public long getAllocatedCount() {
+        return allocatedCount.sum();
+    }
+
+    @Override
+    public long getLocalHitCount() {
+        return localHitCount.sum();
+    }
+
+    @Override
+    public long getSharedHitCount() {
+        return sharedHitCount.sum();
+    }
+
+    @Override
+    public long getReleasedCount() {
+        return releasedCount.sum();
+    }
+
+    @Override
+    public long getDiscardedCount() {
+        return discardedCount.sum();
+    }
+
+    @Override
+    public int getPooledCount() {
+        int count = 0;
+        for (AtomicInteger size : sharedSizes)
+            count += size.get();
+        return count;
+    }
+
+    static void registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = new ObjectName("org.lealone:type=NioBufferPool");
+            if (!mbs.isRegistered(mbeanName))
+                mbs.registerMBean(instance, mbeanName);
+        } catch (Exception e) {
+            logger.warn("Failed to register nio buffer pool mbean", e);
+        }
+    }
+}
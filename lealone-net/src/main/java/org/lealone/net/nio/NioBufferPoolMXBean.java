@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.net.nio;
+
+public interface NioBufferPoolMXBean {
+
+    // 新分配的direct buffer数
+    long getAllocatedCount();
+
+    // 从当前线程的缓存中拿到的次数
+    long getLocalHitCount();
+
+    // 从共享池中拿到的次数
+    long getSharedHitCount();
+
+    long getReleasedCount();
+
+    // 池满了被丢弃的buffer数
+    long getDiscardedCount();
+
+    // 共享池中的buffer数，不包括各线程缓存的
+    int getPooledCount();
+}
@@ -57,6 +57,14 @@ public interface NioEventLoop {
         getDefaultNioEventLoopImpl().addNioBuffer(channel, nioBuffer);
     }
 
+    default boolean isWritable(SocketChannel channel) {
+        return getDefaultNioEventLoopImpl().isWritable(channel);
+    }
+
+    default void setWritableListener(SocketChannel channel, Runnable listener) {
+        getDefaultNioEventLoopImpl().setWritableListener(channel, listener);
+    }
+
     default void tryRegisterWriteOperation(Selector selector) {
         getDefaultNioEventLoopImpl().tryRegisterWriteOperation(selector);
     }
@@ -24,33 +24,90 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.common.util.DateTimeUtils;
 import org.lealone.db.DataBuffer;
 import org.lealone.net.AsyncConnection;
+import org.lealone.net.WriteFlushHandler;
 import org.lealone.net.nio.NioNetServer.Attachment;
 
 public class NioEventLoopAdapter implements NioEventLoop {
 
     private static final Logger logger = LoggerFactory.getLogger(NioEventLoopAdapter.class);
 
-    private final ConcurrentHashMap<SocketChannel, ConcurrentLinkedQueue<NioBuffer>> channels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketChannel, ChannelState> channels = new ConcurrentHashMap<>();
+    // 有新数据要写的channel，select之前只需要处理它们
+    private final ConcurrentLinkedQueue<ChannelState> dirtyChannels = new ConcurrentLinkedQueue<>();
+
+    private static class ChannelState {
+        final SocketChannel channel;
+        final ConcurrentLinkedQueue<NioBuffer> buffers = new ConcurrentLinkedQueue<>();
+        // 已经在dirtyChannels中了
+        final AtomicBoolean dirty = new AtomicBoolean(false);
+        // 还没有写出去的字节数
+        final AtomicLong queuedBytes = new AtomicLong();
+        final AtomicBoolean writable = new AtomicBoolean(true);
+        volatile Runnable writableListener;
+        // 以下字段只在事件循环线程中访问
+        SelectionKey key;
+        // 从buffers中取出来等待写的数据，连续的小包已经合并
+        final ArrayDeque<NioBuffer> writeQueue = new ArrayDeque<>();
+        boolean readSuspended;
+
+        ChannelState(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
 
     private final AtomicBoolean selecting = new AtomicBoolean(false);
     private Selector selector;
     private final long loopInterval;
 
+    // 一次gathering write最多写多少个buffer
+    private final int maxGatheringBuffers;
+    // 小于这个字节数的连续小包会合并到一个buffer中，为0时不合并
+    private final int coalesceThreshold;
+    private final int maxCoalescedSize;
+    // 为true时，调度线程产生的数据等到它跑完一轮后才唤醒事件循环
+    private final boolean deferredFlush;
+    private final Runnable flushTask = this::wakeup;
+    private final ByteBuffer[] gatheringBuffers;
+    // 每个连接待写字节数的高低水位，为0时不限制
+    private final long highWatermark;
+    private final long lowWatermark;
+    // 连接因为超过高水位变成不可写的次数，以及服务器端的连接因此暂停读的次数
+    private final AtomicLong unwritableCount = new AtomicLong();
+    private final AtomicLong readSuspendedCount = new AtomicLong();
+
     public NioEventLoopAdapter(Map<String, String> config, String loopIntervalKey, long loopIntervalDefaultValue)
             throws IOException {
         loopInterval = DateTimeUtils.getLoopInterval(config, loopIntervalKey, loopIntervalDefaultValue);
+        maxGatheringBuffers = Math.max(1, Integer.parseInt(config.getOrDefault("nio_max_gathering_buffers", "16")));
+        coalesceThreshold = Integer.parseInt(config.getOrDefault("nio_coalesce_threshold", "1024"));
+        maxCoalescedSize = Math.max(coalesceThreshold, 16 * 1024);
+        String flushPolicy = config.getOrDefault("nio_write_flush_policy", "immediate");
+        if ("deferred".equalsIgnoreCase(flushPolicy))
+            deferredFlush = true;
+        else if ("immediate".equalsIgnoreCase(flushPolicy))
+            deferredFlush = false;
+        else
+            throw new IllegalArgumentException("Invalid nio_write_flush_policy: " + flushPolicy);
+        gatheringBuffers = new ByteBuffer[maxGatheringBuffers];
+        highWatermark = Long.parseLong(config.getOrDefault("nio_write_high_watermark", "8388608")); // 默认8M
+        if (config.containsKey("nio_write_low_watermark"))
+            lowWatermark = Math.min(highWatermark, Long.parseLong(config.get("nio_write_low_watermark")));
+        else
+            lowWatermark = highWatermark / 2;
         selector = Selector.open();
     }
 
@@ -73,7 +130,11 @@ public class NioEventLoopAdapter implements NioEventLoop {
     public void select(long timeout) throws IOException {
         tryRegisterWriteOperation(selector);
         if (selecting.compareAndSet(false, true)) {
-            selector.select(timeout);
+            // 在设置selecting之前其他线程可能刚加入了要写的数据，此时wakeup不会生效，所以不能阻塞
+            if (dirtyChannels.isEmpty())
+                selector.select(timeout);
+            else
+                selector.selectNow();
             selecting.set(false);
         }
     }
@@ -105,32 +166,121 @@ public class NioEventLoopAdapter implements NioEventLoop {
 
     @Override
     public void addSocketChannel(SocketChannel channel) {
-        channels.putIfAbsent(channel, new ConcurrentLinkedQueue<>());
+        channels.putIfAbsent(channel, new ChannelState(channel));
     }
 
     @Override
     public void addNioBuffer(SocketChannel channel, NioBuffer nioBuffer) {
-        ConcurrentLinkedQueue<NioBuffer> queue = channels.get(channel);
-        if (queue != null) {
-            queue.add(nioBuffer);
+        ChannelState state = channels.get(channel);
+        if (state != null) {
+            long bytes = state.queuedBytes.addAndGet(nioBuffer.getByteBuffer().remaining());
+            state.buffers.add(nioBuffer);
+            if (highWatermark > 0 && bytes > highWatermark && state.writable.compareAndSet(true, false)) {
+                unwritableCount.incrementAndGet();
+                // 事件循环线程可能刚把数据写完，所以要再检查一次，否则可能一直处于不可写状态
+                if (state.queuedBytes.get() <= lowWatermark)
+                    setWritable(state);
+            }
+            if (state.dirty.compareAndSet(false, true))
+                dirtyChannels.add(state);
+            Thread t = Thread.currentThread();
+            if (deferredFlush && t instanceof WriteFlushHandler)
+                ((WriteFlushHandler) t).addPendingFlush(flushTask);
+            else
+                wakeup();
+        }
+    }
+
+    @Override
+    public boolean isWritable(SocketChannel channel) {
+        ChannelState state = channels.get(channel);
+        return state == null || state.writable.get();
+    }
+
+    @Override
+    public void setWritableListener(SocketChannel channel, Runnable listener) {
+        ChannelState state = channels.get(channel);
+        if (state != null)
+            state.writableListener = listener;
+    }
+
+    public long getUnwritableCount() {
+        return unwritableCount.get();
+    }
+
+    public long getReadSuspendedCount() {
+        return readSuspendedCount.get();
+    }
+
+    private void setWritable(ChannelState state) {
+        if (state.writable.compareAndSet(false, true)) {
+            Runnable listener = state.writableListener;
+            if (listener != null)
+                listener.run();
+            // 让事件循环重新注册OP_READ
+            if (state.dirty.compareAndSet(false, true))
+                dirtyChannels.add(state);
             wakeup();
         }
     }
 
+    // 服务器端的连接在不可写时不再读新的请求，客户端的连接不能停，否则两端可能互相等待
+    private void updateReadOperation(ChannelState state, SelectionKey key) {
+        boolean suspend = !state.writable.get();
+        if (suspend == state.readSuspended || !key.isValid())
+            return;
+        Object att = key.attachment();
+        if (!(att instanceof Attachment) || ((Attachment) att).conn == null || !((Attachment) att).conn.isServer())
+            return;
+        if (suspend) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            readSuspendedCount.incrementAndGet();
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        state.readSuspended = suspend;
+    }
+
     @Override
     public void tryRegisterWriteOperation(Selector selector) {
-        for (Entry<SocketChannel, ConcurrentLinkedQueue<NioBuffer>> entry : channels.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                for (SelectionKey key : selector.keys()) {
-                    if (key.channel() == entry.getKey() && key.isValid()) {
+        ArrayList<ChannelState> unregistered = null;
+        ChannelState state = dirtyChannels.poll();
+        while (state != null) {
+            // 先清除标记再检查，之后加入的数据会让它重新进入dirtyChannels
+            state.dirty.set(false);
+            SelectionKey key = getSelectionKey(state, selector);
+            if (key != null)
+                updateReadOperation(state, key);
+            if (!state.buffers.isEmpty()) {
+                if (key != null) {
+                    if (key.isValid())
                         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        break;
-                    }
+                } else if (state.channel.isOpen() && channels.get(state.channel) == state) {
+                    // 还没有注册到selector，下一轮再试
+                    if (unregistered == null)
+                        unregistered = new ArrayList<>();
+                    unregistered.add(state);
                 }
             }
+            state = dirtyChannels.poll();
+        }
+        if (unregistered != null) {
+            for (ChannelState s : unregistered) {
+                if (s.dirty.compareAndSet(false, true))
+                    dirtyChannels.add(s);
+            }
         }
     }
 
+    private static SelectionKey getSelectionKey(ChannelState state, Selector selector) {
+        SelectionKey key = state.key;
+        if (key == null) {
+            key = state.channel.keyFor(selector);
+            state.key = key;
+        }
+        return key;
+    }
+
     private long totalReadBytes;
     private long totalWrittenBytes;
     private final boolean isDebugEnabled = logger.isDebugEnabled();
@@ -142,13 +292,21 @@ public class NioEventLoopAdapter implements NioEventLoop {
         SocketChannel channel = (SocketChannel) key.channel();
         try {
             while (true) {
-                DataBuffer dataBuffer = DataBuffer.create();
-                ByteBuffer buffer = dataBuffer.getBuffer();
-                int capacity = dataBuffer.capacity();
-                int readBytes = channel.read(buffer);
+                // 上次读满了就换一个大一级的buffer，读得少了再换回小的
+                NioBuffer nioBuffer = NioBufferPool.getInstance().allocate(attachment.readBufferSize);
+                ByteBuffer buffer = nioBuffer.getByteBuffer();
+                int capacity = buffer.capacity();
+                int readBytes;
+                try {
+                    readBytes = channel.read(buffer);
+                } catch (IOException e) {
+                    nioBuffer.recycle();
+                    throw e;
+                }
                 if (readBytes > 0) {
                     attachment.endOfStreamCount = 0;
                 } else {
+                    nioBuffer.recycle();
                     // 客户端非正常关闭时，可能会触发JDK的bug，导致run方法死循环，selector.select不会阻塞
                     // netty框架在下面这个方法的代码中有自己的不同解决方案
                     // io.netty.channel.nio.NioEventLoop.processSelectedKey
@@ -160,12 +318,16 @@ public class NioEventLoopAdapter implements NioEventLoop {
                     }
                     break;
                 }
+                if (readBytes == capacity)
+                    attachment.readBufferSize = Math.min(capacity * 4, NioBufferPool.MAX_BUFFER_SIZE);
+                else if (readBytes <= NioBufferPool.MIN_BUFFER_SIZE)
+                    attachment.readBufferSize = NioBufferPool.MIN_BUFFER_SIZE;
                 buffer.flip();
                 if (isDebugEnabled) {
                     totalReadBytes += readBytes;
                     logger.debug(("total read bytes: " + totalReadBytes));
                 }
-                NioBuffer nioBuffer = new NioBuffer(dataBuffer);
+                // 由conn负责释放nioBuffer
                 conn.handle(nioBuffer);
                 // 说明没读满，可以直接退出循环了
                 if (readBytes < capacity)
@@ -179,53 +341,112 @@ public class NioEventLoopAdapter implements NioEventLoop {
     @Override
     public void write(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
+        ChannelState state = channels.get(channel);
+        if (state == null)
+            return;
+        ArrayDeque<NioBuffer> queue = state.writeQueue;
+        ByteBuffer[] buffers = gatheringBuffers;
         try {
-            Queue<NioBuffer> queue = channels.get(channel);
-            for (NioBuffer nioBuffer : queue) {
-                ByteBuffer buffer = nioBuffer.getByteBuffer();
-                int remaining = buffer.remaining();
-                // 一定要用while循环来写，否则会丢数据！
-                while (remaining > 0) {
-                    int writtenBytes = channel.write(buffer);
-                    if (writtenBytes <= 0) {
-                        if (key.isValid()) {
-                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        }
-                        return;
-                    }
-                    remaining -= writtenBytes;
+            while (true) {
+                drainBuffers(state);
+                if (queue.isEmpty())
+                    break;
+                int count = 0;
+                for (NioBuffer nioBuffer : queue) {
+                    buffers[count++] = nioBuffer.getByteBuffer();
+                    if (count == buffers.length)
+                        break;
+                }
+                // 一次系统调用写多个buffer，没写完的下次可写时接着写
+                long writtenBytes = channel.write(buffers, 0, count);
+                if (writtenBytes > 0) {
+                    long bytes = state.queuedBytes.addAndGet(-writtenBytes);
+                    if (bytes <= lowWatermark && !state.writable.get())
+                        setWritable(state);
                     if (isDebugEnabled) {
                         totalWrittenBytes += writtenBytes;
                         logger.debug(("total written bytes: " + totalWrittenBytes));
                     }
                 }
-                queue.remove(nioBuffer);
-                nioBuffer.recycle();
+                int written = 0;
+                while (written < count && !buffers[written].hasRemaining()) {
+                    queue.poll().recycle();
+                    written++;
+                }
+                Arrays.fill(buffers, 0, count, null);
+                if (written < count) {
+                    // socket的发送缓冲区满了
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
             }
 
             // 还是要检测key是否是有效的，否则会抛CancelledKeyException
-            if (queue.isEmpty() && key.isValid()) {
+            if (state.buffers.isEmpty() && key.isValid()) {
                 int ops = key.interestOps();
                 ops &= ~SelectionKey.OP_WRITE;
                 key.interestOps(ops);
             }
         } catch (IOException e) {
+            Arrays.fill(buffers, null);
             closeChannel(channel);
         }
     }
 
+    // 把新加入的buffer移到writeQueue，连续的小包复制到一个从池中取出的buffer中
+    private void drainBuffers(ChannelState state) {
+        ArrayDeque<NioBuffer> queue = state.writeQueue;
+        NioBuffer last = null; // 最后一个可以继续合并的小包
+        DataBuffer merged = null;
+        NioBuffer nioBuffer;
+        while ((nioBuffer = state.buffers.poll()) != null) {
+            ByteBuffer buffer = nioBuffer.getByteBuffer();
+            int len = buffer.remaining();
+            if (len > coalesceThreshold) {
+                last = null;
+            } else if (last != null) {
+                int mergedLength = merged == null ? last.getByteBuffer().remaining() : merged.position();
+                if (mergedLength + len <= maxCoalescedSize) {
+                    if (merged == null) {
+                        merged = DataBuffer.create();
+                        merged.put(last.getByteBuffer());
+                        last.recycle();
+                        queue.pollLast();
+                        last = new NioBuffer(merged);
+                        queue.add(last);
+                    }
+                    merged.put(buffer);
+                    nioBuffer.recycle();
+                    continue;
+                }
+                last = nioBuffer;
+            } else {
+                last = nioBuffer;
+            }
+            if (merged != null) {
+                merged.getAndFlipBuffer();
+                merged = null;
+            }
+            queue.add(nioBuffer);
+        }
+        if (merged != null)
+            merged.getAndFlipBuffer();
+    }
+
     @Override
     public void closeChannel(SocketChannel channel) {
         if (channel == null) {
             return;
         }
-        for (SelectionKey key : selector.keys()) {
-            if (key.channel() == channel && key.isValid()) {
-                key.cancel();
-                break;
-            }
-        }
-        channels.remove(channel);
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null && key.isValid())
+            key.cancel();
+        ChannelState state = channels.remove(channel);
+        // 等待可写的命令不能一直等下去
+        if (state != null)
+            setWritable(state);
         Socket socket = channel.socket();
         if (socket != null) {
             try {
@@ -22,6 +22,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.lealone.common.concurrent.ConcurrentUtils;
 import org.lealone.common.logging.Logger;
@@ -34,7 +35,9 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
 
     private static final Logger logger = LoggerFactory.getLogger(NioNetServer.class);
     private ServerSocketChannel serverChannel;
-    private NioEventLoopAdapter nioEventLoopAdapter;
+    // 第一个事件循环同时负责accept，新连接按轮循的方式分配给各个事件循环
+    private ServerEventLoop[] eventLoops;
+    private int nextEventLoopIndex;
 
     @Override
     public synchronized void start() {
@@ -42,13 +45,28 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
             return;
         logger.info("Starting nio net server");
         try {
-            nioEventLoopAdapter = new NioEventLoopAdapter(config, "server_nio_event_loop_interval", 1000); // 默认1秒
+            int eventLoopCount = 1;
+            if (config.containsKey("server_nio_event_loop_count"))
+                eventLoopCount = Math.max(1, Integer.parseInt(config.get("server_nio_event_loop_count")));
+            eventLoops = new ServerEventLoop[eventLoopCount];
+            for (int i = 0; i < eventLoopCount; i++) {
+                // 默认1秒
+                eventLoops[i] = new ServerEventLoop(
+                        new NioEventLoopAdapter(config, "server_nio_event_loop_interval", 1000));
+            }
+            NioBufferPool.registerMBean();
             serverChannel = ServerSocketChannel.open();
             serverChannel.socket().bind(new InetSocketAddress(getHost(), getPort()));
             serverChannel.configureBlocking(false);
-            serverChannel.register(nioEventLoopAdapter.getSelector(), SelectionKey.OP_ACCEPT);
+            serverChannel.register(eventLoops[0].getSelector(), SelectionKey.OP_ACCEPT);
             super.start();
             String name = "ServerNioEventLoopService-" + getPort();
+            for (int i = 1; i < eventLoopCount; i++) {
+                ServerEventLoop eventLoop = eventLoops[i];
+                ConcurrentUtils.submitTask(name + "-" + i, () -> {
+                    eventLoop.run();
+                });
+            }
             if (runInMainThread()) {
                 Thread t = Thread.currentThread();
                 if (t.getName().equals("main"))
@@ -71,63 +89,36 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
     }
 
     private void run() {
-        for (;;) {
-            try {
-                nioEventLoopAdapter.select();
-                if (isStopped())
-                    break;
-                Set<SelectionKey> keys = nioEventLoopAdapter.getSelector().selectedKeys();
-                try {
-                    for (SelectionKey key : keys) {
-                        if (key.isValid()) {
-                            int readyOps = key.readyOps();
-                            if ((readyOps & SelectionKey.OP_READ) != 0) {
-                                read(key, this);
-                            } else if ((readyOps & SelectionKey.OP_WRITE) != 0) {
-                                write(key);
-                            } else if ((readyOps & SelectionKey.OP_ACCEPT) != 0) {
-                                accept();
-                            } else {
-                                key.cancel();
-                            }
-                        } else {
-                            key.cancel();
-                        }
-                    }
-                } finally {
-                    keys.clear();
-                }
-                if (isStopped())
-                    break;
-            } catch (Throwable e) {
-                logger.warn(Thread.currentThread().getName() + " run exception", e);
-            }
-        }
+        eventLoops[0].run();
     }
 
     static class Attachment {
         AsyncConnection conn;
         int endOfStreamCount;
+        int readBufferSize = NioBufferPool.MIN_BUFFER_SIZE;
     }
 
     private void accept() {
         SocketChannel channel = null;
         AsyncConnection conn = null;
+        ServerEventLoop eventLoop = eventLoops[nextEventLoopIndex];
         try {
             channel = serverChannel.accept();
             channel.configureBlocking(false);
-            nioEventLoopAdapter.addSocketChannel(channel);
-            NioWritableChannel writableChannel = new NioWritableChannel(channel, this);
+            if (++nextEventLoopIndex >= eventLoops.length)
+                nextEventLoopIndex = 0;
+            eventLoop.addSocketChannel(channel);
+            NioWritableChannel writableChannel = new NioWritableChannel(channel, eventLoop);
             conn = createConnection(writableChannel, true);
 
             Attachment attachment = new Attachment();
             attachment.conn = conn;
-            channel.register(nioEventLoopAdapter.getSelector(), SelectionKey.OP_READ, attachment);
+            eventLoop.registerReadOperation(channel, attachment);
         } catch (Throwable e) {
             if (conn != null) {
                 removeConnection(conn);
             }
-            closeChannel(channel);
+            eventLoop.closeChannel(channel);
             logger.warn(getName() + " failed to accept", e);
         }
     }
@@ -138,7 +129,9 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
             return;
         logger.info("Stopping nio net server");
         super.stop();
-        nioEventLoopAdapter.close();
+        for (ServerEventLoop eventLoop : eventLoops) {
+            eventLoop.nioEventLoopAdapter.close();
+        }
         if (serverChannel != null) {
             try {
                 serverChannel.close();
@@ -150,7 +143,7 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
 
     @Override
     public NioEventLoop getDefaultNioEventLoopImpl() {
-        return nioEventLoopAdapter;
+        return eventLoops[0].nioEventLoopAdapter;
     }
 
     @Override
@@ -165,4 +158,92 @@ public class NioNetServer extends NetServerBase implements NioEventLoop {
         }
         closeChannel(channel);
     }
+
+    // 每个事件循环有自己的selector，只处理分配给它的连接的读写
+    private class ServerEventLoop implements NioEventLoop {
+
+        private final NioEventLoopAdapter nioEventLoopAdapter;
+        // 由accept线程注册，事件循环线程在select之前完成注册，避免跟select争用selector的锁
+        private final ConcurrentLinkedQueue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+        ServerEventLoop(NioEventLoopAdapter nioEventLoopAdapter) {
+            this.nioEventLoopAdapter = nioEventLoopAdapter;
+        }
+
+        @Override
+        public NioEventLoop getDefaultNioEventLoopImpl() {
+            return nioEventLoopAdapter;
+        }
+
+        @Override
+        public void handleException(AsyncConnection conn, SocketChannel channel, Exception e) {
+            if (conn != null) {
+                removeConnection(conn);
+            }
+            closeChannel(channel);
+        }
+
+        void registerReadOperation(SocketChannel channel, Attachment attachment) throws Exception {
+            if (this == eventLoops[0]) {
+                channel.register(getSelector(), SelectionKey.OP_READ, attachment);
+            } else {
+                pendingRegistrations.add(() -> {
+                    try {
+                        channel.register(getSelector(), SelectionKey.OP_READ, attachment);
+                    } catch (Throwable e) {
+                        handleException(attachment.conn, channel, null);
+                        logger.warn(getName() + " failed to register channel", e);
+                    }
+                });
+                // 不管是否正在select都要唤醒，没在select时下一次select会立刻返回
+                getSelector().wakeup();
+            }
+        }
+
+        private void runPendingRegistrations() {
+            Runnable r = pendingRegistrations.poll();
+            while (r != null) {
+                r.run();
+                r = pendingRegistrations.poll();
+            }
+        }
+
+        void run() {
+            for (;;) {
+                try {
+                    if (isStopped())
+                        break;
+                    runPendingRegistrations();
+                    select();
+                    if (isStopped())
+                        break;
+                    Set<SelectionKey> keys = getSelector().selectedKeys();
+                    try {
+                        for (SelectionKey key : keys) {
+                            if (key.isValid()) {
+                                int readyOps = key.readyOps();
+                                if ((readyOps & SelectionKey.OP_READ) != 0) {
+                                    read(key, this);
+                                } else if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+                                    write(key);
+                                } else if ((readyOps & SelectionKey.OP_ACCEPT) != 0) {
+                                    accept();
+                                } else {
+                                    key.cancel();
+                                }
+                            } else {
+                                key.cancel();
+                            }
+                        }
+                    } finally {
+                        keys.clear();
+                    }
+                    if (isStopped())
+                        break;
+                } catch (Throwable e) {
+                    logger.warn(Thread.currentThread().getName() + " run exception", e);
+                }
+            }
+        }
+    }
 }
@@ -73,6 +73,16 @@ public class NioWritableChannel implements WritableChannel {
         return channel;
     }
 
+    @Override
+    public boolean isWritable() {
+        return nioEventLoop.isWritable(channel);
+    }
+
+    @Override
+    public void setWritableListener(Runnable listener) {
+        nioEventLoop.setWritableListener(channel, listener);
+    }
+
     @Override
     public NetBufferFactory getBufferFactory() {
         return NioBufferFactory.getInstance();
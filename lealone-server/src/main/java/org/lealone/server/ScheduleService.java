@@ -17,9 +17,15 @@
  */
 package org.lealone.server;
 
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
 import org.lealone.db.async.AsyncTaskHandlerFactory;
 import org.lealone.storage.PageOperationHandlerFactory;
 import org.lealone.storage.StorageEngine;
@@ -27,6 +33,8 @@ import org.lealone.storage.StorageEngineManager;
 
 public class ScheduleService {
 
+    private static final Logger logger = LoggerFactory.getLogger(ScheduleService.class);
+
     private static Scheduler[] schedulers;
     private static final AtomicInteger index = new AtomicInteger(0);
     private static final AtomicInteger indexForSession = new AtomicInteger(0);
@@ -54,9 +62,11 @@ public class ScheduleService {
         for (Scheduler scheduler : schedulers) {
             scheduler.start();
         }
+        registerMBeans();
     }
 
     static void stop() {
+        unregisterMBeans();
         for (Scheduler scheduler : schedulers) {
             scheduler.end();
         }
@@ -72,6 +82,41 @@ public class ScheduleService {
         return schedulers[index.getAndIncrement() % schedulers.length];
     }
 
+    static Scheduler[] getSchedulers() {
+        return schedulers;
+    }
+
+    private static ObjectName getMBeanName(Scheduler scheduler) throws Exception {
+        return new ObjectName("org.lealone:type=Scheduler,name=" + scheduler.getName());
+    }
+
+    private static void registerMBeans() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            for (Scheduler scheduler : schedulers) {
+                ObjectName mbeanName = getMBeanName(scheduler);
+                if (mbs.isRegistered(mbeanName))
+                    mbs.unregisterMBean(mbeanName);
+                mbs.registerMBean(scheduler, mbeanName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to register scheduler mbean", e);
+        }
+    }
+
+    private static void unregisterMBeans() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            for (Scheduler scheduler : schedulers) {
+                ObjectName mbeanName = getMBeanName(scheduler);
+                if (mbs.isRegistered(mbeanName))
+                    mbs.unregisterMBean(mbeanName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to unregister scheduler mbean", e);
+        }
+    }
+
     static Scheduler getSchedulerForSession() {
         return schedulers[indexForSession.getAndIncrement() % schedulers.length];
     }
@@ -17,13 +17,17 @@
  */
 package org.lealone.server;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.lealone.common.concurrent.ScheduledExecutors;
 import org.lealone.common.logging.Logger;
@@ -33,14 +37,16 @@ import org.lealone.db.async.AsyncPeriodicTask;
 import org.lealone.db.async.AsyncTask;
 import org.lealone.db.async.AsyncTaskHandler;
 import org.lealone.db.session.Session;
+import org.lealone.db.session.SessionStatus;
+import org.lealone.net.WriteFlushHandler;
 import org.lealone.sql.PreparedSQLStatement;
 import org.lealone.sql.SQLStatementExecutor;
 import org.lealone.storage.PageOperation;
 import org.lealone.storage.PageOperationHandler;
 import org.lealone.transaction.Transaction;
 
-public class Scheduler extends Thread
-        implements SQLStatementExecutor, PageOperationHandler, AsyncTaskHandler, Transaction.Listener {
+public class Scheduler extends Thread implements SQLStatementExecutor, PageOperationHandler, AsyncTaskHandler,
+        Transaction.Listener, SchedulerMXBean, WriteFlushHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(Scheduler.class);
 
@@ -62,15 +68,49 @@ public class Scheduler extends Thread
             // 同一session中的语句是按顺序一条一条执行的，
             // 如时返回false，说明当前语句执行完成了，切换到下一条；
             // 如果返回true，说明因为某些原因导致主动让出CPU，需要等待获得重新执行的机会。
-            if (!yieldable.run()) {
-                si.yieldableCommand = null;
+            long start = System.nanoTime();
+            try {
+                if (!yieldable.run()) {
+                    si.yieldableCommand = null;
+                }
+            } finally {
+                si.statementCpuTime += System.nanoTime() - start;
+            }
+        }
+
+        int getPriority() {
+            int priority = stmt.getPriority();
+            if (priority < PreparedSQLStatement.MIN_PRIORITY)
+                return PreparedSQLStatement.MIN_PRIORITY;
+            if (priority > PreparedSQLStatement.MAX_PRIORITY)
+                return PreparedSQLStatement.MAX_PRIORITY;
+            return priority;
+        }
+
+        // 当前命令已经执行完或被替换了
+        boolean isStale() {
+            return si.removed || si.yieldableCommand != this;
+        }
+
+        // session处于以下状态或者连接的输出缓冲超过高水位时不能执行，放到parkedCommands中等被唤醒
+        boolean isRunnable() {
+            if (!si.conn.isWritable())
+                return false;
+            switch (si.session.getStatus()) {
+            case WAITING:
+            case TRANSACTION_COMMITTING:
+            case EXCLUSIVE_MODE:
+            case REPLICA_STATEMENT_COMPLETED:
+                return false;
+            default:
+                return true;
             }
         }
     }
 
     public static class SessionInfo {
-        // taskQueue中的命令统一由scheduler调度执行
-        private final Scheduler scheduler;
+        // taskQueue中的命令统一由scheduler调度执行，在两条语句之间可能迁移到其他scheduler
+        private volatile Scheduler scheduler;
         private final ConcurrentLinkedQueue<AsyncTask> taskQueue;
         private final TcpServerConnection conn;
 
@@ -80,6 +120,13 @@ public class Scheduler extends Thread
 
         private YieldableCommand yieldableCommand;
         private long lastActiveTime;
+        private final AtomicBoolean ready = new AtomicBoolean();
+        private volatile boolean removed;
+
+        // 以下字段只在所属的调度线程中访问，单位是纳秒
+        private long statementCpuTime; // 当前语句已经用掉的CPU时间
+        private long avgStatementCpuTime; // 最近若干条语句的平均值
+        private long lastMigrateTime;
 
         SessionInfo(TcpServerConnection conn, Session session, int sessionId, int sessionTimeout) {
             scheduler = ScheduleService.getSchedulerForSession();
@@ -92,6 +139,10 @@ public class Scheduler extends Thread
             scheduler.addSessionInfo(this);
         }
 
+        void wakeUp() {
+            scheduler.wakeUp();
+        }
+
         void updateLastActiveTime() {
             lastActiveTime = System.currentTimeMillis();
         }
@@ -99,18 +150,41 @@ public class Scheduler extends Thread
         void submitTask(AsyncTask task) {
             updateLastActiveTime();
             taskQueue.add(task);
+            addToReadyQueue();
             scheduler.wakeUp();
         }
 
+        // 只有收到新任务或当前命令结束时才放到调度器的就绪队列，空闲的session不会被扫描
+        private void addToReadyQueue() {
+            if (ready.compareAndSet(false, true))
+                scheduler.readySessions.add(this);
+        }
+
+        private void commandCompleted() {
+            avgStatementCpuTime = (avgStatementCpuTime * 3 + statementCpuTime) >> 2;
+            scheduler.avgStatementCpuTime = (scheduler.avgStatementCpuTime * 15 + statementCpuTime) >> 4;
+            statementCpuTime = 0;
+            if (!taskQueue.isEmpty())
+                addToReadyQueue();
+        }
+
         public void submitYieldableCommand(int packetId, PreparedSQLStatement stmt,
                 PreparedSQLStatement.Yieldable<?> yieldable) {
             yieldableCommand = new YieldableCommand(packetId, this, stmt, yieldable);
+            scheduler.addCommand(yieldableCommand);
         }
 
         void remove() {
+            removed = true;
             scheduler.removeSessionInfo(this);
         }
 
+        // 只有在两条语句之间，并且没有等待执行的复制任务时才能迁移
+        private boolean canMigrate(long currentTime) {
+            return yieldableCommand == null && session != null && session.getReplicationName() == null
+                    && currentTime - lastMigrateTime >= SESSION_MIGRATE_INTERVAL;
+        }
+
         void checkSessionTimeout(long currentTime) {
             if (sessionTimeout <= 0)
                 return;
@@ -127,9 +201,10 @@ public class Scheduler extends Thread
                 try {
                     t.checkTimeout();
                 } catch (Throwable e) {
-                    t.rollback();
+                    session.rollback();
                     conn.sendError(session, yieldableCommand.packetId, e);
                     yieldableCommand = null; // 移除当前命令
+                    commandCompleted();
                 }
             }
         }
@@ -137,6 +212,33 @@ public class Scheduler extends Thread
 
     private final ConcurrentLinkedQueue<PageOperation> pageOperationQueue = new ConcurrentLinkedQueue<>();
     private final CopyOnWriteArrayList<SessionInfo> sessions = new CopyOnWriteArrayList<>();
+    // 有新任务的session
+    private final ConcurrentLinkedQueue<SessionInfo> readySessions = new ConcurrentLinkedQueue<>();
+
+    // 以下两个只在调度线程中访问，按语句优先级分桶的就绪队列和暂时不能执行的命令
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<YieldableCommand>[] readyCommands = new ArrayDeque[PreparedSQLStatement.MAX_PRIORITY
+            + 1];
+    private final ArrayList<YieldableCommand> parkedCommands = new ArrayList<>();
+    private int readyCommandCount;
+    private volatile boolean parkedCommandsChanged;
+    private long lastParkedCheckTime;
+    private long lastSessionTimeoutCheckTime;
+
+    // 同一个session两次迁移之间至少间隔1秒，避免来回迁移
+    private static final long SESSION_MIGRATE_INTERVAL = 1000;
+    private static final int MAX_STEAL_TASKS = 16;
+
+    private final boolean workStealing;
+    // 没有可执行的命令和任务，正在等待新的工作
+    private volatile boolean idle;
+    private long avgStatementCpuTime;
+    private final LongAdder stealCount = new LongAdder();
+    private final LongAdder migratedSessionCount = new LongAdder();
+    private long busyTime;
+    private long lastUtilizationTime = System.nanoTime();
+    private long lastBusyTime;
+    private volatile double utilization;
 
     private final ConcurrentLinkedQueue<AsyncTask> minPriorityQueue = new ConcurrentLinkedQueue<>();
     private final ConcurrentLinkedQueue<AsyncTask> normPriorityQueue = new ConcurrentLinkedQueue<>();
@@ -145,16 +247,23 @@ public class Scheduler extends Thread
     // 这个只增不删所以用CopyOnWriteArrayList
     private final CopyOnWriteArrayList<AsyncTask> periodicQueue = new CopyOnWriteArrayList<>();
 
+    // 只在调度线程中访问，跑完一轮后再唤醒网络事件循环
+    private final ArrayList<Runnable> pendingFlushes = new ArrayList<>();
+
     private final Semaphore haveWork = new Semaphore(1);
     private final long loopInterval;
     private boolean stop;
     private YieldableCommand nextBestCommand;
+    private YieldableCommand currentCommand;
 
     public Scheduler(int id, Map<String, String> config) {
         super(ScheduleService.class.getSimpleName() + "-" + id);
         setDaemon(true);
         // 默认100毫秒
         loopInterval = DateTimeUtils.getLoopInterval(config, "scheduler_loop_interval", 100);
+        workStealing = Boolean.parseBoolean(config.getOrDefault("scheduler_work_stealing", "true"));
+        for (int i = PreparedSQLStatement.MIN_PRIORITY; i < readyCommands.length; i++)
+            readyCommands[i] = new ArrayDeque<>();
     }
 
     private void addSessionInfo(SessionInfo si) {
@@ -175,16 +284,44 @@ public class Scheduler extends Thread
             runPageOperationTasks();
             runSessionTasks();
             executeNextStatement();
+            flushPendingWrites();
         }
     }
 
-    private void runSessionTasks() {
-        if (sessions.isEmpty())
+    @Override
+    public void addPendingFlush(Runnable flushTask) {
+        if (!pendingFlushes.contains(flushTask))
+            pendingFlushes.add(flushTask);
+    }
+
+    private void flushPendingWrites() {
+        if (pendingFlushes.isEmpty())
             return;
-        for (SessionInfo si : sessions) {
+        for (int i = 0, size = pendingFlushes.size(); i < size; i++) {
+            pendingFlushes.get(i).run();
+        }
+        pendingFlushes.clear();
+    }
+
+    private void runSessionTasks() {
+        SessionInfo si;
+        while ((si = readySessions.poll()) != null) {
+            si.ready.set(false);
+            if (si.removed)
+                continue;
+            // 迁移时提交任务的线程可能还是把它放到了原来的scheduler
+            if (si.scheduler != this) {
+                si.addToReadyQueue();
+                si.scheduler.wakeUp();
+                continue;
+            }
+            if (workStealing && readyCommandCount > 0 && tryMigrateSession(si))
+                continue;
             // 在同一session中，只有前面一条SQL执行完后才可以执行下一条
             // 如果是复制模式，那就可以执行下一个任务(比如异步提交)
-            if (si.yieldableCommand == null || (si.session != null && si.session.getReplicationName() != null)) {
+            // 否则等当前命令结束后再放回就绪队列
+            boolean replication = si.session != null && si.session.getReplicationName() != null;
+            if (si.yieldableCommand == null || replication) {
                 AsyncTask task = si.taskQueue.poll();
                 while (task != null) {
                     runTask(task);
@@ -192,16 +329,84 @@ public class Scheduler extends Thread
                         break;
                     task = si.taskQueue.poll();
                 }
+                if (replication && !si.taskQueue.isEmpty())
+                    si.addToReadyQueue();
             }
         }
     }
 
     private void runTask(AsyncTask task) {
+        long start = System.nanoTime();
         try {
             task.run();
         } catch (Throwable e) {
             logger.warn("Failed to run async task: " + task, e);
         }
+        busyTime += System.nanoTime() - start;
+    }
+
+    // 当前scheduler还有其他命令在排队时，把CPU消耗不低于平均值的session交给空闲的scheduler
+    private boolean tryMigrateSession(SessionInfo si) {
+        long currentTime = System.currentTimeMillis();
+        if (!si.canMigrate(currentTime) || si.avgStatementCpuTime < avgStatementCpuTime)
+            return false;
+        Scheduler target = null;
+        for (Scheduler s : ScheduleService.getSchedulers()) {
+            if (s != this && s.idle && (target == null || s.utilization < target.utilization))
+                target = s;
+        }
+        if (target == null)
+            return false;
+        target.idle = false;
+        sessions.remove(si);
+        target.sessions.add(si);
+        si.lastMigrateTime = currentTime;
+        si.scheduler = target;
+        // 跟remove()并发执行时确保两个scheduler都不再持有它
+        if (si.removed) {
+            target.removeSessionInfo(si);
+            return true;
+        }
+        migratedSessionCount.increment();
+        si.addToReadyQueue();
+        target.wakeUp();
+        return true;
+    }
+
+    // 空闲时从其他忙碌的scheduler中取走一些跟session无关的任务来执行
+    private boolean stealTasks() {
+        for (Scheduler s : ScheduleService.getSchedulers()) {
+            if (s == this || s.idle)
+                continue;
+            int count = stealTasks(s.normPriorityQueue, 0);
+            count = stealTasks(s.minPriorityQueue, count);
+            if (count > 0) {
+                stealCount.add(count);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int stealTasks(ConcurrentLinkedQueue<AsyncTask> queue, int count) {
+        while (count < MAX_STEAL_TASKS) {
+            AsyncTask task = queue.poll();
+            if (task == null)
+                break;
+            runTask(task);
+            count++;
+        }
+        return count;
+    }
+
+    private void updateUtilization() {
+        long now = System.nanoTime();
+        long elapsed = now - lastUtilizationTime;
+        if (elapsed < 1000_000_000L)
+            return;
+        utilization = (double) (busyTime - lastBusyTime) / elapsed;
+        lastBusyTime = busyTime;
+        lastUtilizationTime = now;
     }
 
     private void runQueueTasks(ConcurrentLinkedQueue<AsyncTask> queue) {
@@ -234,6 +439,26 @@ public class Scheduler extends Thread
         return sessions.size();
     }
 
+    @Override
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public double getUtilization() {
+        return utilization;
+    }
+
+    @Override
+    public long getStealCount() {
+        return stealCount.sum();
+    }
+
+    @Override
+    public long getMigratedSessionCount() {
+        return migratedSessionCount.sum();
+    }
+
     @Override
     public void handlePageOperation(PageOperation po) {
         pageOperationQueue.add(po);
@@ -279,7 +504,6 @@ public class Scheduler extends Thread
 
     @Override
     public void executeNextStatement() {
-        int priority = PreparedSQLStatement.MIN_PRIORITY - 1; // 最小优先级减一，保证能取到最小的
         YieldableCommand last = null;
         while (true) {
             YieldableCommand c;
@@ -287,7 +511,7 @@ public class Scheduler extends Thread
                 c = nextBestCommand;
                 nextBestCommand = null;
             } else {
-                c = getNextBestCommand(priority, true);
+                c = pollCommand(PreparedSQLStatement.MIN_PRIORITY - 1, true);
             }
             if (c == null) {
                 checkSessionTimeout();
@@ -296,22 +520,38 @@ public class Scheduler extends Thread
                 runSessionTasks();
                 runQueueTasks(maxPriorityQueue);
                 runQueueTasks(normPriorityQueue);
-                c = getNextBestCommand(priority, true);
+                checkParkedCommands(true);
+                updateUtilization();
+                c = pollCommand(PreparedSQLStatement.MIN_PRIORITY - 1, true);
                 if (c == null) {
+                    if (workStealing && stealTasks())
+                        break;
+                    flushPendingWrites();
+                    idle = true;
                     try {
                         haveWork.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
                         haveWork.drainPermits();
                     } catch (InterruptedException e) {
                         handleInterruptedException(e);
+                    } finally {
+                        idle = false;
                     }
                     break;
                 }
             }
+            long start = System.nanoTime();
             try {
-                c.execute();
+                currentCommand = c;
+                try {
+                    c.execute();
+                } finally {
+                    currentCommand = null;
+                }
+                // 让出的命令可能在等其他scheduler提交过来的页面操作，
+                // 多个命令轮流执行时last != c，所以每次都要处理，否则多个scheduler会互相等待
+                runPageOperationTasks();
                 // 说明没有新的命令了，一直在轮循
                 if (last == c) {
-                    runPageOperationTasks();
                     runSessionTasks();
                     runQueueTasks(maxPriorityQueue);
                     runQueueTasks(normPriorityQueue);
@@ -320,6 +560,12 @@ public class Scheduler extends Thread
             } catch (Throwable e) {
                 c.si.conn.sendError(c.si.session, c.packetId, e);
             }
+            busyTime += System.nanoTime() - start;
+            if (c.isStale())
+                c.si.commandCompleted();
+            else
+                addCommand(c);
+            flushPendingWrites();
         }
     }
 
@@ -328,7 +574,13 @@ public class Scheduler extends Thread
         // 如果来了更高优化级的命令，那么当前正在执行的语句就让出当前线程，
         // 当前线程转去执行高优先级的命令
         int priority = current.getPriority();
-        nextBestCommand = getNextBestCommand(priority, false);
+        // 上次选中的命令还没有执行
+        if (nextBestCommand != null)
+            return true;
+        // 客户端来不及接收，先不产生新的结果
+        if (currentCommand != null && !currentCommand.si.conn.isWritable())
+            return true;
+        nextBestCommand = pollCommand(priority, false);
         if (nextBestCommand != null) {
             current.setPriority(priority + 1);
             return true;
@@ -336,38 +588,78 @@ public class Scheduler extends Thread
         return false;
     }
 
-    private YieldableCommand getNextBestCommand(int priority, boolean checkTimeout) {
-        if (sessions.isEmpty())
-            return null;
-        YieldableCommand best = null;
-        for (SessionInfo si : sessions) {
-            YieldableCommand c = si.yieldableCommand;
-            if (c == null)
-                continue;
+    private void addCommand(YieldableCommand c) {
+        if (c.isRunnable()) {
+            readyCommands[c.getPriority()].add(c);
+            readyCommandCount++;
+        } else {
+            parkedCommands.add(c);
+        }
+    }
 
-            // session处于以下状态时不会被当成候选的对象
-            switch (si.session.getStatus()) {
-            case WAITING:
-                // 复制模式下不主动检查超时
-                if (checkTimeout && si.session.getReplicationName() == null) {
-                    si.checkTransactionTimeout();
+    // 取出优先级高于priority的命令中优先级最高的那个，同一优先级的按先后顺序
+    private YieldableCommand pollCommand(int priority, boolean checkTimeout) {
+        if (parkedCommandsChanged)
+            checkParkedCommands(checkTimeout);
+        if (readyCommandCount == 0)
+            return null;
+        for (int i = PreparedSQLStatement.MAX_PRIORITY; i > priority && i >= PreparedSQLStatement.MIN_PRIORITY; i--) {
+            ArrayDeque<YieldableCommand> queue = readyCommands[i];
+            YieldableCommand c = queue.poll();
+            while (c != null) {
+                readyCommandCount--;
+                if (c.isStale()) {
+                    c = queue.poll();
+                    continue;
                 }
-            case TRANSACTION_COMMITTING:
-            case EXCLUSIVE_MODE:
-            case REPLICA_STATEMENT_COMPLETED:
-                continue;
+                // 放入就绪队列之后session的状态可能又变了
+                if (!c.isRunnable()) {
+                    parkedCommands.add(c);
+                    c = queue.poll();
+                    continue;
+                }
+                // 优先级可能在放入之后变高了，这里不再重新排序，下一轮调度时会按新的优先级放入
+                return c;
             }
+        }
+        return null;
+    }
 
-            if (c.stmt.getPriority() > priority) {
-                best = c;
-                priority = c.stmt.getPriority();
+    // 只检查暂时不能执行的命令，被唤醒或超过一个loopInterval时才检查
+    private void checkParkedCommands(boolean checkTimeout) {
+        if (parkedCommands.isEmpty())
+            return;
+        long currentTime = System.currentTimeMillis();
+        if (!parkedCommandsChanged && currentTime - lastParkedCheckTime < loopInterval)
+            return;
+        parkedCommandsChanged = false;
+        lastParkedCheckTime = currentTime;
+        for (int i = parkedCommands.size() - 1; i >= 0; i--) {
+            YieldableCommand c = parkedCommands.get(i);
+            if (!c.isStale()) {
+                if (c.isRunnable()) {
+                    readyCommands[c.getPriority()].add(c);
+                    readyCommandCount++;
+                } else {
+                    // 复制模式下不主动检查超时
+                    if (checkTimeout && c.si.session.getStatus() == SessionStatus.WAITING
+                            && c.si.session.getReplicationName() == null) {
+                        c.si.checkTransactionTimeout();
+                    }
+                    if (!c.isStale())
+                        continue;
+                }
             }
+            // 用最后一个覆盖当前位置，不需要移动其他元素
+            int last = parkedCommands.size() - 1;
+            parkedCommands.set(i, parkedCommands.get(last));
+            parkedCommands.remove(last);
         }
-        return best;
     }
 
     @Override
     public void wakeUp() {
+        parkedCommandsChanged = true;
         haveWork.release(1);
     }
 
@@ -375,6 +667,9 @@ public class Scheduler extends Thread
         if (sessions.isEmpty())
             return;
         long currentTime = System.currentTimeMillis();
+        if (currentTime - lastSessionTimeoutCheckTime < loopInterval)
+            return;
+        lastSessionTimeoutCheckTime = currentTime;
         for (SessionInfo si : sessions) {
             si.checkSessionTimeout(currentTime);
         }
@@ -436,6 +731,7 @@ public class Scheduler extends Thread
             runPageOperationTasks();
             if (counter.get() < 1)
                 break;
+            flushPendingWrites();
             try {
                 haveWork.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
                 haveWork.drainPermits();
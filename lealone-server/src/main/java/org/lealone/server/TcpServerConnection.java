@@ -73,6 +73,15 @@ public class TcpServerConnection extends TransferConnection {
                         return null;
                     }
                 });
+        // 输出缓冲降到低水位以下后，唤醒因为连接不可写而暂停的命令
+        writableChannel.setWritableListener(() -> {
+            for (SessionInfo si : sessions.values())
+                si.wakeUp();
+        });
+    }
+
+    boolean isWritable() {
+        return writableChannel.isWritable();
     }
 
     // 这个方法是由网络事件循环线程执行的
@@ -90,6 +99,7 @@ public class TcpServerConnection extends TransferConnection {
                     readInitPacket(in, packetId, sessionId, newSi);
                 });
             } else {
+                in.closeInputStream();
                 sessionNotFound(packetId, sessionId);
             }
         } else {
@@ -102,6 +112,7 @@ public class TcpServerConnection extends TransferConnection {
     private void readInitPacket(TransferInputStream in, int packetId, int sessionId, SessionInfo si) {
         try {
             SessionInit packet = SessionInit.decoder.decode(in, 0);
+            in.closeInputStream();
             ConnectionInfo ci = packet.ci;
             String baseDir = tcpServer.getBaseDir();
             if (baseDir == null) {
@@ -18,12 +18,9 @@
 package org.lealone.server.handler;
 
 import java.sql.Statement;
-import java.util.List;
 
-import org.lealone.db.CommandParameter;
 import org.lealone.db.session.ServerSession;
-import org.lealone.db.value.Value;
-import org.lealone.server.TcpServerConnection;
+import org.lealone.server.PacketDeliveryTask;
 import org.lealone.server.protocol.Packet;
 import org.lealone.server.protocol.PacketType;
 import org.lealone.server.protocol.batch.BatchStatementPreparedUpdate;
@@ -51,6 +48,7 @@ class BatchStatementPacketHandlers extends PacketHandlers {
                 } catch (Exception e) {
                     results[i] = Statement.EXECUTE_FAILED;
                 }
+                session.recycleStatement(command);
             }
             return new BatchStatementUpdateAck(size, results);
         }
@@ -58,25 +56,20 @@ class BatchStatementPacketHandlers extends PacketHandlers {
 
     private static class PreparedUpdate implements PacketHandler<BatchStatementPreparedUpdate> {
         @Override
-        public Packet handle(TcpServerConnection conn, ServerSession session, BatchStatementPreparedUpdate packet) {
-            int commandId = packet.commandId;
+        public Packet handle(PacketDeliveryTask task, BatchStatementPreparedUpdate packet) {
             int size = packet.size;
-            PreparedSQLStatement command = (PreparedSQLStatement) conn.getCache(commandId);
-            List<? extends CommandParameter> params = command.getParameters();
-            int[] results = new int[size];
-            for (int i = 0; i < size; i++) {
-                Value[] values = packet.batchParameters.get(i);
-                for (int j = 0; j < values.length; j++) {
-                    CommandParameter p = params.get(j);
-                    p.setValue(values[j]);
-                }
-                try {
-                    results[i] = command.executeUpdate().get();
-                } catch (Exception e) {
-                    results[i] = Statement.EXECUTE_FAILED;
-                }
-            }
-            return new BatchStatementUpdateAck(size, results);
+            PreparedSQLStatement command = (PreparedSQLStatement) task.conn.getCache(packet.commandId);
+            // 所有行在一个可让出的操作中执行，不阻塞调度线程
+            PreparedSQLStatement.Yieldable<?> yieldable = command.createYieldableBatchUpdate(packet.batchParameters,
+                    ar -> {
+                        if (ar.isSucceeded()) {
+                            task.conn.sendResponse(task, new BatchStatementUpdateAck(size, ar.getResult()));
+                        } else {
+                            task.conn.sendError(task.session, task.packetId, ar.getCause());
+                        }
+                    });
+            task.si.submitYieldableCommand(task.packetId, command, yieldable);
+            return null;
         }
     }
 }
@@ -37,6 +37,8 @@ import org.lealone.server.protocol.dt.DTransactionUpdate;
 import org.lealone.server.protocol.dt.DTransactionUpdateAck;
 import org.lealone.server.protocol.dt.DTransactionValidate;
 import org.lealone.server.protocol.dt.DTransactionValidateAck;
+import org.lealone.server.protocol.dt.DTransactionValidateBatch;
+import org.lealone.server.protocol.dt.DTransactionValidateBatchAck;
 
 class DistributedTransactionPacketHandlers extends PacketHandlers {
 
@@ -50,6 +52,7 @@ class DistributedTransactionPacketHandlers extends PacketHandlers {
         register(PacketType.DISTRIBUTED_TRANSACTION_ADD_SAVEPOINT, new AddSavepoint());
         register(PacketType.DISTRIBUTED_TRANSACTION_ROLLBACK_SAVEPOINT, new RollbackSavepoint());
         register(PacketType.DISTRIBUTED_TRANSACTION_VALIDATE, new Validate());
+        register(PacketType.DISTRIBUTED_TRANSACTION_VALIDATE_BATCH, new ValidateBatch());
     }
 
     private static class Query extends QueryPacketHandler<DTransactionQuery> {
@@ -154,4 +157,16 @@ class DistributedTransactionPacketHandlers extends PacketHandlers {
             return new DTransactionValidateAck(isValid);
         }
     }
+
+    private static class ValidateBatch implements PacketHandler<DTransactionValidateBatch> {
+        @Override
+        public Packet handle(ServerSession session, DTransactionValidateBatch packet) {
+            String[] names = packet.localTransactionNames;
+            boolean[] isValid = new boolean[names.length];
+            for (int i = 0; i < names.length; i++) {
+                isValid[i] = session.validateTransaction(names[i]);
+            }
+            return new DTransactionValidateBatchAck(isValid);
+        }
+    }
 }
@@ -20,6 +20,7 @@ package org.lealone.server.handler;
 import java.util.List;
 
 import org.lealone.db.CommandParameter;
+import org.lealone.db.result.LazyResult;
 import org.lealone.db.result.Result;
 import org.lealone.server.PacketDeliveryTask;
 import org.lealone.server.protocol.Packet;
@@ -66,7 +67,7 @@ public class PacketHandlers {
     private static abstract class UpdateBase<P extends Packet> implements PacketHandler<P> {
 
         protected void createYieldableUpdate(PacketDeliveryTask task, PreparedSQLStatement stmt,
-                List<PageKey> pageKeys) {
+                List<PageKey> pageKeys, boolean recycle) {
             PreparedSQLStatement.Yieldable<?> yieldable = stmt.createYieldableUpdate(ar -> {
                 if (ar.isSucceeded()) {
                     int updateCount = ar.getResult();
@@ -74,6 +75,8 @@ public class PacketHandlers {
                 } else {
                     task.conn.sendError(task.session, task.packetId, ar.getCause());
                 }
+                if (recycle)
+                    task.session.recycleStatement(stmt);
             });
             yieldable.setPageKeys(pageKeys);
             task.si.submitYieldableCommand(task.packetId, stmt, yieldable);
@@ -88,10 +91,11 @@ public class PacketHandlers {
 
         protected Packet handlePacket(PacketDeliveryTask task, StatementUpdate packet) {
             // 客户端的非Prepared语句不需要缓存
-            PreparedSQLStatement stmt = task.session.prepareStatement(packet.sql, -1);
+            PreparedSQLStatement stmt = task.session.prepareStatementAutoParameterized(packet.sql, -1);
             // 非Prepared语句执行一次就结束，所以可以用packetId当唯一标识，一般用来执行客户端发起的取消操作
             stmt.setId(task.packetId);
-            createYieldableUpdate(task, stmt, packet.pageKeys);
+            // 执行完后放回计划缓存
+            createYieldableUpdate(task, stmt, packet.pageKeys, true);
             return null;
         }
     }
@@ -105,25 +109,36 @@ public class PacketHandlers {
                 CommandParameter p = params.get(i);
                 p.setValue(packet.parameters[i]);
             }
-            createYieldableUpdate(task, stmt, packet.pageKeys);
+            createYieldableUpdate(task, stmt, packet.pageKeys, false);
             return null;
         }
     }
 
     private static abstract class QueryBase<P extends QueryPacket> implements PacketHandler<P> {
 
-        protected void createYieldableQuery(PacketDeliveryTask task, PreparedSQLStatement stmt, QueryPacket packet) {
+        protected void createYieldableQuery(PacketDeliveryTask task, PreparedSQLStatement stmt, QueryPacket packet,
+                boolean recycle) {
 
             PreparedSQLStatement.Yieldable<?> yieldable = stmt.createYieldableQuery(packet.maxRows, packet.scrollable,
                     ar -> {
                         if (ar.isSucceeded()) {
                             Result result = ar.getResult();
+                            if (recycle && result instanceof LazyResult) {
+                                // 延迟产生的结果集还在使用语句，等它关闭后再放回计划缓存
+                                ((LazyResult) result).setCloseListener(() -> task.session.recycleStatement(stmt));
+                                sendResult(task, packet, result);
+                                return;
+                            }
                             sendResult(task, packet, result);
                         } else {
                             task.conn.sendError(task.session, task.packetId, ar.getCause());
                         }
+                        if (recycle)
+                            task.session.recycleStatement(stmt);
                     });
             yieldable.setPageKeys(packet.pageKeys);
+            // 客户端通过ResultFetchRows分批取结果，结果集可以等到取数据时再产生
+            yieldable.setLazy(true);
             task.si.submitYieldableCommand(task.packetId, stmt, yieldable);
         }
 
@@ -149,9 +164,9 @@ public class PacketHandlers {
 
         protected Packet handlePacket(PacketDeliveryTask task, StatementQuery packet) {
             // 客户端的非Prepared语句不需要缓存
-            PreparedSQLStatement stmt = task.session.prepareStatement(packet.sql, packet.fetchSize);
+            PreparedSQLStatement stmt = task.session.prepareStatementAutoParameterized(packet.sql, packet.fetchSize);
             stmt.setId(task.packetId);
-            createYieldableQuery(task, stmt, packet);
+            createYieldableQuery(task, stmt, packet, true);
             return null;
         }
     }
@@ -165,7 +180,7 @@ public class PacketHandlers {
                 CommandParameter p = params.get(i);
                 p.setValue(packet.parameters[i]);
             }
-            createYieldableQuery(task, stmt, packet);
+            createYieldableQuery(task, stmt, packet, false);
             return null;
         }
     }
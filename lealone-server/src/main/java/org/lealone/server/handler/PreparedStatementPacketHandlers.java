@@ -101,6 +101,7 @@ class PreparedStatementPacketHandlers extends PacketHandlers {
             PreparedSQLStatement command = (PreparedSQLStatement) conn.removeCache(packet.commandId, true);
             if (command != null) {
                 command.close();
+                session.recycleStatement(command);
             }
             return null;
         }
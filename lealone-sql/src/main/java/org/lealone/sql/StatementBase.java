@@ -6,9 +6,12 @@
 package org.lealone.sql;
 
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.lealone.common.exceptions.DbException;
@@ -18,6 +21,8 @@ import org.lealone.common.util.StatementBuilder;
 import org.lealone.db.CommandParameter;
 import org.lealone.db.Constants;
 import org.lealone.db.Database;
+import org.lealone.db.DbObject;
+import org.lealone.db.DbObjectBase;
 import org.lealone.db.SysProperties;
 import org.lealone.db.api.DatabaseEventListener;
 import org.lealone.db.api.ErrorCode;
@@ -26,7 +31,10 @@ import org.lealone.db.async.AsyncResult;
 import org.lealone.db.async.Future;
 import org.lealone.db.result.Result;
 import org.lealone.db.session.ServerSession;
+import org.lealone.db.session.Session;
 import org.lealone.db.session.SessionStatus;
+import org.lealone.db.table.Table;
+import org.lealone.db.table.TableType;
 import org.lealone.db.value.Value;
 import org.lealone.server.protocol.replication.ReplicationUpdateAck;
 import org.lealone.sql.expression.Expression;
@@ -79,6 +87,8 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
     private boolean local = true;
     private int fetchSize = SysProperties.SERVER_RESULT_SET_FETCH_SIZE;
     private int statementId;
+    private DbObject[] dependencies;
+    private boolean dependenciesCollected;
 
     /**
      * Create a new object.
@@ -142,6 +152,7 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
      *
      * @return true if it must
      */
+    @Override
     public boolean needRecompile() {
         Database db = session.getDatabase();
         if (db == null) {
@@ -149,7 +160,64 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
         }
         // parser: currently, compiling every create/drop/... twice
         // because needRecompile return true even for the first execution
-        return prepareAlways || modificationMetaId < db.getModificationMetaId() || db.getSettings().recompileAlways;
+        if (prepareAlways || db.getSettings().recompileAlways) {
+            return true;
+        }
+        if (modificationMetaId >= db.getModificationMetaId()) {
+            return false;
+        }
+        // 修改了数据库设置或者不知道依赖哪些对象时，只要有对象被修改过就重新编译
+        if (modificationMetaId <= db.getGlobalModificationMetaId() || getDependencies() == null) {
+            return true;
+        }
+        // 只有依赖的对象在编译之后被修改过才需要重新编译，其他对象的DDL不影响当前语句
+        for (DbObject obj : dependencies) {
+            if (((DbObjectBase) obj).getModificationId() >= modificationMetaId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collect the database objects this statement depends on.
+     *
+     * @param dependencies the set to add the dependencies to
+     * @return false if the dependencies are not known
+     */
+    protected boolean collectDependencies(Set<DbObject> dependencies) {
+        return false;
+    }
+
+    private DbObject[] getDependencies() {
+        if (!dependenciesCollected) {
+            HashSet<DbObject> set = new HashSet<>();
+            if (collectDependencies(set)) {
+                for (DbObject obj : set) {
+                    if (!(obj instanceof DbObjectBase)) {
+                        set = null;
+                        break;
+                    }
+                    // 视图、临时表等对象跟session或其他对象相关，不做选择性的检查
+                    if (obj instanceof Table) {
+                        Table table = (Table) obj;
+                        if (table.getTableType() != TableType.STANDARD_TABLE || table.isTemporary()) {
+                            set = null;
+                            break;
+                        }
+                    }
+                }
+                if (set != null)
+                    dependencies = set.toArray(new DbObject[set.size()]);
+            }
+            dependenciesCollected = true;
+        }
+        return dependencies;
+    }
+
+    @Override
+    public boolean isShareable() {
+        return isCacheable() && getDependencies() != null;
     }
 
     /**
@@ -354,6 +422,11 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
         this.session = currentSession;
     }
 
+    @Override
+    public void setSession(Session currentSession) {
+        setSession((ServerSession) currentSession);
+    }
+
     /**
      * Print information about the statement executed if info trace level is enabled.
      *
@@ -635,12 +708,19 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
         return new DefaultYieldableQuery(this, maxRows, scrollable, asyncHandler);
     }
 
+    @Override
+    public Yieldable<int[]> createYieldableBatchUpdate(List<Value[]> batchParameters,
+            AsyncHandler<AsyncResult<int[]>> asyncHandler) {
+        return new YieldableBatchUpdate(this, batchParameters, asyncHandler);
+    }
+
     public static abstract class YieldableBase<T> implements Yieldable<T> {
 
         private static enum State {
             start,
             execute,
             stop,
+            commit,
             stopped;
         }
 
@@ -714,7 +794,14 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
             case stop:
                 if (callStop) {
                     stop();
+                    // 提交时要等其他事务，先让出调度线程，被唤醒后再重新提交
+                    if (state == State.commit)
+                        return true;
                 }
+                break;
+            case commit:
+                if (!commit())
+                    return true;
             }
             return false;
         }
@@ -811,8 +898,14 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
 
         protected void stop() {
             stopInternal();
-            session.stopCurrentCommand(asyncHandler, asyncResult);
+            commit();
+        }
 
+        private boolean commit() {
+            if (!session.stopCurrentCommand(asyncHandler, asyncResult)) {
+                state = State.commit;
+                return false;
+            }
             if (startTimeNanos > 0 && trace.isInfoEnabled()) {
                 long timeMillis = (System.nanoTime() - startTimeNanos) / 1000 / 1000;
                 // 如果一条sql的执行时间大于100毫秒，记下它
@@ -821,6 +914,7 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
                 }
             }
             state = State.stopped;
+            return true;
         }
     }
 
@@ -844,6 +938,7 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
         protected final AtomicInteger pendingOperationCounter = new AtomicInteger();
         protected volatile RuntimeException pendingOperationException;
         protected boolean loopEnd;
+        private volatile Transaction.Listener scheduler;
 
         public YieldableListenableUpdateBase(StatementBase statement, AsyncHandler<AsyncResult<Integer>> asyncHandler) {
             super(statement, asyncHandler);
@@ -859,6 +954,8 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
                 if (executeAndListen()) {
                     if (asyncHandler != null && session.needsHandleReplicationRowLockConflict()) {
                         asyncHandler.handle(new AsyncResult<>(-1));
+                    } else if (session.getReplicationName() == null) {
+                        waitIfLocked();
                     }
                     return true;
                 }
@@ -877,6 +974,30 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
 
         protected abstract boolean executeAndListen();
 
+        // 在等待其他事务释放行锁期间，调度器不需要反复执行当前语句，被唤醒后才重新执行
+        private void waitIfLocked() {
+            Transaction t = session.getTransaction();
+            if (t.getStatus() != Transaction.STATUS_WAITING)
+                return;
+            Object object = Thread.currentThread();
+            if (object instanceof Transaction.Listener) {
+                scheduler = (Transaction.Listener) object;
+                session.setStatus(SessionStatus.WAITING);
+                // 在设置WAITING之前可能已经被唤醒了
+                if (t.getStatus() != Transaction.STATUS_WAITING)
+                    wakeUp();
+            }
+        }
+
+        @Override
+        public void wakeUp() {
+            if (session.getStatus() == SessionStatus.WAITING)
+                session.setStatus(SessionStatus.TRANSACTION_NOT_COMMIT);
+            Transaction.Listener scheduler = this.scheduler;
+            if (scheduler != null)
+                scheduler.wakeUp();
+        }
+
         @Override
         public void beforeOperation() {
             pendingOperationCounter.incrementAndGet();
@@ -902,6 +1023,7 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
 
         protected final int maxRows;
         protected final boolean scrollable;
+        protected boolean lazy;
 
         public YieldableQueryBase(StatementBase statement, int maxRows, boolean scrollable,
                 AsyncHandler<AsyncResult<Result>> asyncHandler) {
@@ -909,6 +1031,11 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
             this.maxRows = maxRows;
             this.scrollable = scrollable;
         }
+
+        @Override
+        public void setLazy(boolean lazy) {
+            this.lazy = lazy;
+        }
     }
 
     private static class DefaultYieldableUpdate extends YieldableUpdateBase {
@@ -996,4 +1123,96 @@ public abstract class StatementBase implements PreparedSQLStatement, ParsedSQLSt
             return !completed;
         }
     }
+
+    private static class YieldableBatchUpdate implements Yieldable<int[]> {
+
+        private final StatementBase statement;
+        private final ServerSession session;
+        private final List<Value[]> batchParameters;
+        private final AsyncHandler<AsyncResult<int[]>> asyncHandler;
+        private final int[] results;
+        private Boolean autoCommit;
+        private int index;
+        private int transactionStartIndex; // 当前事务从批量操作的哪一行开始
+        private YieldableBase<Integer> yieldable;
+
+        public YieldableBatchUpdate(StatementBase statement, List<Value[]> batchParameters,
+                AsyncHandler<AsyncResult<int[]>> asyncHandler) {
+            this.statement = statement;
+            this.session = statement.getSession();
+            this.batchParameters = batchParameters;
+            this.asyncHandler = asyncHandler;
+            this.results = new int[batchParameters.size()];
+        }
+
+        @Override
+        public boolean run() {
+            if (autoCommit == null) {
+                autoCommit = session.isAutoCommit() && session.getReplicationName() == null;
+            }
+            int size = batchParameters.size();
+            while (index < size) {
+                if (yieldable == null) {
+                    // 自动提交模式下不让每一行单独提交，整个批量操作只在最后提交一次，
+                    // 如果中途发生死锁导致整个事务被回滚了，剩下的行重新开始一个事务
+                    if (autoCommit && session.isAutoCommit()) {
+                        session.begin();
+                        transactionStartIndex = index;
+                    }
+                    Value[] values = batchParameters.get(index);
+                    ArrayList<Parameter> params = statement.getParameters();
+                    for (int i = 0; i < values.length; i++) {
+                        params.get(i).setValue(values[i]);
+                    }
+                    int rowIndex = index;
+                    yieldable = statement.createYieldableUpdate(ar -> {
+                        if (ar.isSucceeded()) {
+                            results[rowIndex] = ar.getResult();
+                        } else {
+                            results[rowIndex] = Statement.EXECUTE_FAILED;
+                            // 死锁时整个事务都被回滚了，同一个事务中前面已经执行成功的行也要算失败
+                            if (isDeadlock(ar.getCause())) {
+                                for (int i = transactionStartIndex; i < rowIndex; i++)
+                                    results[i] = Statement.EXECUTE_FAILED;
+                            }
+                        }
+                    });
+                }
+                // 当前行还没有执行完，比如在等待行锁，让出CPU
+                if (yieldable.run())
+                    return true;
+                yieldable = null;
+                index++;
+                // 行与行之间也可以让出CPU，不需要一直占用调度线程
+                if (index < size && statement.yieldIfNeeded())
+                    return true;
+            }
+            if (autoCommit) {
+                try {
+                    // 提交时要等其他事务，先让出调度线程，被唤醒后再重新提交
+                    if (!session.tryAsyncCommit(() -> asyncHandler.handle(new AsyncResult<>(results))))
+                        return true;
+                } catch (DbException e) {
+                    asyncHandler.handle(new AsyncResult<>(e));
+                }
+            } else {
+                asyncHandler.handle(new AsyncResult<>(results));
+            }
+            return false;
+        }
+
+        private static boolean isDeadlock(Throwable cause) {
+            return cause instanceof DbException
+                    && ((DbException) cause).getErrorCode() == ErrorCode.DEADLOCK_1;
+        }
+
+        @Override
+        public int[] getResult() {
+            return results;
+        }
+
+        @Override
+        public void setPageKeys(List<PageKey> pageKeys) {
+        }
+    }
 }
@@ -79,7 +79,7 @@ public class CreateDatabase extends DatabaseStatement {
         }
         lealoneDB.addDatabaseObject(session, newDB, lock);
         // 将缓存过期掉
-        lealoneDB.getNextModificationMetaId();
+        lealoneDB.setGlobalModified();
 
         // LealoneDatabase在启动过程中执行CREATE DATABASE时，不对数据库初始化
         if (!lealoneDB.isStarting()) {
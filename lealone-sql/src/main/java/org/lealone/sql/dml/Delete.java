@@ -6,7 +6,10 @@
  */
 package org.lealone.sql.dml;
 
+import java.util.Set;
+
 import org.lealone.common.util.StringUtils;
+import org.lealone.db.DbObject;
 import org.lealone.db.api.Trigger;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
@@ -17,6 +20,7 @@ import org.lealone.db.table.Table;
 import org.lealone.sql.PreparedSQLStatement;
 import org.lealone.sql.SQLStatement;
 import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionVisitor;
 import org.lealone.sql.optimizer.PlanItem;
 import org.lealone.sql.optimizer.TableFilter;
 import org.lealone.transaction.Transaction;
@@ -52,6 +56,17 @@ public class Delete extends ManipulationStatement {
         return true;
     }
 
+    @Override
+    protected boolean collectDependencies(Set<DbObject> dependencies) {
+        ExpressionVisitor visitor = ExpressionVisitor.getDependenciesVisitor(dependencies);
+        visitor.addDependency(tableFilter.getTable());
+        if (condition != null)
+            condition.isEverything(visitor);
+        if (limitExpr != null)
+            limitExpr.isEverything(visitor);
+        return true;
+    }
+
     public void setLimit(Expression limit) {
         this.limitExpr = limit;
     }
@@ -7,9 +7,11 @@
 package org.lealone.sql.dml;
 
 import java.util.ArrayList;
+import java.util.Set;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.StatementBuilder;
+import org.lealone.db.DbObject;
 import org.lealone.db.api.ErrorCode;
 import org.lealone.db.api.Trigger;
 import org.lealone.db.async.AsyncHandler;
@@ -25,6 +27,7 @@ import org.lealone.db.value.Value;
 import org.lealone.sql.PreparedSQLStatement;
 import org.lealone.sql.SQLStatement;
 import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionVisitor;
 import org.lealone.sql.expression.Parameter;
 
 /**
@@ -57,6 +60,35 @@ public class Insert extends ManipulationStatement {
         return true;
     }
 
+    @Override
+    protected boolean collectDependencies(Set<DbObject> dependencies) {
+        ExpressionVisitor visitor = ExpressionVisitor.getDependenciesVisitor(dependencies);
+        visitor.addDependency(table);
+        for (Expression[] expr : list) {
+            for (Expression e : expr) {
+                if (e != null)
+                    e.isEverything(visitor);
+            }
+        }
+        if (query != null)
+            query.isEverything(visitor);
+        return true;
+    }
+
+    @Override
+    public boolean isShareable() {
+        // 查询部分不能共享时(比如UNION)，整条INSERT ... SELECT也不放到计划缓存中
+        return super.isShareable() && (query == null || query.isShareable());
+    }
+
+    @Override
+    public void setSession(ServerSession currentSession) {
+        super.setSession(currentSession);
+        // INSERT ... SELECT中的查询也要绑定到新的session
+        if (query != null)
+            query.setSession(currentSession);
+    }
+
     public void setTable(Table table) {
         this.table = table;
     }
@@ -9,9 +9,11 @@ package org.lealone.sql.dml;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.db.Database;
+import org.lealone.db.DbObject;
 import org.lealone.db.api.ErrorCode;
 import org.lealone.db.async.AsyncHandler;
 import org.lealone.db.async.AsyncResult;
@@ -191,6 +193,12 @@ public abstract class Query extends ManipulationStatement implements org.lealone
      */
     public abstract boolean isEverything(ExpressionVisitor visitor);
 
+    @Override
+    protected boolean collectDependencies(Set<DbObject> dependencies) {
+        isEverything(ExpressionVisitor.getDependenciesVisitor(dependencies));
+        return true;
+    }
+
     /**
      * Update all aggregate function values.
      *
@@ -28,6 +28,7 @@ import org.lealone.db.index.Index;
 import org.lealone.db.index.IndexColumn;
 import org.lealone.db.index.IndexConditionType;
 import org.lealone.db.index.IndexType;
+import org.lealone.db.result.LazyResult;
 import org.lealone.db.result.LocalResult;
 import org.lealone.db.result.Result;
 import org.lealone.db.result.ResultTarget;
@@ -53,6 +54,7 @@ import org.lealone.sql.expression.condition.ConditionAndOr;
 import org.lealone.sql.optimizer.ColumnResolver;
 import org.lealone.sql.optimizer.Optimizer;
 import org.lealone.sql.optimizer.TableFilter;
+import org.lealone.transaction.Transaction;
 
 /**
  * This class represents a simple SELECT statement.
@@ -91,6 +93,7 @@ public class Select extends Query {
 
     private final ResultCache resultCache = new ResultCache();
     private QueryOperator queryOperator;
+    private LazySelectResult lazyResult;
 
     public Select(ServerSession session) {
         super(session);
@@ -106,6 +109,20 @@ public class Select extends Query {
         return !isForUpdate;
     }
 
+    @Override
+    public boolean canReuse() {
+        // 延迟产生的结果还没有读完时，语句不能给其他地方复用
+        return super.canReuse() && (lazyResult == null || lazyResult.isClosed());
+    }
+
+    @Override
+    public void setSession(ServerSession currentSession) {
+        // 缓存的结果可能包含原来那个session未提交的记录，换了session后不能再用
+        if (currentSession != session)
+            resultCache.clear();
+        super.setSession(currentSession);
+    }
+
     public void setExpressions(ArrayList<Expression> expressions) {
         this.expressions = expressions;
     }
@@ -1237,7 +1254,7 @@ public class Select extends Query {
         return resultCache.getResult(maxRows, target, false);
     }
 
-    private LocalResult queryWithoutCache(int maxRows, ResultTarget target, boolean async) {
+    private int getLimitRows(int maxRows) {
         // 按JDBC规范的要求，当调用java.sql.Statement.setMaxRows时，
         // 如果maxRows是0，表示不限制行数，相当于没有调用过setMaxRows一样，
         // 如果小余0，已经在客户端抛了无效参数异常，所以这里统一处理: 当limitRows小于0时表示不限制行数。
@@ -1253,6 +1270,12 @@ public class Select extends Query {
                 limitRows = Math.min(l, limitRows);
             }
         }
+        return limitRows;
+    }
+
+    private LocalResult queryWithoutCache(int maxRows, ResultTarget target, boolean async) {
+        closeLazyResult();
+        int limitRows = getLimitRows(maxRows);
         int columnCount = expressions.size();
         LocalResult result = null;
         if (target == null || !session.getDatabase().getSettings().optimizeInsertFromSelect) {
@@ -1329,6 +1352,32 @@ public class Select extends Query {
         return old != null ? old : new LocalResult(session, expressionArray, visibleColumnCount);
     }
 
+    // 不需要排序、分组、去重和加锁的查询，可以按表中记录的顺序一行行地产生结果，
+    // 可重复读隔离级别需要依赖事务的快照，事务结束后就不能再读了
+    private boolean isLazyQueryable(ResultTarget target) {
+        return target == null && !isQuickAggregateQuery && !isGroupQuery && !distinct && !isDistinctQuery
+                && !isDistinctQueryForMultiFields && (sort == null || sortUsingIndex) && !randomAccessResult
+                && !isForUpdate && offsetExpr == null && session.getDatabase().getSettings().lazyQueryExecution
+                && session.getTransaction().getIsolationLevel() < Transaction.IL_REPEATABLE_READ;
+    }
+
+    private void queryLazy(int maxRows) {
+        closeLazyResult();
+        int limitRows = getLimitRows(maxRows);
+        topTableFilter.startQuery(session);
+        topTableFilter.reset();
+        topTableFilter.lock(session, false);
+        lazyResult = new LazySelectResult(limitRows);
+    }
+
+    // 语句被重新执行时，上一次还没读完的结果就不能再读了
+    private void closeLazyResult() {
+        if (lazyResult != null) {
+            lazyResult.close();
+            lazyResult = null;
+        }
+    }
+
     @Override
     public YieldableBase<Result> createYieldableQuery(int maxRows, boolean scrollable,
             AsyncHandler<AsyncResult<Result>> asyncHandler, ResultTarget target) {
@@ -1350,20 +1399,33 @@ public class Select extends Query {
             this.target = target;
         }
 
+        private boolean lazyQuery;
+
         @Override
         protected boolean startInternal() {
             fireBeforeSelectTriggers();
+            // 不需要滚动的结果集等到客户端取数据时才产生
+            if (lazy && !scrollable && isLazyQueryable(target)) {
+                queryLazy(maxRows);
+                lazyQuery = true;
+                return false;
+            }
             resultCache.getResult(maxRows, target, true);
             return false;
         }
 
         @Override
         protected void stopInternal() {
-            statement.queryOperator.stop();
+            if (!lazyQuery)
+                statement.queryOperator.stop();
         }
 
         @Override
         protected boolean executeInternal() {
+            if (lazyQuery) {
+                setResult(lazyResult, -1);
+                return false;
+            }
             if (resultCache.useCache) {
                 resultCache.lastResult.reset();
                 setResult(resultCache.lastResult, resultCache.lastResult.getRowCount());
@@ -1412,6 +1474,11 @@ public class Select extends Query {
             return params;
         }
 
+        private void clear() {
+            lastResult = null;
+            useCache = false;
+        }
+
         private void closeLastResult() {
             if (lastResult != null) {
                 lastResult.close();
@@ -1478,6 +1545,40 @@ public class Select extends Query {
         }
     }
 
+    private class LazySelectResult extends LazyResult {
+
+        private final int columnCount = expressions.size();
+        private final int limitRows;
+        private final int sampleSize;
+        private int rowNumber;
+
+        LazySelectResult(int limitRows) {
+            super(expressionArray, visibleColumnCount);
+            this.limitRows = limitRows;
+            sampleSize = getSampleSizeValue(session);
+            setCurrentRowNumber(0);
+        }
+
+        @Override
+        protected Value[] fetchNextRow() {
+            if (limitRows >= 0 && rowNumber >= limitRows || sampleSize > 0 && rowNumber >= sampleSize)
+                return null;
+            while (topTableFilter.next()) {
+                setCurrentRowNumber(rowNumber + 1);
+                if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+                    Value[] row = new Value[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        Expression expr = expressions.get(i);
+                        row[i] = expr.getValue(session);
+                    }
+                    rowNumber++;
+                    return row;
+                }
+            }
+            return null;
+        }
+    }
+
     private abstract class QueryOperator {
         int columnCount;
         ResultTarget target;
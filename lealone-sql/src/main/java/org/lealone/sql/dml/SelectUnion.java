@@ -72,6 +72,15 @@ public class SelectUnion extends Query implements ISelectUnion {
         right = select;
     }
 
+    @Override
+    public void setSession(ServerSession currentSession) {
+        super.setSession(currentSession);
+        // 从计划缓存中取出的语句换了session后，左右两边的子查询也要跟着换
+        left.setSession(currentSession);
+        if (right != null)
+            right.setSession(currentSession);
+    }
+
     @Override
     public Query getRight() {
         return right;
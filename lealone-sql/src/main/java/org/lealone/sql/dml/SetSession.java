@@ -59,6 +59,9 @@ public class SetSession extends SetStatement {
         case THROTTLE:
             session.setThrottle(getAndValidateIntValue());
             break;
+        case OPTIMISTIC:
+            session.setOptimistic(getAndValidateBooleanValue());
+            break;
         default:
             DbException.throwInternalError("unknown setting type: " + setting);
         }
@@ -101,6 +101,6 @@ public abstract class SetStatement extends ManipulationStatement {
         db.getNextModificationDataId();
         // query caches might be affected as well, for example
         // when changing the compatibility mode
-        db.getNextModificationMetaId();
+        db.setGlobalModified();
     }
 }
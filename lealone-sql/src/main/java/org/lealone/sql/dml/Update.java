@@ -9,11 +9,13 @@ package org.lealone.sql.dml;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.StatementBuilder;
 import org.lealone.common.util.StringUtils;
 import org.lealone.common.util.Utils;
+import org.lealone.db.DbObject;
 import org.lealone.db.api.ErrorCode;
 import org.lealone.db.api.Trigger;
 import org.lealone.db.async.AsyncHandler;
@@ -23,10 +25,15 @@ import org.lealone.db.result.Row;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Column;
 import org.lealone.db.table.Table;
+import org.lealone.db.value.DataType;
 import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
 import org.lealone.sql.PreparedSQLStatement;
 import org.lealone.sql.SQLStatement;
 import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.ExpressionVisitor;
+import org.lealone.sql.expression.Operation;
 import org.lealone.sql.expression.Parameter;
 import org.lealone.sql.expression.ValueExpression;
 import org.lealone.sql.optimizer.PlanItem;
@@ -51,6 +58,10 @@ public class Update extends ManipulationStatement {
     private final ArrayList<Column> columns = Utils.newSmallArrayList();
     private final HashMap<Column, Expression> expressionMap = new HashMap<>();
 
+    // 所有赋值都是c = c + e或c = c - e这种形式时，e就是对应字段的增量，可以不锁住整行，在提交时合并
+    private Expression[] incrementDeltas;
+    private boolean[] incrementNegated;
+
     public Update(ServerSession session) {
         super(session);
     }
@@ -65,6 +76,20 @@ public class Update extends ManipulationStatement {
         return true;
     }
 
+    @Override
+    protected boolean collectDependencies(Set<DbObject> dependencies) {
+        ExpressionVisitor visitor = ExpressionVisitor.getDependenciesVisitor(dependencies);
+        visitor.addDependency(tableFilter.getTable());
+        if (condition != null)
+            condition.isEverything(visitor);
+        for (Expression e : expressionMap.values()) {
+            e.isEverything(visitor);
+        }
+        if (limitExpr != null)
+            limitExpr.isEverything(visitor);
+        return true;
+    }
+
     public void setLimit(Expression limit) {
         this.limitExpr = limit;
     }
@@ -115,9 +140,12 @@ public class Update extends ManipulationStatement {
             Expression e = expressionMap.get(c);
             e.mapColumns(tableFilter, 0);
             expressionMap.put(c, e.optimize(session));
-
+        }
+        prepareIncrement(columnSet);
+        for (int i = 0; i < size; i++) {
+            Column c = columns.get(i);
             columnSet.add(c);
-            e.getColumns(columnSet); // 例如f1=f2*2;
+            expressionMap.get(c).getColumns(columnSet); // 例如f1=f2*2;
         }
         PlanItem item = tableFilter.getBestPlanItem(session, 1);
         tableFilter.setPlanItem(item);
@@ -127,6 +155,61 @@ public class Update extends ManipulationStatement {
         return this;
     }
 
+    private void prepareIncrement(HashSet<Column> conditionColumns) {
+        int size = columns.size();
+        Expression[] deltas = new Expression[size];
+        boolean[] negated = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Column c = columns.get(i);
+            // where条件用到的字段不能合并，因为条件是在旧值上计算的；
+            // DECIMAL要检查精度，所以也不合并
+            if (conditionColumns.contains(c) || c.getType() == Value.DECIMAL || !DataType.supportsAdd(c.getType()))
+                return;
+            Expression e = expressionMap.get(c);
+            if (!(e instanceof Operation))
+                return;
+            Operation op = (Operation) e;
+            Expression delta;
+            if (op.getOpType() == Operation.PLUS) {
+                if (isColumn(op.getLeft(), c))
+                    delta = op.getRight();
+                else if (isColumn(op.getRight(), c))
+                    delta = op.getLeft();
+                else
+                    return;
+            } else if (op.getOpType() == Operation.MINUS && isColumn(op.getLeft(), c)) {
+                delta = op.getRight();
+                negated[i] = true;
+            } else {
+                return;
+            }
+            HashSet<Column> deltaColumns = new HashSet<>();
+            delta.getColumns(deltaColumns);
+            if (!deltaColumns.isEmpty() || !delta.isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR))
+                return;
+            deltas[i] = delta;
+        }
+        incrementDeltas = deltas;
+        incrementNegated = negated;
+    }
+
+    private static boolean isColumn(Expression e, Column c) {
+        return e instanceof ExpressionColumn && ((ExpressionColumn) e).getColumn() == c;
+    }
+
+    // 返回null表示当前这行只能按普通的方式更新
+    private Value[] getIncrementDeltas() {
+        int size = incrementDeltas.length;
+        Value[] deltas = new Value[size];
+        for (int i = 0; i < size; i++) {
+            Value v = incrementDeltas[i].getValue(session);
+            if (v == ValueNull.INSTANCE || !DataType.supportsAdd(v.getType()))
+                return null;
+            deltas[i] = incrementNegated[i] ? v.negate() : v;
+        }
+        return deltas;
+    }
+
     @Override
     public int update() {
         // 以同步的方式运行
@@ -181,6 +264,7 @@ public class Update extends ManipulationStatement {
         final Column[] columns;
         final int columnCount;
         boolean hasNext;
+        boolean increment;
         Row oldRow;
 
         public YieldableUpdate(Update statement, AsyncHandler<AsyncResult<Integer>> asyncHandler) {
@@ -202,6 +286,7 @@ public class Update extends ManipulationStatement {
             session.getUser().checkRight(table, Right.UPDATE);
             table.fire(session, Trigger.UPDATE, true);
             statement.setCurrentRowNumber(0);
+            increment = async && statement.incrementDeltas != null && table.canIncrementColumns(statement.columns);
             if (limitRows == 0)
                 hasNext = false;
             else
@@ -226,44 +311,19 @@ public class Update extends ManipulationStatement {
                 boolean yieldIfNeeded = statement.setCurrentRowNumber(affectedRows + 1);
                 if (statement.condition == null || Boolean.TRUE.equals(statement.condition.getBooleanValue(session))) {
                     Row oldRow = tableFilter.get();
-                    Row newRow = table.getTemplateRow();
-                    newRow.setKey(oldRow.getKey()); // 复用原来的行号
-                    for (int i = 0; i < columnCount; i++) {
-                        Expression newExpr = statement.expressionMap.get(columns[i]);
-                        Value newValue;
-                        if (newExpr == null) {
-                            newValue = oldRow.getValue(i);
-                        } else if (newExpr == ValueExpression.getDefault()) {
-                            Column column = table.getColumn(i);
-                            newValue = table.getDefaultValue(session, column);
-                        } else {
-                            Column column = table.getColumn(i);
-                            newValue = column.convert(newExpr.getValue(session));
-                        }
-                        newRow.setValue(i, newValue);
-                    }
-                    table.validateConvertUpdateSequence(session, newRow);
-                    boolean done = false;
-                    if (table.fireRow()) {
-                        done = table.fireBeforeRow(session, oldRow, newRow);
-                    }
-                    if (!done) {
-                        if (async) {
-                            int ret = table.tryUpdateRow(session, oldRow, newRow, statement.columns, this);
-                            if (ret == Transaction.OPERATION_NEED_RETRY) {
-                                if (tableFilter.rebuildSearchRow(session, oldRow) == null)
-                                    hasNext = tableFilter.next();
-                                continue;
-                            } else if (ret != Transaction.OPERATION_COMPLETE) {
-                                this.oldRow = oldRow;
-                                return true;
-                            }
-                        } else {
-                            table.updateRow(session, oldRow, newRow, statement.columns);
-                        }
-                        if (table.fireRow()) {
-                            table.fireAfterRow(session, oldRow, newRow, false);
-                        }
+                    Value[] deltas = increment ? statement.getIncrementDeltas() : null;
+                    int ret;
+                    if (deltas != null)
+                        ret = table.tryIncrementRow(session, oldRow, statement.columns, deltas, this);
+                    else
+                        ret = updateRow(oldRow);
+                    if (ret == Transaction.OPERATION_NEED_RETRY) {
+                        if (tableFilter.rebuildSearchRow(session, oldRow) == null)
+                            hasNext = tableFilter.next();
+                        continue;
+                    } else if (ret != Transaction.OPERATION_COMPLETE) {
+                        this.oldRow = oldRow;
+                        return true;
                     }
                     affectedRows++;
                     if (limitRows > 0 && affectedRows >= limitRows) {
@@ -279,5 +339,42 @@ public class Update extends ManipulationStatement {
             loopEnd = true;
             return false;
         }
+
+        private int updateRow(Row oldRow) {
+            Row newRow = table.getTemplateRow();
+            newRow.setKey(oldRow.getKey()); // 复用原来的行号
+            for (int i = 0; i < columnCount; i++) {
+                Expression newExpr = statement.expressionMap.get(columns[i]);
+                Value newValue;
+                if (newExpr == null) {
+                    newValue = oldRow.getValue(i);
+                } else if (newExpr == ValueExpression.getDefault()) {
+                    Column column = table.getColumn(i);
+                    newValue = table.getDefaultValue(session, column);
+                } else {
+                    Column column = table.getColumn(i);
+                    newValue = column.convert(newExpr.getValue(session));
+                }
+                newRow.setValue(i, newValue);
+            }
+            table.validateConvertUpdateSequence(session, newRow);
+            boolean done = false;
+            if (table.fireRow()) {
+                done = table.fireBeforeRow(session, oldRow, newRow);
+            }
+            if (!done) {
+                if (async) {
+                    int ret = table.tryUpdateRow(session, oldRow, newRow, statement.columns, this);
+                    if (ret != Transaction.OPERATION_COMPLETE)
+                        return ret;
+                } else {
+                    table.updateRow(session, oldRow, newRow, statement.columns);
+                }
+                if (table.fireRow()) {
+                    table.fireAfterRow(session, oldRow, newRow, false);
+                }
+            }
+            return Transaction.OPERATION_COMPLETE;
+        }
     }
 }
@@ -17,11 +17,21 @@
  */
 package org.lealone.test.aote;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.management.ObjectName;
+
 import org.junit.Test;
+import org.lealone.common.util.StringUtils;
 import org.lealone.db.Constants;
+import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageBuilder;
 import org.lealone.storage.StorageEngine;
@@ -32,6 +42,7 @@ import org.lealone.transaction.TransactionEngine;
 import org.lealone.transaction.TransactionEngineManager;
 import org.lealone.transaction.TransactionMap;
 import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.TransactionEngineMetrics;
 import org.lealone.transaction.aote.log.LogSyncService;
 
 public class AMTransactionEngineTest extends TestBase {
@@ -135,4 +146,189 @@ public class AMTransactionEngineTest extends TestBase {
         assertTrue(map.getDiskSpaceUsed() > 0);
         te.close();
     }
+
+    @Test
+    public void testParallelCheckpoint() {
+        Map<String, String> config = getDefaultConfig();
+        config.put("checkpoint_service_threads", "2");
+        TransactionEngine te = getTransactionEngine(config);
+        Storage storage = getStorage();
+
+        int mapCount = 4;
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<?, ?>[] maps = new TransactionMap[mapCount];
+        for (int i = 0; i < mapCount; i++) {
+            TransactionMap<String, String> map = t.openMap("testParallelCheckpoint" + i, storage);
+            map.remove();
+            map = t.openMap("testParallelCheckpoint" + i, storage);
+            for (int j = 1; j <= 100; j++) {
+                map.put("key" + j, "value" + j);
+            }
+            maps[i] = map;
+        }
+        t.commit();
+
+        te.checkpoint();
+        for (TransactionMap<?, ?> map : maps) {
+            assertTrue(map.getDiskSpaceUsed() > 0);
+        }
+        te.close();
+    }
+
+    // 只保存了部分map时系统崩溃，没保存的map要从旧的redo日志中恢复，
+    // 已保存的map只redo检查点之后的日志；所有map都保存后才能截断redo日志
+    @Test
+    public void testPartialCheckpointRecovery() throws Exception {
+        String baseDir = joinDirs("aote-recovery");
+        String storagePath = joinDirs("amte", "recovery");
+        FileUtils.deleteRecursive(baseDir, false);
+        FileUtils.deleteRecursive(storagePath, false);
+
+        Map<String, String> config = getDefaultConfig();
+        config.put("base_dir", baseDir);
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("committed_data_cache_size_in_mb", "1");
+        config.put("checkpoint_service_loop_interval", "100"); // 100ms
+        config.put("checkpoint_period", "3600000"); // 不让周期检查点保存所有map
+        config.put("log_chunk_size", "1024");
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        Storage storage = openStorage(storagePath);
+
+        // 小map先写，它的redo日志在第一个chunk中
+        Transaction t1 = te.beginTransaction(false);
+        TransactionMap<String, String> small = t1.openMap("testPartialCheckpointSmall", storage);
+        for (int i = 1; i <= 10; i++) {
+            small.put("key" + i, "value" + i);
+        }
+        t1.commit();
+
+        // 大map超过阈值，检查点线程只会保存它
+        int count = 20000;
+        String padding = StringUtils.pad("", 100, "x", true);
+        Transaction t2 = te.beginTransaction(false);
+        TransactionMap<String, String> big = t2.openMap("testPartialCheckpointBig", storage);
+        for (int i = 1; i <= count; i++) {
+            big.put("key" + i, "value" + i + padding);
+        }
+        t2.commit();
+
+        for (int i = 0; i < 100 && big.getDiskSpaceUsed() == 0; i++) {
+            Thread.sleep(100); // 等待后端检查点线程完成数据保存
+        }
+        Thread.sleep(500); // 等待map检查点日志同步和redo日志截断
+        assertTrue(big.getDiskSpaceUsed() > 0);
+        assertEquals(0, small.getDiskSpaceUsed());
+        String redoLogDir = baseDir + File.separator + "redo_log";
+        String firstChunk = redoLogDir + File.separator + "redoLog" + Constants.NAME_SEPARATOR + 0;
+        assertTrue(FileUtils.exists(redoLogDir + File.separator + "redoLog" + Constants.NAME_SEPARATOR + 1));
+        assertTrue(FileUtils.exists(firstChunk)); // 小map还没保存，不能截断
+
+        te.checkpoint();
+        // 检查点之后的修改只在redo日志中
+        Transaction t3 = te.beginTransaction(false);
+        big = t3.openMap("testPartialCheckpointBig", storage);
+        big.put("key1", "updated");
+        big.remove("key2");
+        big.put("key" + (count + 1), "added");
+        t3.commit();
+
+        // 不关闭引擎，直接复制文件模拟系统崩溃
+        String crashBaseDir = joinDirs("aote-recovery-crash");
+        String crashStoragePath = joinDirs("amte", "recovery-crash");
+        FileUtils.deleteRecursive(crashBaseDir, false);
+        FileUtils.deleteRecursive(crashStoragePath, false);
+        copyDir(baseDir, crashBaseDir);
+        copyDir(storagePath, crashStoragePath);
+        for (Path x : (Iterable<Path>) Files.walk(Paths.get(crashStoragePath))::iterator) System.out.println("DBG f " + x + " " + x.toFile().length());
+
+        Map<String, String> crashConfig = new HashMap<>(config);
+        crashConfig.put("base_dir", crashBaseDir);
+        crashConfig.remove("committed_data_cache_size_in_mb"); crashConfig.remove("checkpoint_service_loop_interval");
+        AMTransactionEngine te2 = new AMTransactionEngine();
+        te2.init(crashConfig);
+        Storage storage2 = openStorage(crashStoragePath);
+        Transaction t4 = te2.beginTransaction(false);
+        TransactionMap<String, String> small2 = t4.openMap("testPartialCheckpointSmall", storage2);
+        assertEquals(10, small2.size());
+        assertEquals("value10", small2.get("key10"));
+        TransactionMap<String, String> big2 = t4.openMap("testPartialCheckpointBig", storage2);
+        { int nn = 0; org.lealone.db.async.Future<?> x = null; java.util.Iterator<String> it = big2.keyIterator(null); while (it.hasNext()) { String k = it.next(); if (big2.get(k) != null) nn++; } System.out.println("DBG nonnull=" + nn + " k100=" + big2.get("key100") + " raw1=" + ((org.lealone.storage.StorageMap) big2.getRawMap()).get("key1")); }
+        System.out.println("DBG size=" + big2.size() + " k1=" + big2.get("key1") + " k2=" + (big2.get("key2") != null) + " k3=" + (big2.get("key3") != null) + " kn=" + big2.get("key" + (count + 1)) + " disk=" + big2.getDiskSpaceUsed());
+        for (String n : new File(crashBaseDir + "/redo_log").list()) System.out.println("DBG file " + n + " " + new File(crashBaseDir + "/redo_log/" + n).length());
+        assertEquals(count, big2.size());
+        assertEquals("updated", big2.get("key1"));
+        assertNull(big2.get("key2"));
+        assertEquals("value3" + padding, big2.get("key3"));
+        assertEquals("added", big2.get("key" + (count + 1)));
+        t4.commit();
+        storage2.close();
+        te2.close();
+
+        // 所有map都保存后旧的chunk文件才被删除
+        te.checkpoint();
+        assertTrue(small.getDiskSpaceUsed() > 0);
+        assertFalse(FileUtils.exists(firstChunk));
+        storage.close();
+        te.close();
+    }
+
+    private static Storage openStorage(String storagePath) {
+        StorageEngine se = StorageEngineManager.getStorageEngine(Constants.DEFAULT_STORAGE_ENGINE_NAME);
+        return se.getStorageBuilder().storagePath(storagePath).openStorage();
+    }
+
+    private static void copyDir(String from, String to) throws IOException {
+        Path source = Paths.get(from);
+        Path target = Paths.get(to);
+        Files.walk(source).forEach(p -> {
+            try {
+                Files.copy(p, target.resolve(source.relativize(p)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Map<String, String> config = getDefaultConfig();
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        AMTransactionEngine te = new AMTransactionEngine();
+        te.init(config);
+        Storage storage = getStorage();
+        TransactionEngineMetrics metrics = te.getTransactionEngineMetrics();
+        metrics.reset();
+
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testMetrics", storage);
+        for (int i = 1; i <= 10; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        t.commit();
+        te.checkpoint();
+
+        assertEquals(1, metrics.getHistogram("undo_log_size").getCount());
+        assertEquals(10, metrics.getHistogram("undo_log_size").getMax());
+        assertTrue(metrics.getHistogram("fsync_time_us").getCount() > 0);
+        assertTrue(metrics.getHistogram("sync_bytes").getSum() > 0);
+        assertTrue(metrics.getHistogram("sync_records").getSum() > 0);
+        assertTrue(metrics.getHistogram("checkpoint_map_time_us").getCount() > 0);
+        assertEquals("1", te.getMetrics().get("undo_log_size.count"));
+
+        TransactionEngineMetrics.Histogram h = metrics.getHistogram("lock_wait_time_us");
+        h.record(0);
+        h.record(100);
+        h.record(1000);
+        assertEquals(3, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(127, h.getPercentile(0.5));
+        assertEquals(1000, h.getPercentile(0.99));
+
+        ObjectName name = new ObjectName("org.lealone:type=TransactionEngineMetrics,name=" + te.getName());
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Metrics"));
+        te.close();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
 }
@@ -47,6 +47,7 @@ public class AMTransactionMapTest extends TestBase {
         testSyncOperations();
         testTryOperations();
         testColumnLock();
+        testSize();
 
         te.close();
     }
@@ -55,6 +56,39 @@ public class AMTransactionMapTest extends TestBase {
         return AMTransactionMapTest.class.getSimpleName() + "-" + name;
     }
 
+    void testSize() {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap(createMapName("testSize"), storage);
+        map.clear();
+        map.put("1", "a");
+        map.put("2", "b");
+        map.put("3", "c");
+        t.commit();
+
+        Transaction t1 = te.beginTransaction(false);
+        TransactionMap<String, String> map1 = map.getInstance(t1);
+        map1.put("4", "d");
+        map1.remove("1");
+        map1.put("2", "b2"); // update不影响记录数
+        assertEquals(3, map1.size());
+
+        Transaction t2 = te.beginTransaction(false);
+        TransactionMap<String, String> map2 = map.getInstance(t2);
+        assertEquals(3, map2.size()); // 看不到t1新增和删除的记录
+
+        t1.addSavepoint("sp1");
+        map1.put("5", "e");
+        map1.remove("2");
+        assertEquals(3, map1.size());
+        t1.rollbackToSavepoint("sp1");
+        assertEquals(3, map1.size());
+        assertEquals(3, map2.size());
+
+        t1.commit();
+        assertEquals(3, map2.size());
+        t2.commit();
+    }
+
     void testSyncOperations() {
         Transaction t = te.beginTransaction(false);
         TransactionMap<String, String> map = t.openMap(createMapName("testSyncOperations"), storage);
@@ -17,15 +17,23 @@
  */
 package org.lealone.test.aote;
 
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.RunMode;
+import org.lealone.db.api.ErrorCode;
 import org.lealone.storage.Storage;
 import org.lealone.test.TestBase;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngine;
 import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.aote.AMTransactionEngine;
 import org.lealone.transaction.aote.TransactionalValue;
+import org.lealone.transaction.aote.log.LogSyncService;
 
 public class AMTransactionTest extends TestBase {
     @Test
@@ -70,4 +78,335 @@ public class AMTransactionTest extends TestBase {
             te.close();
         }
     }
+
+    @Test
+    public void testReadOnlyTransaction() {
+        TransactionEngine te = AMTransactionEngineTest.getTransactionEngine();
+        Storage storage = AMTransactionEngineTest.getStorage();
+        String mapName = "testReadOnlyTransaction";
+        try {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map = t.openMap(mapName, storage);
+            map.clear();
+            map.put("1", "a");
+            t.commit();
+
+            // 只读事务不分配事务id，能读到已经提交的数据
+            t = te.beginTransaction(true, RunMode.CLIENT_SERVER, true);
+            assertTrue(t.isReadOnly());
+            long snapshot = t.getTransactionId();
+            assertTrue(snapshot % 2 != 0);
+            map = t.openMap(mapName, storage);
+            assertEquals("a", map.get("1"));
+            t.commit();
+            assertEquals(Transaction.STATUS_CLOSED, t.getStatus());
+
+            // 第一次写时升级为普通事务
+            t = te.beginTransaction(true, RunMode.CLIENT_SERVER, true);
+            map = t.openMap(mapName, storage);
+            map.put("2", "b");
+            assertFalse(t.isReadOnly());
+            assertTrue(t.getTransactionId() % 2 == 0);
+            assertTrue(t.getTransactionId() > snapshot);
+            t.commit();
+
+            t = te.beginTransaction(true, RunMode.CLIENT_SERVER, true);
+            map = t.openMap(mapName, storage);
+            assertEquals("b", map.get("2"));
+            t.rollback();
+        } finally {
+            te.close();
+        }
+    }
+
+    @Test
+    public void testRepeatableReadSnapshot() {
+        TransactionEngine te = AMTransactionEngineTest.getTransactionEngine();
+        Storage storage = AMTransactionEngineTest.getStorage();
+        String mapName = "testRepeatableReadSnapshot";
+        AMTransactionEngine amte = (AMTransactionEngine) te;
+        try {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map = t.openMap(mapName, storage);
+            map.clear();
+            map.put("1", "a");
+            t.commit();
+
+            // 只读事务也能使用可重复读快照
+            Transaction t1 = te.beginTransaction(false, RunMode.CLIENT_SERVER, true);
+            t1.setIsolationLevel(Transaction.IL_REPEATABLE_READ);
+            assertTrue(t1.isReadOnly());
+            assertTrue(amte.containsRepeatableReadTransactions(Long.MAX_VALUE));
+            TransactionMap<String, String> map1 = t1.openMap(mapName, storage);
+            assertEquals("a", map1.get("1"));
+
+            Transaction t2 = te.beginTransaction(false);
+            TransactionMap<String, String> map2 = t2.openMap(mapName, storage);
+            map2.put("1", "b");
+            t2.commit();
+            assertEquals("a", map1.get("1"));
+
+            // 升级后快照不变
+            map1.put("2", "c");
+            assertFalse(t1.isReadOnly());
+            assertEquals("a", map1.get("1"));
+            t1.commit();
+            assertFalse(amte.containsRepeatableReadTransactions(Long.MAX_VALUE));
+        } finally {
+            te.close();
+        }
+    }
+
+    @Test
+    public void testEarlyLockRelease() {
+        Map<String, String> config = AMTransactionEngineTest.getDefaultConfig();
+        config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+        config.put("early_lock_release", "true");
+        TransactionEngine te = AMTransactionEngineTest.getTransactionEngine(config);
+        Storage storage = AMTransactionEngineTest.getStorage();
+        String mapName = "testEarlyLockRelease";
+        try {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map = t.openMap(mapName, storage);
+            map.clear();
+            t.commit();
+
+            t = te.beginTransaction(false);
+            map = t.openMap(mapName, storage);
+            map.put("1", "a");
+            CountDownLatch latch = new CountDownLatch(1);
+            t.asyncCommit(() -> latch.countDown());
+            // 日志还没同步完成锁就已经释放了，其他事务可以马上修改这条记录
+            TransactionalValue tv = (TransactionalValue) map.getTransactionalValue("1");
+            assertTrue(tv.isCommitted());
+
+            Transaction t2 = te.beginTransaction(false);
+            TransactionMap<String, String> map2 = t2.openMap(mapName, storage);
+            assertEquals("a", map2.get("1"));
+            map2.put("1", "b");
+            // 依赖前一个事务，要等它的日志同步完成才能提交
+            t2.commit();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            assertEquals(0, latch.getCount());
+            tv = (TransactionalValue) map2.getTransactionalValue("1");
+            assertTrue(tv.isCommitted());
+            assertEquals("b", map2.get("1"));
+        } finally {
+            te.close();
+        }
+    }
+
+    @Test
+    public void testOptimisticTransaction() {
+        TransactionEngine te = AMTransactionEngineTest.getTransactionEngine();
+        Storage storage = AMTransactionEngineTest.getStorage();
+        String mapName = "testOptimisticTransaction";
+        AMTransactionEngine amte = (AMTransactionEngine) te;
+        try {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map = t.openMap(mapName, storage);
+            map.clear();
+            map.put("1", "a");
+            map.put("2", "b");
+            t.commit();
+            long aborts = amte.getOptimisticAbortCount();
+            long commits = amte.getOptimisticCommitCount();
+
+            Transaction t1 = te.beginTransaction(false);
+            t1.setOptimistic(true);
+            TransactionMap<String, String> map1 = t1.openMap(mapName, storage);
+            Transaction t2 = te.beginTransaction(false);
+            t2.setOptimistic(true);
+            TransactionMap<String, String> map2 = t2.openMap(mapName, storage);
+
+            // 写操作先放在写集中，只有自己能看到，也不会挡住其他事务
+            map1.put("1", "a1");
+            assertEquals("a1", map1.get("1"));
+            assertEquals("a", map2.get("1"));
+            map2.put("1", "a2");
+            map2.remove("2");
+            assertNull(map2.get("2"));
+
+            t1.addSavepoint("s1");
+            map1.put("2", "b1");
+            t1.rollbackToSavepoint("s1");
+            assertEquals("b", map1.get("2"));
+            t1.commit();
+            assertEquals("a1", map.get("1"));
+
+            // 提交时才发现冲突
+            try {
+                t2.commit();
+                fail();
+            } catch (DbException e) {
+                assertEquals(ErrorCode.TRANSACTION_CONFLICT_1, e.getErrorCode());
+                t2.rollback();
+            }
+            t = te.beginTransaction(false);
+            map = t.openMap(mapName, storage);
+            assertEquals("a1", map.get("1"));
+            assertEquals("b", map.get("2"));
+            t.commit();
+            assertEquals(commits + 1, amte.getOptimisticCommitCount());
+            assertEquals(aborts + 1, amte.getOptimisticAbortCount());
+        } finally {
+            te.close();
+        }
+    }
+
+    // 乐观事务不能基于其他事务未提交的值写入，写的时候和提交的时候都要当成冲突
+    @Test
+    public void testOptimisticDirtyWrite() {
+        TransactionEngine te = AMTransactionEngineTest.getTransactionEngine();
+        Storage storage = AMTransactionEngineTest.getStorage();
+        String mapName = "testOptimisticDirtyWrite";
+        try {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, String> map = t.openMap(mapName, storage);
+            map.clear();
+            map.put("1", "a");
+            map.put("2", "b");
+            t.commit();
+
+            // 悲观事务改了记录但还没提交，乐观事务写同一条记录时直接冲突
+            Transaction t1 = te.beginTransaction(false);
+            TransactionMap<String, String> map1 = t1.openMap(mapName, storage);
+            map1.put("1", "a1");
+            Transaction t2 = te.beginTransaction(false);
+            t2.setOptimistic(true);
+            TransactionMap<String, String> map2 = t2.openMap(mapName, storage);
+            try {
+                map2.put("1", "a2");
+                fail();
+            } catch (DbException e) {
+                assertEquals(ErrorCode.TRANSACTION_CONFLICT_1, e.getErrorCode());
+            }
+            map2.put("2", "b2");
+            t2.rollback();
+
+            // 乐观事务先写，提交前记录被悲观事务改了但还没提交，提交时冲突
+            Transaction t3 = te.beginTransaction(false);
+            t3.setOptimistic(true);
+            TransactionMap<String, String> map3 = t3.openMap(mapName, storage);
+            map3.put("2", "b3");
+            Transaction t4 = te.beginTransaction(false);
+            TransactionMap<String, String> map4 = t4.openMap(mapName, storage);
+            map4.put("2", "b4");
+            try {
+                t3.commit();
+                fail();
+            } catch (DbException e) {
+                assertEquals(ErrorCode.TRANSACTION_CONFLICT_1, e.getErrorCode());
+                t3.rollback();
+            }
+            t1.commit();
+            t4.commit();
+
+            t = te.beginTransaction(false);
+            map = t.openMap(mapName, storage);
+            assertEquals("a1", map.get("1"));
+            assertEquals("b4", map.get("2"));
+            t.commit();
+        } finally {
+            te.close();
+        }
+    }
+
+    // 多个事务按不同的顺序累加同样的两条记录，提交时合并增量要等正在提交的事务释放锁，
+    // 互相等待时由死锁检测选出牺牲者，其他事务都能提交成功。
+    // 一半线程在当前线程中等待，另一半让出后等被唤醒再重新提交
+    @Test
+    public void testIncrementCommitWait() throws Exception {
+        TransactionEngine te = AMTransactionEngineTest.getTransactionEngine();
+        Storage storage = AMTransactionEngineTest.getStorage();
+        String mapName = "testIncrementCommitWait";
+        try {
+            Transaction t = te.beginTransaction(false);
+            TransactionMap<String, Integer> map = t.openMap(mapName, storage);
+            map.clear();
+            map.put("1", 0);
+            map.put("2", 0);
+            t.commit();
+
+            int threadCount = 4;
+            int count = 100;
+            AtomicInteger commits = new AtomicInteger();
+            AtomicInteger errors = new AtomicInteger();
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                String[] keys = i % 2 == 0 ? new String[] { "1", "2" } : new String[] { "2", "1" };
+                boolean async = i < threadCount / 2;
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < count; j++) {
+                        Transaction t2 = te.beginTransaction(false);
+                        TransactionMap<String, Integer> map2 = t2.openMap(mapName, storage);
+                        try {
+                            for (String key : keys) {
+                                Integer old = map2.get(key);
+                                map2.tryIncrement(key, old, null, map2.getTransactionalValue(key), v -> v + 1);
+                            }
+                            if (async)
+                                asyncCommit(t2);
+                            else
+                                t2.commit();
+                            commits.incrementAndGet();
+                        } catch (DbException e) {
+                            if (e.getErrorCode() != ErrorCode.DEADLOCK_1
+                                    && e.getErrorCode() != ErrorCode.LOCK_TIMEOUT_1
+                                    && e.getErrorCode() != ErrorCode.TRANSACTION_CONFLICT_1)
+                                errors.incrementAndGet();
+                            t2.rollback();
+                        } catch (InterruptedException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+            assertEquals(0, errors.get());
+            assertTrue(commits.get() > 0);
+
+            t = te.beginTransaction(false);
+            map = t.openMap(mapName, storage);
+            assertEquals(commits.get(), map.get("1").intValue());
+            assertEquals(commits.get(), map.get("2").intValue());
+            t.commit();
+        } finally {
+            te.close();
+        }
+    }
+
+    // 像调度器那样，提交时要等其他事务就让出，被唤醒后重新提交，等待期间检查是否超时
+    private static void asyncCommit(Transaction t) throws InterruptedException {
+        CountDownLatch committed = new CountDownLatch(1);
+        while (true) {
+            CountDownLatch latch = new CountDownLatch(1);
+            Transaction.Listener listener = new Transaction.Listener() {
+                @Override
+                public void operationUndo() {
+                }
+
+                @Override
+                public void operationComplete() {
+                }
+
+                @Override
+                public void wakeUp() {
+                    latch.countDown();
+                }
+            };
+            if (t.tryAsyncCommit(() -> committed.countDown(), listener))
+                break;
+            while (!latch.await(100, TimeUnit.MILLISECONDS))
+                t.checkTimeout();
+        }
+        committed.await();
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.aote;
+
+import org.junit.Test;
+import org.lealone.client.jdbc.JdbcConnection;
+import org.lealone.db.Constants;
+import org.lealone.db.session.Session;
+import org.lealone.net.NetBuffer;
+import org.lealone.net.NetBufferFactory;
+import org.lealone.net.TransferInputStream;
+import org.lealone.net.TransferOutputStream;
+import org.lealone.net.WritableChannel;
+import org.lealone.net.nio.NioBufferFactory;
+import org.lealone.server.protocol.Packet;
+import org.lealone.server.protocol.PacketDecoders;
+import org.lealone.server.protocol.dt.DTransactionValidateBatch;
+import org.lealone.server.protocol.dt.DTransactionValidateBatchAck;
+import org.lealone.test.sql.SqlTestBase;
+
+public class DTransactionValidateBatchTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        testEncodeDecode();
+        testRoundTrip();
+    }
+
+    private void testEncodeDecode() throws Exception {
+        String[] names = { "127.0.0.1:9210:2", "127.0.0.1:9210:4", "127.0.0.1:9211:6" };
+        DTransactionValidateBatch packet = encodeAndDecode(new DTransactionValidateBatch(names));
+        assertEquals(names.length, packet.localTransactionNames.length);
+        for (int i = 0; i < names.length; i++)
+            assertEquals(names[i], packet.localTransactionNames[i]);
+
+        boolean[] isValid = { true, false, true };
+        DTransactionValidateBatchAck ack = encodeAndDecode(new DTransactionValidateBatchAck(isValid));
+        assertEquals(isValid.length, ack.isValid.length);
+        for (int i = 0; i < isValid.length; i++)
+            assertEquals(isValid[i], ack.isValid[i]);
+
+        packet = encodeAndDecode(new DTransactionValidateBatch(new String[0]));
+        assertEquals(0, packet.localTransactionNames.length);
+    }
+
+    // 发给服务器端一起效验，每个本地事务都有一个对应的结果，不存在的事务是无效的
+    private void testRoundTrip() throws Exception {
+        Session session = ((JdbcConnection) conn).getSession();
+        String[] names = { "127.0.0.1:9210:2", "127.0.0.1:9210:4", "replication:none" };
+        DTransactionValidateBatchAck ack = session
+                .<DTransactionValidateBatchAck> send(new DTransactionValidateBatch(names)).get();
+        assertEquals(names.length, ack.isValid.length);
+        for (boolean b : ack.isValid)
+            assertFalse(b);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <P extends Packet> P encodeAndDecode(P packet) throws Exception {
+        int version = Constants.TCP_PROTOCOL_VERSION_CURRENT;
+        BufferCapturingChannel channel = new BufferCapturingChannel();
+        TransferOutputStream out = new TransferOutputStream(null, channel);
+        packet.encode(out, version);
+        out.flush();
+        TransferInputStream in = new TransferInputStream(channel.buffer);
+        in.readInt(); // 协议包长度
+        return (P) PacketDecoders.getDecoder(packet.getType()).decode(in, version);
+    }
+
+    private static class BufferCapturingChannel implements WritableChannel {
+
+        NetBuffer buffer;
+
+        @Override
+        public void write(Object data) {
+            buffer = (NetBuffer) data;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getHost() {
+            return null;
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public NetBufferFactory getBufferFactory() {
+            return NioBufferFactory.getInstance();
+        }
+    }
+}
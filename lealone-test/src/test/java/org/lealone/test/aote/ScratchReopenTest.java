@@ -0,0 +1,81 @@
+package org.lealone.test.aote;
+
+import java.util.Map;
+import org.junit.Test;
+import org.lealone.db.Constants;
+import org.lealone.storage.Storage;
+import org.lealone.storage.StorageEngineManager;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionMap;
+import org.lealone.transaction.aote.AMTransactionEngine;
+import org.lealone.transaction.aote.log.LogSyncService;
+
+public class ScratchReopenTest extends TestBase {
+    static void copy(String from, String to) throws Exception {
+        java.nio.file.Path source = java.nio.file.Paths.get(from), target = java.nio.file.Paths.get(to);
+        for (java.nio.file.Path x : (Iterable<java.nio.file.Path>) java.nio.file.Files.walk(source)::iterator)
+            java.nio.file.Files.copy(x, target.resolve(source.relativize(x)));
+    }
+    @Test
+    public void run() throws Exception {
+        for (int n : new int[] { 20000 }) {
+            for (int pad : new int[] { 100 }) {
+                String base = joinDirs("scratch-" + n + "-" + pad);
+                String sp = joinDirs("scratchdata-" + n + "-" + pad);
+                FileUtils.deleteRecursive(base, false);
+                FileUtils.deleteRecursive(sp, false);
+                Map<String, String> config = AMTransactionEngineTest.getDefaultConfig();
+                config.put("base_dir", base);
+                config.put("log_sync_type", LogSyncService.LOG_SYNC_TYPE_INSTANT);
+                config.put("committed_data_cache_size_in_mb", "1");
+                config.put("checkpoint_service_loop_interval", "100");
+                config.put("checkpoint_period", "3600000");
+                config.put("log_chunk_size", "1024");
+                AMTransactionEngine te = new AMTransactionEngine();
+                te.init(config);
+                Storage storage = StorageEngineManager.getStorageEngine(Constants.DEFAULT_STORAGE_ENGINE_NAME)
+                        .getStorageBuilder().storagePath(sp).openStorage();
+                StringBuilder p = new StringBuilder();
+                for (int i = 0; i < pad; i++) p.append('x');
+                Transaction t = te.beginTransaction(false);
+                TransactionMap<String, String> m = t.openMap("m", storage);
+                for (int i = 1; i <= n; i++) m.put("key" + i, "value" + i + p);
+                t.commit();
+                te.checkpoint();
+                t = te.beginTransaction(false);
+                m = t.openMap("m", storage);
+                m.put("key1", "updated");
+                m.remove("key2");
+                t.commit();
+                String base2 = base + "c", sp2 = sp + "c";
+                FileUtils.deleteRecursive(base2, false);
+                FileUtils.deleteRecursive(sp2, false);
+                copy(base, base2);
+                copy(sp, sp2);
+                for (java.nio.file.Path x : (Iterable<java.nio.file.Path>) java.nio.file.Files.walk(java.nio.file.Paths.get(sp2))::iterator) System.out.println("DBG f " + x + " " + x.toFile().length());
+                config.put("base_dir", base2);
+                sp = sp2;
+                te = new AMTransactionEngine();
+                te.init(config);
+                storage = StorageEngineManager.getStorageEngine(Constants.DEFAULT_STORAGE_ENGINE_NAME)
+                        .getStorageBuilder().storagePath(sp).openStorage();
+                t = te.beginTransaction(false);
+                m = t.openMap("m", storage);
+                int nn = 0;
+                for (int i = 1; i <= n; i++) if (m.get("key" + i) != null) nn++;
+                System.out.println("DBG before nonnull=" + nn);
+                m.put("key1", "u2");
+                nn = 0;
+                for (int i = 1; i <= n; i++) if (m.get("key" + i) != null) nn++;
+                System.out.println("DBG afterput nonnull=" + nn);
+                nn = 0;
+                for (int i = 1; i <= n; i++) if (m.get("key" + i) != null) nn++;
+                System.out.println("DBG n=" + n + " pad=" + pad + " nonnull=" + nn + " size=" + m.size());
+                storage.close();
+                te.close();
+            }
+        }
+    }
+}
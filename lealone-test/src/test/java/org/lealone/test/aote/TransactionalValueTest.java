@@ -28,6 +28,7 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
 import org.lealone.db.value.ValueInt;
 import org.lealone.storage.Storage;
+import org.lealone.storage.StorageMap;
 import org.lealone.test.TestBase;
 import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngine;
@@ -48,6 +49,7 @@ public class TransactionalValueTest extends TestBase {
             testExclusiveRollback();
             testUncommittedCommit();
             testRemove();
+            testCommittedRef();
         } finally {
             te.close();
         }
@@ -214,4 +216,32 @@ public class TransactionalValueTest extends TestBase {
         System.out.println(v);
         t1.commit();
     }
+
+    // 从硬盘读出的已提交记录只用一个对象表示，修改时直接在它上面CAS
+    @SuppressWarnings("unchecked")
+    void testCommittedRef() {
+        Transaction t = te.beginTransaction(false);
+        TransactionMap<String, String> map = t.openMap("testCommittedRef", storage);
+        map.clear();
+        StorageMap<String, TransactionalValue> rawMap = (StorageMap<String, TransactionalValue>) map.getRawMap();
+        TransactionalValue ref = TransactionalValue.createCommittedRef("a1");
+        rawMap.put("1", ref);
+        assertTrue(ref.getRefValue() == ref);
+        assertEquals("a1", map.get("1"));
+
+        map.tryUpdate("1", "a2");
+        assertTrue(ref.getRefValue() != ref);
+        assertEquals("a2", ref.getValue());
+        assertEquals("a1", ref.getOldValue().getValue());
+        t.rollback();
+        assertEquals("a1", ref.getValue());
+        assertNull(ref.getOldValue());
+
+        t = te.beginTransaction(false);
+        map = t.openMap("testCommittedRef", storage);
+        map.tryUpdate("1", "a3");
+        t.commit();
+        assertTrue(rawMap.get("1") == ref);
+        assertEquals("a3", map.get("1"));
+    }
 }
@@ -17,7 +17,10 @@
  */
 package org.lealone.test.client;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 
 import org.junit.Test;
 import org.lealone.test.sql.SqlTestBase;
@@ -28,6 +31,9 @@ public class BatchTest extends SqlTestBase {
         init();
         testStatementBatch();
         testPreparedStatementBatch();
+        testPreparedStatementBatchWithFailedRow();
+        testPreparedStatementBatchInTransaction();
+        testPreparedStatementBatchWithDeadlock();
     }
 
     void init() throws Exception {
@@ -73,4 +79,101 @@ public class BatchTest extends SqlTestBase {
 
         ps.close();
     }
+
+    void testPreparedStatementBatchWithFailedRow() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS BatchTest2");
+        executeUpdate("CREATE TABLE IF NOT EXISTS BatchTest2(pk int PRIMARY KEY, f1 int)");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO BatchTest2(pk, f1) VALUES(?, ?)");
+        int count = 1000;
+        for (int i = 1; i <= count; i++) {
+            // 第10行主键重复，只有这一行失败，其他行照常提交
+            ps.setInt(1, i == 10 ? 1 : i);
+            ps.setInt(2, i);
+            ps.addBatch();
+        }
+        int[] result = ps.executeBatch();
+        assertEquals(count, result.length);
+        for (int i = 1; i <= count; i++) {
+            assertEquals(i == 10 ? Statement.EXECUTE_FAILED : 1, result[i - 1]);
+        }
+        assertEquals(count - 1, getCount("SELECT count(*) FROM BatchTest2"));
+        ps.close();
+    }
+
+    void testPreparedStatementBatchInTransaction() throws Exception {
+        PreparedStatement ps = conn.prepareStatement("UPDATE BatchTest2 SET f1 = ? WHERE pk = ?");
+        conn.setAutoCommit(false);
+        try {
+            for (int i = 1; i <= 5; i++) {
+                ps.setInt(1, -1);
+                ps.setInt(2, i);
+                ps.addBatch();
+            }
+            int[] result = ps.executeBatch();
+            assertEquals(5, result.length);
+            for (int i = 1; i <= 5; i++) {
+                assertEquals(1, result[i - 1]);
+            }
+            // 手动提交模式下批量操作由客户端提交
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        assertEquals(5, getCount("SELECT count(*) FROM BatchTest2 WHERE f1 = -1"));
+        ps.close();
+    }
+
+    // 批量操作在第5行发生死锁，自动提交模式下前4行所在的事务被回滚，它们也要算失败，
+    // 后面的行在新的事务中执行
+    void testPreparedStatementBatchWithDeadlock() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS BatchTest3");
+        executeUpdate("CREATE TABLE IF NOT EXISTS BatchTest3(pk int PRIMARY KEY, f1 int)");
+        for (int i = 1; i <= 10; i++)
+            executeUpdate("INSERT INTO BatchTest3(pk, f1) VALUES(" + i + ", 0)");
+
+        // 先开始的事务更老，死锁时选择批量操作所在的事务作为牺牲者
+        Connection conn2 = getConnection();
+        Statement stmt2 = conn2.createStatement();
+        conn2.setAutoCommit(false);
+        stmt2.executeUpdate("UPDATE BatchTest3 SET f1 = 2 WHERE pk = 5");
+
+        PreparedStatement ps = conn.prepareStatement("UPDATE BatchTest3 SET f1 = ? WHERE pk = ?");
+        for (int i = 1; i <= 10; i++) {
+            ps.setInt(1, 1);
+            ps.setInt(2, i);
+            ps.addBatch();
+        }
+        int[][] result = new int[1][];
+        Thread t = new Thread(() -> {
+            try {
+                result[0] = ps.executeBatch();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        Thread.sleep(500); // 等批量操作锁住前4行并等待第5行
+        stmt2.executeUpdate("UPDATE BatchTest3 SET f1 = 2 WHERE pk = 1");
+        conn2.commit();
+        t.join();
+        stmt2.close();
+        conn2.close();
+        ps.close();
+
+        assertEquals(10, result[0].length);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i <= 5 ? Statement.EXECUTE_FAILED : 1, result[0][i - 1]);
+        }
+        assertEquals(5, getCount("SELECT count(*) FROM BatchTest3 WHERE f1 = 1 AND pk > 5"));
+        assertEquals(3, getCount("SELECT count(*) FROM BatchTest3 WHERE f1 = 0"));
+        assertEquals(2, getCount("SELECT count(*) FROM BatchTest3 WHERE f1 = 2"));
+    }
+
+    private int getCount(String sql) throws Exception {
+        ResultSet rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        int count = rs.getInt(1);
+        rs.close();
+        return count;
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.client;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.lealone.client.jdbc.JdbcConnection;
+import org.lealone.db.ConnectionSetting;
+import org.lealone.db.Constants;
+import org.lealone.test.sql.SqlTestBase;
+
+public class ColumnarRowBatchTest extends SqlTestBase {
+
+    private static final int ROWS = 500;
+    private static final long BASE_TIME = Timestamp.valueOf("2020-01-01 00:00:00").getTime();
+
+    @Test
+    public void run() throws Exception {
+        assertEquals(Constants.TCP_PROTOCOL_VERSION_2, ((JdbcConnection) conn).getSession().getProtocolVersion());
+
+        executeUpdate("DROP TABLE IF EXISTS ColumnarRowBatchTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS ColumnarRowBatchTest (pk int primary key, f1 long, f2 varchar,"
+                + " f3 varchar, f4 timestamp, f5 date, f6 time, f7 decimal(20, 2), f8 double, f9 real,"
+                + " f10 boolean, f11 binary, f12 uuid, f13 tinyint, f14 smallint, f15 clob)");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO ColumnarRowBatchTest VALUES"
+                + "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            ps.setInt(1, i);
+            if (i % 7 == 0) {
+                for (int j = 2; j <= 16; j++)
+                    ps.setObject(j, null);
+            } else {
+                ps.setLong(2, i % 2 == 0 ? -i * 1000000000L : i * 1000000000L);
+                ps.setString(3, "name" + (i % 5)); // 使用字典编码
+                ps.setString(4, "中文" + i);
+                ps.setTimestamp(5, new Timestamp(BASE_TIME + i * 1000L));
+                ps.setDate(6, new Date(BASE_TIME + i * 86400000L));
+                ps.setTime(7, new Time(BASE_TIME + i * 1000L));
+                ps.setBigDecimal(8, new BigDecimal(i + ".25"));
+                ps.setDouble(9, i * 1.5);
+                ps.setFloat(10, i * 0.5f);
+                ps.setBoolean(11, i % 3 == 0);
+                ps.setBytes(12, new byte[] { (byte) i, 1, 2 });
+                ps.setObject(13, new UUID(i, -i));
+                ps.setByte(14, (byte) i);
+                ps.setShort(15, (short) -i);
+                ps.setString(16, "clob" + i);
+            }
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+
+        testColumnar(stmt);
+        testRowWise(stmt);
+        testNullColumn();
+        testProtocolVersion1();
+    }
+
+    private void testColumnar(Statement stmt) throws Exception {
+        for (int fetchSize : new int[] { 1, 64, 1000 }) {
+            stmt.setFetchSize(fetchSize);
+            ResultSet rs = stmt.executeQuery("SELECT pk, f1, f2, f3, f4, f5, f6, f7, f8, f9, f10, f11, f12, f13, f14"
+                    + " FROM ColumnarRowBatchTest ORDER BY pk");
+            int count = 0;
+            while (rs.next()) {
+                int i = rs.getInt(1);
+                assertEquals(count++, i);
+                if (i % 7 == 0) {
+                    for (int j = 2; j <= 15; j++)
+                        assertNull(rs.getObject(j));
+                    continue;
+                }
+                assertEquals(i % 2 == 0 ? -i * 1000000000L : i * 1000000000L, rs.getLong(2));
+                assertEquals("name" + (i % 5), rs.getString(3));
+                assertEquals("中文" + i, rs.getString(4));
+                assertEquals(new Timestamp(BASE_TIME + i * 1000L), rs.getTimestamp(5));
+                assertEquals(new Date(BASE_TIME + i * 86400000L).toString(), rs.getDate(6).toString());
+                assertEquals(new Time(BASE_TIME + i * 1000L).toString(), rs.getTime(7).toString());
+                assertEquals(new BigDecimal(i + ".25"), rs.getBigDecimal(8));
+                assertEquals(i * 1.5, rs.getDouble(9), 0);
+                assertEquals(i * 0.5f, rs.getFloat(10), 0);
+                assertEquals(i % 3 == 0, rs.getBoolean(11));
+                byte[] bytes = rs.getBytes(12);
+                assertEquals(3, bytes.length);
+                assertEquals((byte) i, bytes[0]);
+                assertEquals(new UUID(i, -i), rs.getObject(13));
+                assertEquals((byte) i, rs.getByte(14));
+                assertEquals((short) -i, rs.getShort(15));
+            }
+            assertEquals(ROWS, count);
+            rs.close();
+        }
+    }
+
+    // 包含CLOB列时按行编码
+    private void testRowWise(Statement stmt) throws Exception {
+        stmt.setFetchSize(50);
+        ResultSet rs = stmt.executeQuery("SELECT pk, f15 FROM ColumnarRowBatchTest ORDER BY pk");
+        int count = 0;
+        while (rs.next()) {
+            int i = rs.getInt(1);
+            assertEquals(count++, i);
+            if (i % 7 == 0)
+                assertNull(rs.getString(2));
+            else
+                assertEquals("clob" + i, rs.getString(2));
+        }
+        assertEquals(ROWS, count);
+        rs.close();
+    }
+
+    private void testNullColumn() throws Exception {
+        stmt.setFetchSize(10);
+        ResultSet rs = stmt.executeQuery("SELECT f1 FROM ColumnarRowBatchTest WHERE pk % 7 = 0");
+        int count = 0;
+        while (rs.next()) {
+            assertNull(rs.getObject(1));
+            count++;
+        }
+        assertEquals((ROWS + 6) / 7, count);
+        rs.close();
+    }
+
+    // 旧版本的客户端还是按行编码，取到的记录要跟按列编码时一样
+    private void testProtocolVersion1() throws Exception {
+        String url = getURL() + ";" + ConnectionSetting.MAX_PROTOCOL_VERSION.name() + "="
+                + Constants.TCP_PROTOCOL_VERSION_1;
+        Connection conn1 = DriverManager.getConnection(url);
+        assertEquals(Constants.TCP_PROTOCOL_VERSION_1, ((JdbcConnection) conn1).getSession().getProtocolVersion());
+        Statement stmt1 = conn1.createStatement();
+        testColumnar(stmt1);
+        testRowWise(stmt1);
+        stmt1.close();
+        conn1.close();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.net.NetServer;
+import org.lealone.net.nio.NioEventLoopAdapter;
+import org.lealone.test.sql.SqlTestBase;
+import org.lealone.test.start.TcpServerStart;
+
+// 调度线程产生的响应等它跑完一轮后才唤醒事件循环，所有响应都要能正常送达客户端
+public class DeferredFlushTest extends SqlTestBase {
+
+    private static final int PORT = 9311;
+    private static final int THREAD_COUNT = 4;
+    private static final int QUERY_COUNT = 500;
+
+    @Test
+    public void run() throws Exception {
+        testInvalidPolicy();
+
+        stmt.executeUpdate("drop table IF EXISTS DeferredFlushTest");
+        stmt.executeUpdate("create table IF NOT EXISTS DeferredFlushTest(f1 int primary key, f2 int)");
+        for (int i = 0; i < 10; i++)
+            stmt.executeUpdate("insert into DeferredFlushTest(f1, f2) values(" + i + ", " + i * 10 + ")");
+
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("nio_write_flush_policy", "deferred");
+        NetServer server = TcpServerStart.startNetServer(PORT, parameters);
+        setPort(PORT);
+        try {
+            Connection[] conns = new Connection[THREAD_COUNT];
+            for (int i = 0; i < THREAD_COUNT; i++)
+                conns[i] = getConnection();
+            AtomicInteger errors = new AtomicInteger();
+            Thread[] threads = new Thread[THREAD_COUNT];
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                Connection conn = conns[i];
+                threads[i] = new Thread(() -> {
+                    // 大量的小响应，只靠调度线程一轮结束时的唤醒也不能丢失
+                    try (Statement stmt = conn.createStatement()) {
+                        for (int j = 0; j < QUERY_COUNT; j++) {
+                            int f1 = j % 10;
+                            ResultSet rs = stmt.executeQuery("select f2 from DeferredFlushTest where f1 = " + f1);
+                            if (!rs.next() || rs.getInt(1) != f1 * 10)
+                                errors.incrementAndGet();
+                            rs.close();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                });
+            }
+            for (Thread t : threads)
+                t.start();
+            for (Thread t : threads)
+                t.join();
+            for (Connection conn : conns)
+                conn.close();
+            assertEquals(0, errors.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void testInvalidPolicy() throws Exception {
+        HashMap<String, String> config = new HashMap<>();
+        config.put("nio_write_flush_policy", "later");
+        try {
+            new NioEventLoopAdapter(config, "server_nio_event_loop_interval", 1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("nio_write_flush_policy"));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.net.NetServer;
+import org.lealone.test.sql.SqlTestBase;
+import org.lealone.test.start.TcpServerStart;
+
+// 新连接按轮循的方式分配给多个事件循环，每个事件循环只处理自己的连接
+public class MultiEventLoopTest extends SqlTestBase {
+
+    private static final int PORT = 9310;
+    private static final int THREAD_COUNT = 7; // 比事件循环多，有的事件循环要处理多个连接
+    private static final int ROW_COUNT = 100;
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("drop table IF EXISTS MultiEventLoopTest");
+        stmt.executeUpdate("create table IF NOT EXISTS MultiEventLoopTest(f1 int primary key, f2 int)");
+
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("server_nio_event_loop_count", "3");
+        NetServer server = TcpServerStart.startNetServer(PORT, parameters);
+        setPort(PORT);
+        try {
+            // 连接在同一个线程中建立，事件循环之间的并发来自后面的多个线程
+            Connection[] conns = new Connection[THREAD_COUNT];
+            for (int i = 0; i < THREAD_COUNT; i++)
+                conns[i] = getConnection();
+            AtomicInteger errors = new AtomicInteger();
+            Thread[] threads = new Thread[THREAD_COUNT];
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                Connection conn = conns[i];
+                int base = i * ROW_COUNT;
+                threads[i] = new Thread(() -> {
+                    try (Statement stmt = conn.createStatement()) {
+                        for (int j = 0; j < ROW_COUNT; j++)
+                            stmt.executeUpdate("insert into MultiEventLoopTest(f1, f2) values(" + (base + j) + ", "
+                                    + base + ")");
+                        ResultSet rs = stmt
+                                .executeQuery("select count(*), sum(f1) from MultiEventLoopTest where f2 = " + base);
+                        rs.next();
+                        if (rs.getInt(1) != ROW_COUNT
+                                || rs.getLong(2) != (long) ROW_COUNT * base + ROW_COUNT * (ROW_COUNT - 1) / 2)
+                            errors.incrementAndGet();
+                        rs.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                });
+            }
+            for (Thread t : threads)
+                t.start();
+            for (Thread t : threads)
+                t.join();
+            for (Connection conn : conns)
+                conn.close();
+            assertEquals(0, errors.get());
+        } finally {
+            server.stop();
+        }
+        rs = stmt.executeQuery("select count(*) from MultiEventLoopTest");
+        rs.next();
+        assertEquals(THREAD_COUNT * ROW_COUNT, rs.getInt(1));
+        rs.close();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import org.junit.Test;
+import org.lealone.net.nio.NioBuffer;
+import org.lealone.net.nio.NioBufferPool;
+import org.lealone.test.TestBase;
+
+public class NioBufferPoolTest extends TestBase {
+    @Test
+    public void run() {
+        NioBufferPool pool = NioBufferPool.getInstance();
+        NioBuffer buffer = pool.allocate(100);
+        assertEquals(NioBufferPool.MIN_BUFFER_SIZE, buffer.getByteBuffer().capacity());
+        assertEquals(NioBufferPool.MAX_BUFFER_SIZE, pool.allocate(1024 * 1024).getByteBuffer().capacity());
+
+        buffer.appendInt(1).appendInt(2).flip();
+        NioBuffer slice1 = buffer.slice(0, 4);
+        NioBuffer slice2 = buffer.slice(4, 8);
+
+        // 所有引用都释放后才回到池中
+        long released = pool.getReleasedCount();
+        buffer.recycle();
+        slice1.recycle();
+        assertEquals(released, pool.getReleasedCount());
+        assertEquals(2, slice2.getUnsignedByte(3));
+        slice2.recycle();
+        assertEquals(released + 1, pool.getReleasedCount());
+        slice2.recycle(); // 多次调用是安全的
+        assertEquals(released + 1, pool.getReleasedCount());
+
+        // 同一个线程再分配时先从本地缓存中取
+        long localHitCount = pool.getLocalHitCount();
+        pool.allocate(100).recycle();
+        assertEquals(localHitCount + 1, pool.getLocalHitCount());
+    }
+}
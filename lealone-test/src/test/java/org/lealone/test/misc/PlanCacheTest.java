@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.db.LealoneDatabase;
+import org.lealone.test.sql.SqlTestBase;
+
+public class PlanCacheTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("drop table IF EXISTS PlanCacheTest");
+        stmt.executeUpdate("drop table IF EXISTS PlanCacheTest2");
+        stmt.executeUpdate("create table IF NOT EXISTS PlanCacheTest(f1 int primary key, f2 int)");
+        stmt.executeUpdate("create table IF NOT EXISTS PlanCacheTest2(f1 int, f2 int)");
+        stmt.executeUpdate("insert into PlanCacheTest(f1, f2) values(1, 10)");
+        stmt.executeUpdate("insert into PlanCacheTest(f1, f2) values(2, 20)");
+
+        testShare();
+        testNestedQuery();
+        testAutoParameterize();
+        testInvalidate();
+        testMaxInstances();
+    }
+
+    private void testShare() throws Exception {
+        String sql = "select f2 from PlanCacheTest where f1 = 1";
+        assertEquals(10, getInt(stmt, sql));
+        long hits = getPlanCacheValue("hit_count");
+
+        // 另一个session执行同样的语句时直接复用前一个session编译好的语句
+        Connection conn2 = getConnection();
+        Statement stmt2 = conn2.createStatement();
+        assertEquals(10, getInt(stmt2, sql));
+        assertTrue(getPlanCacheValue("hit_count") > hits);
+        stmt2.close();
+        conn2.close();
+    }
+
+    // 共享的语句换session后，子查询、UNION两边的查询、视图和INSERT ... SELECT中的查询都不能看到其他事务未提交的记录
+    private void testNestedQuery() throws Exception {
+        stmt.executeUpdate("create view IF NOT EXISTS PlanCacheTestView as select * from PlanCacheTest");
+        String subquery = "select count(*) from PlanCacheTest2 where f2 = 0 and f1 in(select f1 from PlanCacheTest)";
+        String union = "select f1 from PlanCacheTest where f2 > 0 union all select f1 from PlanCacheTest2 where f2 > 0";
+        String view = "select count(*) from PlanCacheTestView";
+        String insert = "insert into PlanCacheTest2(f1, f2) select f1, -1 from PlanCacheTest where f2 > 0"
+                + " union all select f1, -1 from PlanCacheTest2 where f2 > 0";
+        stmt.executeUpdate("insert into PlanCacheTest2(f1, f2) values(1, 0), (3, 0)");
+
+        Connection conn2 = getConnection();
+        conn2.setAutoCommit(false);
+        Statement stmt2 = conn2.createStatement();
+        stmt2.executeUpdate("insert into PlanCacheTest(f1, f2) values(3, 30)");
+        // 先在conn2中执行，能共享的语句会放回缓存，之后stmt用到的就是conn2编译好的语句
+        assertEquals(2, getInt(stmt2, subquery));
+        assertEquals(3, getRowCount(stmt2, union));
+        assertEquals(3, getInt(stmt2, view));
+        assertEquals(3, stmt2.executeUpdate(insert));
+
+        long hits = getPlanCacheValue("hit_count");
+        assertEquals(1, getInt(stmt, subquery));
+        assertTrue(getPlanCacheValue("hit_count") > hits);
+        assertEquals(2, getRowCount(stmt, union));
+        assertEquals(2, getInt(stmt, view));
+        assertEquals(2, stmt.executeUpdate(insert));
+
+        conn2.commit();
+        assertEquals(3, getRowCount(stmt, union));
+        assertEquals(5, stmt.executeUpdate("delete from PlanCacheTest2 where f2 = -1"));
+        stmt.executeUpdate("delete from PlanCacheTest2 where f2 = 0");
+        stmt.executeUpdate("delete from PlanCacheTest where f1 = 3");
+        stmt2.close();
+        conn2.close();
+    }
+
+    private void testAutoParameterize() throws Exception {
+        stmt.executeUpdate("SET AUTO_PARAMETERIZE 'true'");
+        try {
+            assertEquals(10, getInt(stmt, "select f2 from PlanCacheTest where f1 = 1"));
+            long hits = getPlanCacheValue("hit_count");
+            // 只是常量不同的语句共享同一个执行计划
+            assertEquals(20, getInt(stmt, "select f2 from PlanCacheTest where f1 = 2"));
+            assertTrue(getPlanCacheValue("hit_count") > hits);
+            assertEquals(2, getInt(stmt, "select count(*) from PlanCacheTest where f1 in(1, 2) and f2 > -1"));
+            assertEquals(1, getInt(stmt, "select count(*) from PlanCacheTest where f1 in(2, 3) and f2 > -1"));
+
+            stmt.executeUpdate("insert into PlanCacheTest2(f1, f2) values(100, -5), (101, 6)");
+            assertEquals(-5, getInt(stmt, "select f2 from PlanCacheTest2 where f1 = 100"));
+            stmt.executeUpdate("update PlanCacheTest2 set f2 = 7 where f1 = 101");
+            assertEquals(7, getInt(stmt, "select f2 from PlanCacheTest2 where f1 = 101"));
+            stmt.executeUpdate("delete from PlanCacheTest2 where f1 >= 100");
+            assertEquals(0, getInt(stmt, "select count(*) from PlanCacheTest2 where f1 >= 100"));
+
+            // 字符串常量和不能替换的常量
+            assertEquals(1, getInt(stmt, "select count(*) from PlanCacheTest where 'it''s' = 'it''s' and f1 = 1"));
+            assertEquals(2, getInt(stmt, "select count(*) from PlanCacheTest where cast(f1 as varchar) like '%'"));
+            assertEquals(1, getInt(stmt, "select count(*) from PlanCacheTest where f2 = 10 + 0"));
+        } finally {
+            stmt.executeUpdate("SET AUTO_PARAMETERIZE 'false'");
+        }
+    }
+
+    private void testInvalidate() throws Exception {
+        String sql = "select count(*) from PlanCacheTest where f2 >= 10";
+        assertEquals(2, getInt(stmt, sql));
+        long invalidations = getPlanCacheValue("invalidation_count");
+
+        // 其他表上的DDL不会让当前语句失效
+        stmt.executeUpdate("create index IF NOT EXISTS PlanCacheTest2_f1 on PlanCacheTest2(f1)");
+        assertEquals(2, getInt(stmt, sql));
+        assertEquals(invalidations, getPlanCacheValue("invalidation_count"));
+
+        // 依赖的表被修改后要重新编译
+        stmt.executeUpdate("create index IF NOT EXISTS PlanCacheTest_f2 on PlanCacheTest(f2)");
+        assertEquals(2, getInt(stmt, sql));
+        assertTrue(getPlanCacheValue("invalidation_count") > invalidations);
+
+        stmt.executeUpdate("alter table PlanCacheTest add column f3 int");
+        stmt.executeUpdate("update PlanCacheTest set f3 = f2 + 1");
+        assertEquals(2, getInt(stmt, "select count(*) from PlanCacheTest where f3 > 10"));
+    }
+
+    // 每条语句最多保留PLAN_CACHE_MAX_INSTANCES个空闲实例，多出来的直接丢弃
+    private void testMaxInstances() throws Exception {
+        Connection c = getConnection(LealoneDatabase.NAME);
+        Statement s = c.createStatement();
+        s.executeUpdate("CREATE DATABASE IF NOT EXISTS PlanCacheTest PARAMETERS(PLAN_CACHE_MAX_INSTANCES=1)");
+        s.executeUpdate("ALTER DATABASE PlanCacheTest PARAMETERS(PLAN_CACHE_MAX_INSTANCES=1)");
+        s.close();
+        c.close();
+
+        int count = 3;
+        Connection[] conns = new Connection[count];
+        PreparedStatement[] ps = new PreparedStatement[count];
+        for (int i = 0; i < count; i++) {
+            conns[i] = getConnection("PlanCacheTest");
+            if (i == 0) {
+                Statement s0 = conns[0].createStatement();
+                s0.executeUpdate("create table IF NOT EXISTS PlanCacheTest(f1 int primary key, f2 int)");
+                s0.close();
+            }
+            // 多个session同时使用同一条语句，每个session都有自己的实例
+            ps[i] = conns[i].prepareStatement("select f2 from PlanCacheTest where f1 = ?");
+        }
+        Statement s0 = conns[0].createStatement();
+        long idleCount = getPlanCacheValue(s0, "idle_count");
+        for (int i = 0; i < count; i++) {
+            ps[i].close();
+            // 同一个连接上的请求按顺序处理，查询返回时前面的关闭操作已经完成
+            getPlanCacheValue(conns[i].createStatement(), "idle_count");
+        }
+        assertEquals(idleCount + 1, getPlanCacheValue(s0, "idle_count"));
+        for (int i = 0; i < count; i++)
+            conns[i].close();
+    }
+
+    private long getPlanCacheValue(String name) throws Exception {
+        return getPlanCacheValue(stmt, name);
+    }
+
+    private static long getPlanCacheValue(Statement stmt, String name) throws Exception {
+        ResultSet rs = stmt.executeQuery("select VALUE from INFORMATION_SCHEMA.PLAN_CACHE where NAME = '" + name + "'");
+        assertTrue(rs.next());
+        long v = (long) Double.parseDouble(rs.getString(1));
+        rs.close();
+        return v;
+    }
+
+    private static int getRowCount(Statement stmt, String sql) throws Exception {
+        ResultSet rs = stmt.executeQuery(sql);
+        int count = 0;
+        while (rs.next())
+            count++;
+        rs.close();
+        return count;
+    }
+
+    private static int getInt(Statement stmt, String sql) throws Exception {
+        ResultSet rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        int i = rs.getInt(1);
+        rs.close();
+        return i;
+    }
+}
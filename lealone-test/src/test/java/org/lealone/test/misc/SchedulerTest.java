@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.lealone.db.async.AsyncTask;
+import org.lealone.db.async.AsyncTaskHandler;
+import org.lealone.db.async.AsyncTaskHandlerFactory;
+import org.lealone.test.sql.SqlTestBase;
+
+public class SchedulerTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("drop table IF EXISTS SchedulerTest");
+        stmt.executeUpdate("create table IF NOT EXISTS SchedulerTest(f1 int primary key, f2 int)");
+
+        // 多个session并发执行，调度器之间可能迁移session，但是结果不能受影响
+        int threadCount = 8;
+        int count = 100;
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        // 客户端的连接在同一个线程中建立
+        Connection[] conns = new Connection[threadCount];
+        for (int i = 0; i < threadCount; i++)
+            conns[i] = getConnection();
+        for (int i = 0; i < threadCount; i++) {
+            int id = i;
+            Connection conn = conns[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    Statement stmt = conn.createStatement();
+                    for (int j = 0; j < count; j++) {
+                        stmt.executeUpdate("insert into SchedulerTest(f1, f2) values(" + (id * count + j) + ", 1)");
+                    }
+                    stmt.close();
+                    conn.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, errors.get());
+        sql = "select count(*) from SchedulerTest";
+        assertEquals(threadCount * count, getIntValue(1, true));
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = mbs.queryNames(new ObjectName("org.lealone:type=Scheduler,*"), null);
+        assertFalse(names.isEmpty());
+        int sessionCount = 0;
+        for (ObjectName name : names) {
+            sessionCount += (Integer) mbs.getAttribute(name, "SessionCount");
+            double utilization = (Double) mbs.getAttribute(name, "Utilization");
+            assertTrue(utilization >= 0);
+            assertTrue((Long) mbs.getAttribute(name, "StealCount") >= 0);
+            assertTrue((Long) mbs.getAttribute(name, "MigratedSessionCount") >= 0);
+        }
+        // 至少包含当前测试用的连接
+        assertTrue(sessionCount >= 1);
+        // TcpServerStart保证至少有两个调度器
+        assertTrue(names.size() >= 2);
+
+        testStealTasks();
+        testMigrateSession();
+    }
+
+    // 一个调度器忙于执行大量的异步任务时，空闲的调度器会取走一部分
+    private void testStealTasks() throws Exception {
+        long stealCount = sum("StealCount");
+        AsyncTaskHandler handler = AsyncTaskHandlerFactory.getAsyncTaskHandler();
+        int taskCount = 100;
+        CountDownLatch latch = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            handler.handle((AsyncTask) () -> {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                }
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertTrue(sum("StealCount") > stealCount);
+    }
+
+    // 调度器还有其他命令在排队时，把CPU消耗较多的session迁移到空闲的调度器
+    private void testMigrateSession() throws Exception {
+        ArrayList<Connection> conns = getConnectionsOfSameScheduler(3);
+        Connection a = conns.get(0);
+        Connection b = conns.get(1);
+        Connection c = conns.get(2);
+        String heavySql = "select count(*) from SchedulerTest t1, SchedulerTest t2";
+        long migratedSessionCount = sum("MigratedSessionCount");
+        for (int i = 0; i < 5 && sum("MigratedSessionCount") == migratedSessionCount; i++) {
+            // 让b的语句平均CPU时间高于调度器的平均值
+            for (int j = 0; j < 8; j++)
+                executeQuery(b, heavySql);
+            // a正在执行时c和b先后发来新的语句，a结束后c的命令进入就绪队列，接着处理b时就可以迁移了
+            Thread ta = startQuery(a, heavySql + ", SchedulerTest t3 where t3.f1 < 3");
+            Thread.sleep(50);
+            Thread tc = startQuery(c, "select 1");
+            Thread.sleep(50);
+            Thread tb = startQuery(b, "select 1");
+            ta.join();
+            tc.join();
+            tb.join();
+        }
+        for (Connection conn : conns)
+            conn.close();
+        assertTrue(sum("MigratedSessionCount") > migratedSessionCount);
+    }
+
+    // 新session按轮循的方式分配给调度器，根据SessionCount的变化找出被分配到同一个调度器的连接
+    private ArrayList<Connection> getConnectionsOfSameScheduler(int count) throws Exception {
+        HashMap<ObjectName, ArrayList<Connection>> map = new HashMap<>();
+        ArrayList<Connection> all = new ArrayList<>();
+        ArrayList<Connection> result = null;
+        for (int i = 0; i < 100 && result == null; i++) {
+            HashMap<ObjectName, Integer> before = getSessionCounts();
+            Connection conn = getConnection();
+            all.add(conn);
+            HashMap<ObjectName, Integer> after = getSessionCounts();
+            ObjectName scheduler = null;
+            int changed = 0;
+            for (ObjectName name : after.keySet()) {
+                if (!after.get(name).equals(before.get(name))) {
+                    scheduler = name;
+                    changed++;
+                }
+            }
+            // 其他session可能同时关闭，无法确定时不用它
+            if (changed != 1 || after.get(scheduler) < before.get(scheduler))
+                continue;
+            ArrayList<Connection> list = map.computeIfAbsent(scheduler, k -> new ArrayList<>());
+            list.add(conn);
+            if (list.size() == count)
+                result = list;
+        }
+        assertNotNull(result);
+        for (Connection conn : all) {
+            if (!result.contains(conn))
+                conn.close();
+        }
+        return result;
+    }
+
+    private static void executeQuery(Connection conn, String sql) throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeQuery(sql).close();
+        }
+    }
+
+    private static Thread startQuery(Connection conn, String sql) {
+        Thread t = new Thread(() -> {
+            try {
+                executeQuery(conn, sql);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static Set<ObjectName> getSchedulerNames() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        return mbs.queryNames(new ObjectName("org.lealone:type=Scheduler,*"), null);
+    }
+
+    private static HashMap<ObjectName, Integer> getSessionCounts() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        HashMap<ObjectName, Integer> counts = new HashMap<>();
+        for (ObjectName name : getSchedulerNames())
+            counts.put(name, (Integer) mbs.getAttribute(name, "SessionCount"));
+        return counts;
+    }
+
+    private static long sum(String attribute) throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        long sum = 0;
+        for (ObjectName name : getSchedulerNames())
+            sum += (Long) mbs.getAttribute(name, attribute);
+        return sum;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.sql.ResultSet;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class TransactionMetricsTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("drop table IF EXISTS TransactionMetricsTest");
+        stmt.executeUpdate("create table IF NOT EXISTS TransactionMetricsTest(f1 int, f2 int)");
+        stmt.executeUpdate("insert into TransactionMetricsTest(f1, f2) values(1, 2)");
+
+        ResultSet rs = stmt.executeQuery(
+                "select VALUE from INFORMATION_SCHEMA.TRANSACTION_METRICS where NAME = 'undo_log_size.count'");
+        assertTrue(rs.next());
+        assertTrue(Long.parseLong(rs.getString(1)) > 0);
+        rs.close();
+
+        sql = "select * from INFORMATION_SCHEMA.TRANSACTION_METRICS";
+        printResultSet();
+    }
+}
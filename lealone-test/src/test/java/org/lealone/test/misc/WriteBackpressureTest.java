@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.net.NetServer;
+import org.lealone.net.nio.NioEventLoop;
+import org.lealone.net.nio.NioEventLoopAdapter;
+import org.lealone.test.sql.SqlTestBase;
+import org.lealone.test.start.TcpServerStart;
+
+// 高水位只有64K，多个连接同时读取大结果集时会触发写缓冲的背压
+public class WriteBackpressureTest extends SqlTestBase {
+
+    private static final int PORT = 9312;
+
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("drop table IF EXISTS WriteBackpressureTest");
+        stmt.executeUpdate("create table IF NOT EXISTS WriteBackpressureTest(f1 int primary key, f2 varchar)");
+        // 用随机的字符串，避免协议层用字典编码或LZF压缩把结果集变得很小
+        Random random = new Random(100);
+        int rowCount = 200;
+        String[] values = new String[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            StringBuilder buff = new StringBuilder();
+            for (int j = 0; j < 2000; j++)
+                buff.append((char) ('a' + random.nextInt(26)));
+            values[i] = buff.toString();
+            stmt.executeUpdate("insert into WriteBackpressureTest(f1, f2) values(" + i + ", '" + values[i] + "')");
+        }
+
+        HashMap<String, String> parameters = new HashMap<>();
+        parameters.put("nio_write_high_watermark", "65536"); // 默认8M，低水位默认是高水位的一半
+        NetServer server = TcpServerStart.startNetServer(PORT, parameters);
+        setPort(PORT);
+        int threadCount = 4;
+        AtomicInteger errors = new AtomicInteger();
+        try {
+            Connection[] conns = new Connection[threadCount];
+            for (int i = 0; i < threadCount; i++)
+                conns[i] = getConnection();
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                Connection conn = conns[i];
+                threads[i] = new Thread(() -> {
+                    try {
+                        Statement stmt = conn.createStatement();
+                        for (int j = 0; j < 5; j++) {
+                            stmt.setFetchSize(rowCount);
+                            ResultSet rs = stmt.executeQuery("select f2 from WriteBackpressureTest order by f1");
+                            int count = 0;
+                            while (rs.next()) {
+                                if (!values[count].equals(rs.getString(1)))
+                                    errors.incrementAndGet();
+                                count++;
+                            }
+                            rs.close();
+                            if (count != rowCount)
+                                errors.incrementAndGet();
+                        }
+                        stmt.close();
+                        conn.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                });
+            }
+            for (Thread t : threads)
+                t.start();
+            for (Thread t : threads)
+                t.join();
+
+            // 每次返回的结果集都比高水位大，连接会变成不可写，服务器端也会暂停读新的请求
+            NioEventLoopAdapter adapter = (NioEventLoopAdapter) ((NioEventLoop) server)
+                    .getDefaultNioEventLoopImpl();
+            assertTrue(adapter.getUnwritableCount() > 0);
+            assertTrue(adapter.getReadSuspendedCount() > 0);
+        } finally {
+            server.stop();
+        }
+        assertEquals(0, errors.get());
+    }
+}
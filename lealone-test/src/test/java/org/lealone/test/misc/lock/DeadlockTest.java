@@ -19,8 +19,12 @@ package org.lealone.test.misc.lock;
 
 import java.sql.Connection;
 import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.api.ErrorCode;
 import org.lealone.test.sql.SqlTestBase;
 
 public class DeadlockTest extends SqlTestBase {
@@ -68,4 +72,51 @@ public class DeadlockTest extends SqlTestBase {
         t1.join();
         t2.join();
     }
+
+    // 三个事务形成的环，不需要等到锁超时就能发现死锁
+    @Test
+    public void testThreeWayDeadlock() throws Exception {
+        stmt.executeUpdate("set DEFAULT_LOCK_TIMEOUT 10000");
+        stmt.executeUpdate("drop table IF EXISTS DeadlockTest3");
+        stmt.executeUpdate("create table IF NOT EXISTS DeadlockTest3(id int primary key, name varchar(500))");
+        for (int i = 1; i <= 3; i++)
+            stmt.executeUpdate("insert into DeadlockTest3(id, name) values(" + i + ", 'a1')");
+
+        CountDownLatch latch = new CountDownLatch(3);
+        AtomicInteger deadlocks = new AtomicInteger();
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < 3; i++) {
+            int first = i + 1;
+            int second = (i + 1) % 3 + 1;
+            threads[i] = new Thread(() -> {
+                try {
+                    Connection conn = DeadlockTest.this.getConnection();
+                    conn.setAutoCommit(false);
+                    Statement stmt = conn.createStatement();
+                    stmt.executeUpdate("update DeadlockTest3 set name = 'a2' where id = " + first);
+                    latch.countDown();
+                    latch.await();
+                    try {
+                        stmt.executeUpdate("update DeadlockTest3 set name = 'a2' where id = " + second);
+                        conn.commit();
+                    } catch (DbException e) {
+                        if (e.getErrorCode() == ErrorCode.DEADLOCK_1)
+                            deadlocks.incrementAndGet();
+                        conn.rollback();
+                    }
+                    stmt.close();
+                    conn.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, deadlocks.get());
+    }
 }
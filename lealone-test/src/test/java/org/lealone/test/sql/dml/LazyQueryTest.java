@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.dml;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.db.LealoneDatabase;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+public class LazyQueryTest extends SqlTestBase {
+
+    private static final int ROWS = 1000;
+
+    @Test
+    public void run() throws Exception {
+        enableLazyQueryExecution();
+        executeUpdate("DROP TABLE IF EXISTS LazyQueryTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS LazyQueryTest (f1 int primary key, f2 int)");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO LazyQueryTest(f1, f2) VALUES(?, ?)");
+        for (int i = 1; i <= ROWS; i++) {
+            ps.setInt(1, i);
+            ps.setInt(2, i * 10);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+
+        testFetch();
+        testLimit();
+        testInterleaved();
+        testFailedFetch();
+        testReexecute();
+    }
+
+    // 延迟产生结果默认是关闭的，在单独的数据库中打开
+    private void enableLazyQueryExecution() throws Exception {
+        Connection c = getConnection(LealoneDatabase.NAME);
+        Statement s = c.createStatement();
+        s.executeUpdate("CREATE DATABASE IF NOT EXISTS LazyQueryTest PARAMETERS(LAZY_QUERY_EXECUTION=true)");
+        s.executeUpdate("ALTER DATABASE LazyQueryTest PARAMETERS(LAZY_QUERY_EXECUTION=true)");
+        s.close();
+        c.close();
+        stmt.close();
+        conn.close();
+        conn = getConnection("LazyQueryTest");
+        stmt = conn.createStatement();
+    }
+
+    private void testFetch() throws Exception {
+        stmt.setFetchSize(10);
+        assertEquals(ROWS, count(stmt.executeQuery("SELECT f1, f2 FROM LazyQueryTest")));
+        assertEquals(ROWS / 2, count(stmt.executeQuery("SELECT f1, f2 FROM LazyQueryTest WHERE f2 > 5000")));
+        assertEquals(0, count(stmt.executeQuery("SELECT f1, f2 FROM LazyQueryTest WHERE f2 < 0")));
+
+        // 需要排序的查询还是先生成所有结果
+        ResultSet rs = stmt.executeQuery("SELECT f1 FROM LazyQueryTest ORDER BY f2 DESC");
+        assertTrue(rs.next());
+        assertEquals(ROWS, rs.getInt(1));
+        rs.close();
+    }
+
+    private void testLimit() throws Exception {
+        stmt.setFetchSize(10);
+        assertEquals(15, count(stmt.executeQuery("SELECT f1, f2 FROM LazyQueryTest LIMIT 15")));
+        assertEquals(0, count(stmt.executeQuery("SELECT f1, f2 FROM LazyQueryTest LIMIT 0")));
+        stmt.setMaxRows(25);
+        assertEquals(25, count(stmt.executeQuery("SELECT f1, f2 FROM LazyQueryTest")));
+        stmt.setMaxRows(0);
+    }
+
+    // 同一个连接上同时读两个还没读完的结果集
+    private void testInterleaved() throws Exception {
+        Statement stmt2 = conn.createStatement();
+        Statement stmt3 = conn.createStatement();
+        stmt.setFetchSize(7);
+        stmt2.setFetchSize(13);
+        ResultSet rs1 = stmt.executeQuery("SELECT f1, f2 FROM LazyQueryTest");
+        ResultSet rs2 = stmt2.executeQuery("SELECT f1 FROM LazyQueryTest WHERE f1 > 500");
+        int count1 = 0, count2 = 0;
+        while (true) {
+            boolean b1 = rs1.next();
+            boolean b2 = rs2.next();
+            if (!b1 && !b2)
+                break;
+            if (b1) {
+                count1++;
+                assertEquals(count1, rs1.getInt(1));
+                // 还没读到的记录在客户端取数据时才读，能看到在这之前已经提交的修改
+                if (count1 == 200)
+                    assertEquals(-1, rs1.getInt(2));
+                else if (count1 < 100)
+                    assertEquals(count1 * 10, rs1.getInt(2));
+            }
+            if (b2) {
+                count2++;
+                assertEquals(500 + count2, rs2.getInt(1));
+            }
+            if (count1 == 100)
+                stmt3.executeUpdate("UPDATE LazyQueryTest SET f2 = -1 WHERE f1 = 200");
+        }
+        assertEquals(ROWS, count1);
+        assertEquals(ROWS - 500, count2);
+        rs1.close();
+        rs2.close();
+        stmt2.close();
+        stmt3.executeUpdate("UPDATE LazyQueryTest SET f2 = 2000 WHERE f1 = 200");
+        stmt3.close();
+    }
+
+    // 取数据时表达式计算出错，客户端在读到出错的那一批记录时得到异常，连接还能继续使用
+    private void testFailedFetch() throws Exception {
+        stmt.setFetchSize(10);
+        ResultSet rs = stmt.executeQuery("SELECT 1/(f1-500) FROM LazyQueryTest");
+        int count = 0;
+        try {
+            while (rs.next())
+                count++;
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.DIVISION_BY_ZERO_1, e.getErrorCode());
+        }
+        assertTrue(count < 500);
+        rs.close();
+        assertEquals(ROWS, count(stmt.executeQuery("SELECT f1 FROM LazyQueryTest")));
+    }
+
+    // 还没读完的结果集所属的语句再次执行
+    private void testReexecute() throws Exception {
+        PreparedStatement ps = conn.prepareStatement("SELECT f1 FROM LazyQueryTest WHERE f1 > ?");
+        ps.setFetchSize(10);
+        ps.setInt(1, 0);
+        ResultSet rs = ps.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(1, rs.getInt(1));
+        ps.setInt(1, ROWS - 20);
+        assertEquals(20, count(ps.executeQuery()));
+        ps.close();
+    }
+
+    private static int count(ResultSet rs) throws Exception {
+        int count = 0;
+        while (rs.next())
+            count++;
+        rs.close();
+        return count;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.transaction;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+public class IncrementUpdateTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS IncrementUpdateTest");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS IncrementUpdateTest "
+                + "(id int NOT NULL PRIMARY KEY, hits int, amount bigint, name varchar)");
+        stmt.executeUpdate("INSERT INTO IncrementUpdateTest(id, hits, amount, name) VALUES(1, 0, 100, 'a')");
+
+        testMerge();
+        testRollback();
+        testConflict();
+        testConcurrentUpdate();
+    }
+
+    private void testMerge() throws Exception {
+        Connection conn1 = getConnection();
+        Connection conn2 = getConnection();
+        Statement stmt1 = conn1.createStatement();
+        Statement stmt2 = conn2.createStatement();
+        conn1.setAutoCommit(false);
+        conn2.setAutoCommit(false);
+
+        // 两个事务同时累加同一行，都不需要等待
+        stmt1.executeUpdate("UPDATE IncrementUpdateTest SET hits = hits + 1, amount = amount - 10 WHERE id = 1");
+        stmt2.executeUpdate("UPDATE IncrementUpdateTest SET hits = 2 + hits WHERE id = 1");
+        stmt1.executeUpdate("UPDATE IncrementUpdateTest SET hits = hits + 1 WHERE id = 1");
+        // 读到自己的增量，看不到其他事务的增量
+        assertEquals(2, getInt(stmt1, "SELECT hits FROM IncrementUpdateTest WHERE id = 1"));
+        assertEquals(90, getInt(stmt1, "SELECT amount FROM IncrementUpdateTest WHERE id = 1"));
+        assertEquals(2, getInt(stmt2, "SELECT hits FROM IncrementUpdateTest WHERE id = 1 AND hits > 0"));
+        assertEquals(0, getInt(stmt, "SELECT hits FROM IncrementUpdateTest WHERE id = 1 AND name = 'a'"));
+
+        conn1.commit();
+        conn2.commit();
+        assertEquals(4, getInt(stmt, "SELECT hits FROM IncrementUpdateTest WHERE id = 1 AND amount = 90"));
+
+        stmt1.close();
+        stmt2.close();
+        conn1.close();
+        conn2.close();
+    }
+
+    private void testRollback() throws Exception {
+        Connection conn = getConnection();
+        Statement stmt1 = conn.createStatement();
+        conn.setAutoCommit(false);
+        stmt1.executeUpdate("UPDATE IncrementUpdateTest SET hits = hits + 5 WHERE id = 1");
+        assertEquals(9, getInt(stmt1, "SELECT hits FROM IncrementUpdateTest WHERE id = 1"));
+        conn.rollback();
+        assertEquals(4, getInt(stmt, "SELECT hits FROM IncrementUpdateTest WHERE id = 1 AND hits < 9"));
+        stmt1.close();
+        conn.close();
+    }
+
+    private void testConflict() throws Exception {
+        Connection conn1 = getConnection();
+        Connection conn2 = getConnection();
+        Statement stmt1 = conn1.createStatement();
+        Statement stmt2 = conn2.createStatement();
+        conn1.setAutoCommit(false);
+        conn2.setAutoCommit(false);
+
+        stmt1.executeUpdate("UPDATE IncrementUpdateTest SET hits = hits + 1 WHERE id = 1");
+        // 普通的更新会锁住字段，增量只能在提交时合并，这时锁还没有释放，只能放弃
+        stmt2.executeUpdate("UPDATE IncrementUpdateTest SET hits = 100 WHERE id = 1");
+        try {
+            conn1.commit();
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.TRANSACTION_CONFLICT_1, e.getErrorCode());
+        }
+        conn2.commit();
+        assertEquals(100, getInt(stmt, "SELECT hits FROM IncrementUpdateTest WHERE id = 1 AND hits >= 100"));
+
+        stmt1.close();
+        stmt2.close();
+        conn1.close();
+        conn2.close();
+    }
+
+    private void testConcurrentUpdate() throws Exception {
+        int threadCount = 4;
+        int count = 50;
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    Connection conn = getConnection();
+                    Statement stmt = conn.createStatement();
+                    for (int j = 0; j < count; j++)
+                        stmt.executeUpdate("UPDATE IncrementUpdateTest SET hits = hits + 1 WHERE id = 1");
+                    stmt.close();
+                    conn.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, errors.get());
+        assertEquals(100 + threadCount * count,
+                getInt(stmt, "SELECT hits FROM IncrementUpdateTest WHERE id = 1 AND name IS NOT NULL"));
+    }
+
+    private static int getInt(Statement stmt, String sql) throws SQLException {
+        ResultSet rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        int i = rs.getInt(1);
+        rs.close();
+        return i;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.transaction;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+public class OptimisticTransactionTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS OptimisticTransactionTest");
+        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS OptimisticTransactionTest "
+                + "(f1 int NOT NULL PRIMARY KEY, f2 int, f3 varchar)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS OptimisticTransactionTest_idx ON OptimisticTransactionTest(f2)");
+        stmt.executeUpdate("INSERT INTO OptimisticTransactionTest(f1, f2, f3) VALUES(1, 10, 'a')");
+        stmt.executeUpdate("INSERT INTO OptimisticTransactionTest(f1, f2, f3) VALUES(2, 20, 'b')");
+
+        Connection conn1 = getConnection();
+        Connection conn2 = getConnection();
+        Statement stmt1 = conn1.createStatement();
+        Statement stmt2 = conn2.createStatement();
+        stmt1.executeUpdate("SET OPTIMISTIC 1");
+        stmt2.executeUpdate("SET OPTIMISTIC 1");
+
+        // 自动提交模式
+        stmt1.executeUpdate("UPDATE OptimisticTransactionTest SET f3 = 'a0' WHERE f1 = 1");
+        assertEquals("a0", getString(stmt, "SELECT f3 FROM OptimisticTransactionTest WHERE f1 = 1"));
+
+        conn1.setAutoCommit(false);
+        conn2.setAutoCommit(false);
+        stmt1.executeUpdate("UPDATE OptimisticTransactionTest SET f3 = 'a1' WHERE f1 = 1");
+        // 读到自己还没有写入的数据，包括通过索引读
+        assertEquals("a1", getString(stmt1, "SELECT f3 FROM OptimisticTransactionTest WHERE f1 = 1"));
+        assertEquals("a1", getString(stmt1, "SELECT f3 FROM OptimisticTransactionTest WHERE f2 = 10"));
+        // 不加锁，其他事务不用等待
+        stmt2.executeUpdate("UPDATE OptimisticTransactionTest SET f3 = 'a2' WHERE f1 = 1");
+        stmt2.executeUpdate("DELETE FROM OptimisticTransactionTest WHERE f1 = 2");
+        assertEquals("a0", getString(stmt, "SELECT f3 FROM OptimisticTransactionTest WHERE f1 = 1"));
+
+        conn1.commit();
+        try {
+            conn2.commit();
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.TRANSACTION_CONFLICT_1, e.getErrorCode());
+        }
+        assertEquals("a1", getString(stmt, "SELECT f3 FROM OptimisticTransactionTest WHERE f1 = 1 AND f2 = 10"));
+        assertEquals("b", getString(stmt, "SELECT f3 FROM OptimisticTransactionTest WHERE f1 = 2 AND f2 = 20"));
+
+        // 冲突回滚后可以重新执行
+        stmt2.executeUpdate("DELETE FROM OptimisticTransactionTest WHERE f1 = 2");
+        conn2.commit();
+        assertEquals(1, getInt(stmt, "SELECT count(*) FROM OptimisticTransactionTest"));
+
+        stmt1.close();
+        stmt2.close();
+        conn1.close();
+        conn2.close();
+    }
+
+    private static String getString(Statement stmt, String sql) throws SQLException {
+        ResultSet rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        String s = rs.getString(1);
+        rs.close();
+        return s;
+    }
+
+    private static int getInt(Statement stmt, String sql) throws SQLException {
+        ResultSet rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        int i = rs.getInt(1);
+        rs.close();
+        return i;
+    }
+}
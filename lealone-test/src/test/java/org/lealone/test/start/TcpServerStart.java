@@ -17,12 +17,18 @@
  */
 package org.lealone.test.start;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import org.lealone.common.exceptions.ConfigException;
+import org.lealone.net.NetFactoryManager;
+import org.lealone.net.NetServer;
 import org.lealone.p2p.config.Config;
 import org.lealone.p2p.config.Config.PluggableEngineDef;
 import org.lealone.p2p.server.P2pServerEngine;
+import org.lealone.server.TcpServer;
+import org.lealone.server.TcpServerEngine;
 
 public class TcpServerStart extends NodeBase {
 
@@ -36,6 +42,10 @@ public class TcpServerStart extends NodeBase {
         for (PluggableEngineDef e : config.protocol_server_engines) {
             if (P2pServerEngine.NAME.equalsIgnoreCase(e.name)) {
                 e.enabled = false;
+            } else if (TcpServerEngine.NAME.equalsIgnoreCase(e.name)) {
+                // 单核机器上默认只有一个调度器，至少要两个才能测试调度器之间的任务窃取和session迁移
+                if (!e.parameters.containsKey("scheduler_count") && Runtime.getRuntime().availableProcessors() < 2)
+                    e.parameters.put("scheduler_count", "2");
             }
         }
         super.applyConfig(config);
@@ -56,4 +66,19 @@ public class TcpServerStart extends NodeBase {
             e.printStackTrace();
         }
     }
+
+    // 在已经启动的默认TCP服务器之外再启动一个使用指定网络参数的服务器，它们共享同一个数据库和调度服务，
+    // 这样只有需要特殊网络参数的测试才使用这些参数，用完后调用NetServer.stop关闭
+    public static NetServer startNetServer(int port, Map<String, String> parameters) {
+        Map<String, String> config = new HashMap<>(parameters);
+        config.put("port", String.valueOf(port));
+        config.put("allow_others", "true");
+        TcpServer tcpServer = new TcpServer();
+        NetServer netServer = NetFactoryManager.getFactory(config).createNetServer();
+        netServer.setConnectionManager(tcpServer);
+        tcpServer.setProtocolServer(netServer);
+        netServer.init(config);
+        netServer.start();
+        return netServer;
+    }
 }